@@ -3,9 +3,12 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/PizzaStore.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
-#run the java program
-#Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
+# package it as a jar (class-data sharing only archives classes from jars)
+# and drop the CDS archive of the previous build, it no longer matches
+(cd $DIR/../classes && jar cf pizzastore.jar *.class)
+rm -f $DIR/../classes/pizzastore.jsa
 
+#run the java program
+source $DIR/run.sh
@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Exports FoodOrder and ItemsInOrder to gzipped CSV chunks with the last build
+# (see scripts/compile.sh). Options: --out dir --threads N --chunks N
+# --since timestamp --until timestamp; -Dpizzastore.pool.size sets the threads.
+java $PIZZASTORE_OPTS -cp $DIR/../classes/pizzastore.jar:$DIR/../lib/pg73jdbc3.jar OrderExport $USER"_project_phase_3_DB" $PGPORT $USER "$@"
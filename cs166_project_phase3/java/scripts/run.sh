@@ -0,0 +1,16 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Runs the packaged program without recompiling it. The first run after a
+# build records the loaded classes into a class-data sharing archive on exit;
+# later runs map that archive and skip most class loading at startup.
+CDS=$DIR/../classes/pizzastore.jsa
+if [ -f $CDS ]; then
+   CDS_OPTS="-XX:SharedArchiveFile=$CDS"
+else
+   CDS_OPTS="-XX:ArchiveClassesAtExit=$CDS"
+fi
+
+#Use your database name, port number and login
+#Extra JVM options (e.g. -Dpizzastore.replicas=localhost:5433/mydb) go in $PIZZASTORE_OPTS
+java $CDS_OPTS $PIZZASTORE_OPTS -cp $DIR/../classes/pizzastore.jar:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Runs the HTTP/JSON front end of the last build (see scripts/compile.sh).
+# Listens on -Dpizzastore.http.host / -Dpizzastore.http.port, default 127.0.0.1:8080.
+java $PIZZASTORE_OPTS -cp $DIR/../classes/pizzastore.jar:$DIR/../lib/pg73jdbc3.jar PizzaStoreServer $USER"_project_phase_3_DB" $PGPORT $USER
@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Runs the concurrency stress harness of the last build (see scripts/compile.sh)
+# against the local database. Options: --threads 16,64,128 --seconds 30
+# --users 200 --mix 70,25,5 --keep true --seed S
+java $PIZZASTORE_OPTS -cp $DIR/../classes/pizzastore.jar:$DIR/../lib/pg73jdbc3.jar StressHarness $USER"_project_phase_3_DB" $PGPORT $USER "$@"
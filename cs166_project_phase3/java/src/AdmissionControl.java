@@ -0,0 +1,202 @@
+/*
+ * Admission Control
+ * =================
+ *
+ * Per-login and per-store rate limits in front of the PizzaStoreService
+ * operations, so one user or terminal in a loop cannot starve the rest.
+ *
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets keyed by login and by storeID. Each operation costs a number
+ * of tokens (a history scan costs more than a menu view); a login refills
+ * -Dpizzastore.admission.loginRate tokens per second up to
+ * -Dpizzastore.admission.loginBurst, and a store likewise with storeRate and
+ * storeBurst. Placing an order is charged to both the login and the store.
+ *
+ * Each bucket is one AtomicLong holding the time at which it would be full
+ * again (the generic cell rate algorithm), updated with compare-and-set, so
+ * admission takes no lock. Admitted and rejected calls are counted per
+ * operation.
+ *
+ * It is on by default; -Dpizzastore.admission.enabled=false turns it off.
+ *
+ *    -Dpizzastore.admission.loginRate=20   -Dpizzastore.admission.loginBurst=100
+ *    -Dpizzastore.admission.storeRate=50   -Dpizzastore.admission.storeBurst=200
+ */
+public class AdmissionControl {
+
+   /**
+    * Rate limited operations and their cost in tokens.
+    */
+   public enum Operation {
+      MENU(1), STORES(1), LOGIN(1), CREATE_USER(5), PLACE_ORDER(5), ORDER_HISTORY(10),
+      RECENT_ORDERS(1), ORDER_DETAIL(2), UPDATE(2), PREP_BOARD(1);
+
+      public final int cost;
+
+      Operation(int cost) {
+         this.cost = cost;
+      }
+   }//end Operation
+
+   /**
+    * A call refused because its login or store is over its rate.
+    */
+   public static class Rejected extends PizzaStoreService.ServiceException {
+      private static final long serialVersionUID = 1L;
+
+      public final long retryAfterMs;
+
+      public Rejected(String message, long retryAfterMs) {
+         super(message);
+         this.retryAfterMs = retryAfterMs;
+      }
+   }//end Rejected
+
+   // buckets are swept of full (idle) entries once there are this many
+   private static final int SWEEP_AT = 100000;
+
+   private final boolean _enabled = !"false".equals(System.getProperty("pizzastore.admission.enabled"));
+   private final Limit _login = new Limit(Integer.getInteger("pizzastore.admission.loginRate", 20),
+                                          Integer.getInteger("pizzastore.admission.loginBurst", 100));
+   private final Limit _store = new Limit(Integer.getInteger("pizzastore.admission.storeRate", 50),
+                                          Integer.getInteger("pizzastore.admission.storeBurst", 200));
+
+   private final LongAdder[] _admitted = new LongAdder[Operation.values().length];
+   private final LongAdder[] _rejected = new LongAdder[Operation.values().length];
+
+   public AdmissionControl() {
+      for (int i = 0; i < this._admitted.length; ++i) {
+         this._admitted[i] = new LongAdder();
+         this._rejected[i] = new LongAdder();
+      }
+   }//end AdmissionControl
+
+   /**
+    * Charges an operation to a login.
+    *
+    * @param op the operation
+    * @param login the user calling, or null for anonymous calls (not limited)
+    * @throws Rejected when the login is over its rate
+    */
+   public void admit(Operation op, String login) throws Rejected {
+      admit(op, login, -1);
+   }
+
+   /**
+    * Charges an operation to a login and a store.
+    *
+    * @param op the operation
+    * @param login the user calling, or null
+    * @param storeID the store the operation is for, or -1
+    * @throws Rejected when the login or the store is over its rate
+    */
+   public void admit(Operation op, String login, int storeID) throws Rejected {
+      if (!this._enabled)
+         return;
+      long now = System.nanoTime();
+      if (login != null) {
+         long wait = this._login.acquire(login, op.cost, now);
+         if (wait > 0)
+            throw reject(op, "Too many requests from " + login, wait);
+      }
+      if (storeID >= 0) {
+         long wait = this._store.acquire(Integer.valueOf(storeID), op.cost, now);
+         if (wait > 0) {
+            if (login != null)
+               this._login.refund(login, op.cost);
+            throw reject(op, "Too many requests for store " + storeID, wait);
+         }
+      }
+      this._admitted[op.ordinal()].increment();
+   }//end admit
+
+   private Rejected reject(Operation op, String message, long waitNanos) {
+      this._rejected[op.ordinal()].increment();
+      long ms = Math.max(1, waitNanos / 1000000);
+      return new Rejected(message + ", retry in " + ms + " ms", ms);
+   }
+
+   /**
+    * @param op an operation
+    * @return calls of op admitted so far
+    */
+   public long admitted(Operation op) {
+      return this._admitted[op.ordinal()].sum();
+   }
+
+   /**
+    * @param op an operation
+    * @return calls of op rejected so far
+    */
+   public long rejected(Operation op) {
+      return this._rejected[op.ordinal()].sum();
+   }
+
+   /**
+    * @return one "operation admitted rejected" line per operation
+    */
+   public String report() {
+      StringBuilder sb = new StringBuilder();
+      for (Operation op : Operation.values())
+         sb.append(String.format("%-14s %10d %10d%n", op, admitted(op), rejected(op)));
+      return sb.toString();
+   }
+
+   // the buckets of one kind of key
+   private static class Limit {
+      final long nanosPerToken;
+      final long burstNanos;
+      final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<Object, AtomicLong>();
+
+      Limit(int perSecond, int burst) {
+         this.nanosPerToken = 1000000000L / Math.max(1, perSecond);
+         this.burstNanos = this.nanosPerToken * Math.max(1, burst);
+      }
+
+      // returns 0 when admitted, else the nanoseconds until cost tokens are available
+      long acquire(Object key, int cost, long now) {
+         AtomicLong full = this.buckets.get(key);
+         if (full == null) {
+            if (this.buckets.size() >= SWEEP_AT)
+               sweep(now);
+            full = this.buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+         }
+         long charge = cost * this.nanosPerToken;
+         while (true) {
+            long at = full.get();
+            // a bucket full since before now starts from now
+            long base = at == Long.MIN_VALUE || at - now < 0 ? now : at;
+            long next = base + charge;
+            if (next - now > this.burstNanos)
+               return next - now - this.burstNanos;
+            if (full.compareAndSet(at, next))
+               return 0;
+         }//end while
+      }//end acquire
+
+      void refund(Object key, int cost) {
+         AtomicLong full = this.buckets.get(key);
+         if (full != null)
+            full.addAndGet(-cost * this.nanosPerToken);
+      }
+
+      // drops buckets that are full again; they start over as new ones
+      void sweep(long now) {
+         Iterator<Map.Entry<Object, AtomicLong>> it = this.buckets.entrySet().iterator();
+         while (it.hasNext()) {
+            long at = it.next().getValue().get();
+            if (at == Long.MIN_VALUE || at - now < 0)
+               it.remove();
+         }
+      }//end sweep
+   }//end Limit
+
+}//end AdmissionControl
@@ -0,0 +1,238 @@
+/*
+ * Asynchronous Data Access
+ * ========================
+ *
+ * CompletableFuture based lookups so independent queries of one screen run
+ * at the same time.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the read-only data access of PizzaStore on a dedicated bounded
+ * executor, one pooled connection per running task. Callers start the
+ * lookups a screen needs, then join them, so the screen waits for the slowest
+ * query instead of the sum of all of them. Results go through the same
+ * caches as the synchronous paths.
+ *
+ * The order reads (orderHistory, recentOrders, orderDetail) call a pooled
+ * PizzaStoreService, so they keep its permission checks, rate limits and
+ * shard routing; join them with joinOperation() to get its
+ * ServiceException back.
+ *
+ * The executor has one thread per pooled connection and a bounded queue
+ * (-Dpizzastore.async.queue, default 256); when the queue is full the
+ * returned future fails with a RejectedExecutionException.
+ */
+public class AsyncPizzaStore {
+
+   /**
+    * A unit of work run on a pooled connection.
+    */
+   public interface SqlTask<T> {
+      T run(Connection c) throws SQLException;
+   }
+
+   private final PizzaStore _esql;
+   private final ConnectionPool _pool;
+   private final ThreadPoolExecutor _executor;
+   // the order reads borrow a connection per statement through it
+   private final PizzaStoreService _service;
+
+   /**
+    * A service operation.
+    */
+   private interface Operation<T> {
+      T run() throws PizzaStoreService.ServiceException, SQLException;
+   }
+
+   /**
+    * @param esql the store whose caches are filled
+    * @param pool the connections the tasks run on
+    */
+   public AsyncPizzaStore(PizzaStore esql, ConnectionPool pool) {
+      this._esql = esql;
+      this._pool = pool;
+      this._service = new PizzaStoreService(esql, true);
+      int threads = Math.max(1, pool.size());
+      final AtomicInteger n = new AtomicInteger();
+      this._executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+         new ArrayBlockingQueue<Runnable>(Integer.getInteger("pizzastore.async.queue", 256)),
+         new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "pizzastore-db-" + n.incrementAndGet());
+               t.setDaemon(true);
+               return t;
+            }
+         });
+   }//end AsyncPizzaStore
+
+   /**
+    * Runs a task on a pooled connection.
+    *
+    * @param task the work to run
+    * @return the task's result
+    */
+   public <T> CompletableFuture<T> submit(final SqlTask<T> task) {
+      try {
+         return CompletableFuture.supplyAsync(() -> {
+            try {
+               return this._pool.run(task);
+            } catch (SQLException e) {
+               throw new CompletionException(e);
+            }
+         }, this._executor);
+      } catch (RejectedExecutionException e) {
+         CompletableFuture<T> failed = new CompletableFuture<T>();
+         failed.completeExceptionally(e);
+         return failed;
+      }//end try
+   }//end submit
+
+   // runs a service operation on the executor; it borrows its own connections, so not inside pool.run
+   private <T> CompletableFuture<T> call(final Operation<T> op) {
+      try {
+         return CompletableFuture.supplyAsync(() -> {
+            try {
+               return op.run();
+            } catch (PizzaStoreService.ServiceException | SQLException e) {
+               throw new CompletionException(e);
+            }
+         }, this._executor);
+      } catch (RejectedExecutionException e) {
+         CompletableFuture<T> failed = new CompletableFuture<T>();
+         failed.completeExceptionally(e);
+         return failed;
+      }//end try
+   }//end call
+
+   // runs a read-only query
+   private CompletableFuture<List<List<String>>> query(final String query) {
+      return submit(c -> this._esql.executeQueryAndReturnResult(c, query));
+   }
+
+   /**
+    * @return the store directory, loaded if needed
+    */
+   public CompletableFuture<StoreDirectory.Snapshot> stores() {
+      StoreDirectory.Snapshot s = this._esql.stores().peek();
+      if (s != null)
+         return CompletableFuture.completedFuture(s);
+      final long generation = this._esql.stores().generation();
+      return query(StoreDirectory.QUERY).thenApply(rows -> this._esql.stores().load(rows, generation));
+   }//end stores
+
+   /**
+    * @return every menu item keyed by name, loaded if needed
+    */
+   public CompletableFuture<Map<String, List<String>>> menu() {
+      Map<String, List<String>> items = this._esql.menu().peek();
+      if (items != null)
+         return CompletableFuture.completedFuture(items);
+      final long generation = this._esql.menu().generation();
+      return query(MenuCache.QUERY).thenApply(rows -> this._esql.menu().load(rows, generation));
+   }//end menu
+
+   /**
+    * PizzaStoreService.orderHistory() on the executor.
+    *
+    * @param viewer the user asking
+    * @param login the user whose orders are listed
+    * @return (orderID, orderTimestamp, orderStatus) rows
+    */
+   public CompletableFuture<List<List<String>>> orderHistory(final String viewer, final String login) {
+      return call(() -> this._service.orderHistory(viewer, login));
+   }
+
+   /**
+    * PizzaStoreService.recentOrders() on the executor.
+    *
+    * @param viewer the user asking
+    * @param login the user whose orders are listed
+    * @return the most recent orders, newest first
+    */
+   public CompletableFuture<List<RecentOrdersCache.Entry>> recentOrders(final String viewer, final String login) {
+      return call(() -> this._service.recentOrders(viewer, login));
+   }
+
+   /**
+    * PizzaStoreService.orderDetail() on the executor.
+    *
+    * @param viewer the user asking
+    * @param orderID the order
+    * @return the order, or null if it does not exist
+    */
+   public CompletableFuture<OrderDetail> orderDetail(final String viewer, final int orderID) {
+      return call(() -> this._service.orderDetail(viewer, orderID));
+   }
+
+   /**
+    * Waits for a future of a service operation and unwraps its failure.
+    *
+    * @param f a future returned by orderHistory, recentOrders or orderDetail
+    * @return its result
+    * @throws PizzaStoreService.ServiceException when the operation broke a business rule
+    * @throws java.sql.SQLException when the operation failed
+    */
+   public static <T> T joinOperation(CompletableFuture<T> f) throws PizzaStoreService.ServiceException, SQLException {
+      try {
+         return f.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for the database");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof CompletionException && cause.getCause() != null)
+            cause = cause.getCause();
+         if (cause instanceof PizzaStoreService.ServiceException)
+            throw (PizzaStoreService.ServiceException) cause;
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException(cause.toString());
+      }//end try
+   }//end joinOperation
+
+   /**
+    * Waits for a future and unwraps its failure.
+    *
+    * @param f a future returned by this class
+    * @return its result
+    * @throws java.sql.SQLException when the task failed
+    */
+   public static <T> T join(CompletableFuture<T> f) throws SQLException {
+      try {
+         return f.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for the database");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof CompletionException && cause.getCause() != null)
+            cause = cause.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException(cause.toString());
+      }//end try
+   }//end join
+
+   /**
+    * Stops the executor; queued tasks are dropped.
+    */
+   public void shutdown() {
+      this._executor.shutdownNow();
+   }
+
+}//end AsyncPizzaStore
@@ -0,0 +1,361 @@
+/*
+ * Audit Trail
+ * ===========
+ *
+ * Records who changed users, the menu and order statuses, without making
+ * those operations wait for the record to be written.
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * record() puts an event into a bounded ring buffer with a compare-and-set
+ * and returns; it takes no lock and does no I/O. A consumer thread drains
+ * the buffer every -Dpizzastore.audit.flushMs (default 200) and writes up to
+ * -Dpizzastore.audit.batch (default 200) events at a time:
+ *
+ *    -Dpizzastore.audit=table   one multi-row INSERT into AuditLog
+ *                               (sql/src/audit_log.sql), on a connection of
+ *                               its own; a batch the database refuses goes
+ *                               to the files below instead
+ *    -Dpizzastore.audit=file    to segment files audit-<time>.log in
+ *                               -Dpizzastore.audit.dir (default audit), a new
+ *                               one every -Dpizzastore.audit.segmentKB
+ *                               (default 4096), keeping the last
+ *                               -Dpizzastore.audit.segments (default 20)
+ *
+ * The buffer holds -Dpizzastore.audit.capacity events (default 8192, rounded
+ * up to a power of two). When it is full -Dpizzastore.audit.policy decides:
+ * drop (the default) discards the event and counts it, and the count is
+ * written to the trail as an audit.dropped event; block waits for space up
+ * to -Dpizzastore.audit.blockMs (default 1000), then drops.
+ */
+public class AuditTrail {
+
+   /**
+    * One audited change.
+    */
+   public static class Event {
+      public final long at;
+      public final String actor;
+      public final String action;
+      public final String target;
+      public final String detail;
+
+      public Event(long at, String actor, String action, String target, String detail) {
+         this.at = at;
+         this.actor = actor;
+         this.action = action;
+         this.target = target;
+         this.detail = detail;
+      }
+   }//end Event
+
+   private static final SimpleDateFormat TIME = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+   // the ring: slot i is free for the producer of sequence s when _sequence[i] == s,
+   // and holds the event of s for the consumer when _sequence[i] == s + 1
+   private final int _mask;
+   private final AtomicReferenceArray<Event> _slots;
+   private final AtomicLongArray _sequence;
+   private final AtomicLong _tail = new AtomicLong();
+   // touched by the consumer thread only
+   private long _head = 0;
+
+   private final boolean _block = "block".equals(System.getProperty("pizzastore.audit.policy"));
+   private final long _blockNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("pizzastore.audit.blockMs", 1000L));
+   private final long _flushNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("pizzastore.audit.flushMs", 200L));
+   private final int _batch = Integer.getInteger("pizzastore.audit.batch", 200);
+   private final LongAdder _dropped = new LongAdder();
+   private final LongAdder _written = new LongAdder();
+
+   // table sink, null to write files only
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private Connection _conn = null;
+
+   // file sink
+   private final File _dir = new File(System.getProperty("pizzastore.audit.dir", "audit"));
+   private final long _segmentBytes = Integer.getInteger("pizzastore.audit.segmentKB", 4096) * 1024L;
+   private final int _segments = Math.max(1, Integer.getInteger("pizzastore.audit.segments", 20));
+   private Writer _out = null;
+   private long _segmentWritten = 0;
+
+   private final Thread _thread;
+   private volatile boolean _running = true;
+
+   /**
+    * Starts the consumer thread.
+    *
+    * @param capacity the number of events the buffer holds, rounded up to a power of two
+    * @param url the JDBC connection URL of the database holding AuditLog, or null to write files
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public AuditTrail(int capacity, String url, String user, String passwd) {
+      int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+      this._mask = size - 1;
+      this._slots = new AtomicReferenceArray<Event>(size);
+      this._sequence = new AtomicLongArray(size);
+      for (int i = 0; i < size; ++i)
+         this._sequence.set(i, i);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            consume();
+         }
+      }, "pizzastore-audit");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end AuditTrail
+
+   /**
+    * @param url the JDBC connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @return the trail configured by -Dpizzastore.audit, or null if off
+    */
+   public static AuditTrail fromProperties(String url, String user, String passwd) {
+      String sink = System.getProperty("pizzastore.audit");
+      int capacity = Integer.getInteger("pizzastore.audit.capacity", 8192);
+      if ("table".equals(sink))
+         return new AuditTrail(capacity, url, user, passwd);
+      if ("file".equals(sink))
+         return new AuditTrail(capacity, null, null, null);
+      return null;
+   }
+
+   /**
+    * Queues an event. Never does I/O; may wait for space under the block
+    * policy.
+    *
+    * @param actor the login that made the change
+    * @param action what was done, e.g. updateOrderStatus
+    * @param target what it was done to, e.g. the orderID
+    * @param detail the new values
+    * @return false when the event was dropped
+    */
+   public boolean record(String actor, String action, String target, String detail) {
+      Event e = new Event(System.currentTimeMillis(), actor, action, target, detail);
+      if (offer(e))
+         return true;
+      if (this._block) {
+         long deadline = System.nanoTime() + this._blockNanos;
+         while (System.nanoTime() < deadline && this._running) {
+            LockSupport.parkNanos(100000);
+            if (offer(e))
+               return true;
+         }
+      }//end if
+      this._dropped.increment();
+      return false;
+   }//end record
+
+   private boolean offer(Event e) {
+      while (true) {
+         long tail = this._tail.get();
+         int i = (int) tail & this._mask;
+         long sequence = this._sequence.get(i);
+         if (sequence == tail) {
+            if (this._tail.compareAndSet(tail, tail + 1)) {
+               this._slots.set(i, e);
+               // publishes the event to the consumer
+               this._sequence.set(i, tail + 1);
+               return true;
+            }
+         } else if (sequence < tail) {
+            // the slot still holds an event from one lap ago: full
+            return false;
+         }
+      }//end while
+   }//end offer
+
+   private Event poll() {
+      int i = (int) this._head & this._mask;
+      if (this._sequence.get(i) != this._head + 1)
+         return null;
+      Event e = this._slots.get(i);
+      this._slots.set(i, null);
+      // frees the slot for the producer one lap ahead
+      this._sequence.set(i, this._head + this._mask + 1);
+      ++this._head;
+      return e;
+   }//end poll
+
+   private void consume() {
+      List<Event> batch = new ArrayList<Event>(this._batch);
+      long reported = 0;
+      while (true) {
+         boolean running = this._running;
+         for (Event e = poll(); e != null; e = poll()) {
+            batch.add(e);
+            if (batch.size() == this._batch) {
+               write(batch);
+               batch.clear();
+            }
+         }//end for
+         long dropped = this._dropped.sum();
+         if (dropped > reported) {
+            batch.add(new Event(System.currentTimeMillis(), "-", "audit.dropped", "-",
+                                String.valueOf(dropped - reported)));
+            reported = dropped;
+         }
+         if (!batch.isEmpty()) {
+            write(batch);
+            batch.clear();
+         }
+         if (!running)
+            break;
+         LockSupport.parkNanos(this._flushNanos);
+      }//end while
+      closeConnection();
+      closeSegment();
+   }//end consume
+
+   private void write(List<Event> batch) {
+      if (this._url != null) {
+         try {
+            insert(batch);
+            this._written.add(batch.size());
+            return;
+         } catch (SQLException e) {
+            System.err.println("Audit trail: " + e.getMessage() + ", writing to " + this._dir);
+            closeConnection();
+         }
+      }//end if
+      try {
+         append(batch);
+         this._written.add(batch.size());
+      } catch (IOException e) {
+         System.err.println("Audit trail: " + e.getMessage() + ", " + batch.size() + " events lost");
+         closeSegment();
+      }
+   }//end write
+
+   private void insert(List<Event> batch) throws SQLException {
+      if (this._conn == null)
+         this._conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      StringBuilder sql = new StringBuilder("INSERT INTO AuditLog (at, actor, action, target, detail) VALUES ");
+      for (Event e : batch)
+         sql.append("('").append(new Timestamp(e.at)).append("', ").append(literal(e.actor)).append(", ")
+            .append(literal(e.action)).append(", ").append(literal(e.target)).append(", ")
+            .append(literal(e.detail)).append("),");
+      sql.setCharAt(sql.length() - 1, ';');
+      Statement stmt = this._conn.createStatement();
+      try {
+         stmt.executeUpdate(sql.toString());
+      } finally {
+         stmt.close();
+      }
+   }//end insert
+
+   private static String literal(String s) {
+      return s == null ? "NULL" : "'" + s.replace("'", "''") + "'";
+   }
+
+   private void append(List<Event> batch) throws IOException {
+      StringBuilder lines = new StringBuilder();
+      synchronized (TIME) {
+         for (Event e : batch)
+            lines.append(TIME.format(new Date(e.at))).append('\t').append(field(e.actor)).append('\t')
+                 .append(field(e.action)).append('\t').append(field(e.target)).append('\t')
+                 .append(field(e.detail)).append('\n');
+      }
+      if (this._out == null || this._segmentWritten + lines.length() > this._segmentBytes) {
+         closeSegment();
+         this._dir.mkdirs();
+         this._out = new FileWriter(new File(this._dir, "audit-" + System.currentTimeMillis() + ".log"), true);
+         this._segmentWritten = 0;
+         prune();
+      }
+      this._out.write(lines.toString());
+      this._out.flush();
+      this._segmentWritten += lines.length();
+   }//end append
+
+   // one event per line, so tabs and line breaks inside a field are escaped
+   private static String field(String s) {
+      return s == null ? "" : s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+   }
+
+   // deletes the oldest segments over the limit
+   private void prune() {
+      File[] files = this._dir.listFiles((d, name) -> name.startsWith("audit-") && name.endsWith(".log"));
+      if (files == null || files.length <= this._segments)
+         return;
+      Arrays.sort(files);
+      for (int i = 0; i < files.length - this._segments; ++i)
+         files[i].delete();
+   }//end prune
+
+   private void closeConnection() {
+      try {
+         if (this._conn != null)
+            this._conn.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      this._conn = null;
+   }
+
+   private void closeSegment() {
+      try {
+         if (this._out != null)
+            this._out.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+      this._out = null;
+   }
+
+   /**
+    * @return the events dropped because the buffer was full
+    */
+   public long dropped() {
+      return this._dropped.sum();
+   }
+
+   /**
+    * @return the events written so far
+    */
+   public long written() {
+      return this._written.sum();
+   }
+
+   /**
+    * Stops the consumer after it has written what is queued.
+    */
+   public void close() {
+      this._running = false;
+      LockSupport.unpark(this._thread);
+      try {
+         this._thread.join(5000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+}//end AuditTrail
@@ -0,0 +1,227 @@
+/*
+ * Cache Bus
+ * =========
+ *
+ * Keeps the menu, store and role caches of several PizzaStore processes
+ * coherent through Postgres LISTEN/NOTIFY.
+ *
+ */
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Triggers on Items, Store and Users (sql/src/cache_bus.sql) append a
+ * versioned message to the CacheInvalidation table for every change and
+ * NOTIFY pizzastore_cache, whoever makes the change. Each process LISTENs
+ * on its own connection and, when notified, reads the messages it has not
+ * applied yet and invalidates its caches: the whole menu or store directory,
+ * or the role of one login. The caches refuse a load that raced with an
+ * invalidation, so a reader never puts back what was just dropped.
+ *
+ * The driver only hands out notifications that arrived with a query
+ * result, so the bus runs a trivial query every -Dpizzastore.cacheBus.pollMs
+ * (default 500) to pick them up. Messages are read by version and also by
+ * time (the last minute), since a transaction that took its version early
+ * may commit after a later one; versions already applied are skipped. After
+ * the connection fails every cache is dropped, because messages may have
+ * been missed, and the bus reconnects.
+ *
+ *    -Dpizzastore.cacheBus=true
+ */
+public class CacheBus {
+
+   public static final String CHANNEL = "pizzastore_cache";
+
+   // messages are kept this long in CacheInvalidation
+   private static final String KEEP = "1 hour";
+   private static final long PRUNE_EVERY_MILLIS = 600000;
+   // how long an applied version is remembered, longer than the time window read
+   private static final long APPLIED_MILLIS = 120000;
+
+   private final PizzaStore _esql;
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final long _pollMillis = Long.getLong("pizzastore.cacheBus.pollMs", 500L);
+   private final Thread _thread;
+   private volatile boolean _running = true;
+
+   // touched by the bus thread only
+   private Connection _conn = null;
+   private long _version = 0;
+   private long _prunedAt = 0;
+   private final LinkedHashMap<Long, Long> _applied = new LinkedHashMap<Long, Long>();
+
+   /**
+    * Connects, starts listening and starts the bus thread.
+    *
+    * @param esql the store whose caches are kept coherent
+    * @param url the JDBC connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to connect or to listen
+    */
+   public CacheBus(PizzaStore esql, String url, String user, String passwd) throws SQLException {
+      this._esql = esql;
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      connect();
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            loop();
+         }
+      }, "pizzastore-cache-bus");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end CacheBus
+
+   /**
+    * @param esql the store whose caches are kept coherent
+    * @param url the JDBC connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @return the bus, or null unless -Dpizzastore.cacheBus=true
+    * @throws java.sql.SQLException when failed to connect or to listen
+    */
+   public static CacheBus fromProperties(PizzaStore esql, String url, String user, String passwd)
+         throws SQLException {
+      return Boolean.getBoolean("pizzastore.cacheBus") ? new CacheBus(esql, url, user, passwd) : null;
+   }
+
+   private void connect() throws SQLException {
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      try {
+         Statement stmt = c.createStatement();
+         stmt.executeUpdate("LISTEN " + CHANNEL);
+         ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM CacheInvalidation");
+         rs.next();
+         this._version = rs.getLong(1);
+         stmt.close();
+      } catch (SQLException e) {
+         c.close();
+         throw e;
+      }//end try
+      this._conn = c;
+   }//end connect
+
+   private void loop() {
+      while (this._running) {
+         try {
+            Thread.sleep(this._pollMillis);
+            if (this._conn == null) {
+               connect();
+               // anything may have changed while disconnected
+               invalidateAll();
+            }
+            if (poll())
+               apply();
+            long now = System.currentTimeMillis();
+            if (now - this._prunedAt > PRUNE_EVERY_MILLIS) {
+               this._prunedAt = now;
+               update("DELETE FROM CacheInvalidation WHERE at < now() - interval '" + KEEP + "'");
+            }
+         } catch (InterruptedException e) {
+            break;
+         } catch (Exception e) {
+            if (!this._running)
+               break;
+            System.err.println("Cache bus: " + e.getMessage());
+            invalidateAll();
+            close(this._conn);
+            this._conn = null;
+         }//end try
+      }//end while
+      close(this._conn);
+   }//end loop
+
+   // true when a notification arrived since the last poll
+   private boolean poll() throws Exception {
+      Statement stmt = this._conn.createStatement();
+      stmt.executeQuery("SELECT 1").close();
+      stmt.close();
+      Method get = this._conn.getClass().getMethod("getNotifications");
+      Object notifications = get.invoke(this._conn);
+      return notifications != null && Array.getLength(notifications) > 0;
+   }//end poll
+
+   private void apply() throws SQLException {
+      Statement stmt = this._conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(
+            "SELECT version, entity, key FROM CacheInvalidation WHERE version > " + this._version +
+            " OR at > now() - interval '1 minute' ORDER BY version");
+         long now = System.currentTimeMillis();
+         while (rs.next()) {
+            long version = rs.getLong(1);
+            if (this._applied.containsKey(version))
+               continue;
+            invalidate(rs.getString(2), rs.getString(3));
+            this._applied.put(version, now);
+            this._version = Math.max(this._version, version);
+         }//end while
+      } finally {
+         stmt.close();
+      }
+      long now = System.currentTimeMillis();
+      Iterator<Map.Entry<Long, Long>> it = this._applied.entrySet().iterator();
+      while (it.hasNext() && now - it.next().getValue() > APPLIED_MILLIS)
+         it.remove();
+   }//end apply
+
+   private void invalidate(String entity, String key) {
+      entity = entity.trim();
+      if (entity.equals("items")) {
+         this._esql.menu().invalidate();
+      } else if (entity.equals("store")) {
+         this._esql.stores().invalidate();
+      } else if (entity.equals("users")) {
+         if (key == null)
+            this._esql.roles().invalidateAll();
+         else
+            this._esql.roles().invalidate(key);
+      }
+   }//end invalidate
+
+   private void invalidateAll() {
+      this._esql.menu().invalidate();
+      this._esql.stores().invalidate();
+      this._esql.roles().invalidateAll();
+   }
+
+   private void update(String sql) throws SQLException {
+      Statement stmt = this._conn.createStatement();
+      try {
+         stmt.executeUpdate(sql);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private static void close(Connection c) {
+      try {
+         if (c != null)
+            c.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * Stops the bus thread and closes its connection.
+    */
+   public void close() {
+      this._running = false;
+      this._thread.interrupt();
+   }
+
+}//end CacheBus
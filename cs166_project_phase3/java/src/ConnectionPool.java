@@ -0,0 +1,253 @@
+/*
+ * Connection Pool
+ * ===============
+ *
+ * Fixed size pool of physical connections to the primary database.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens every connection up front so no caller pays for a connect, and hands
+ * them out to background work (warm-up, concurrent lookups). The console
+ * session keeps using its own connection.
+ *
+ * A connection that comes back closed, or that failed while in use and no
+ * longer answers a trivial query, is dropped; borrow() opens a replacement
+ * as long as the pool is below its size, so the pool recovers by itself
+ * after a database restart or a network drop.
+ *
+ *    -Dpizzastore.pool.size=4
+ *    -Dpizzastore.pool.waitMs=5000
+ */
+public class ConnectionPool {
+
+   // how often a waiting borrow looks for room to open a replacement
+   private static final long RETRY_MILLIS = 100;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _size;
+   private final List<Connection> _all = new CopyOnWriteArrayList<Connection>();
+   private final BlockingQueue<Connection> _idle;
+   private final long _waitMillis;
+   // connections open or being opened, at most _size
+   private int _open = 0;
+   private volatile boolean _closed = false;
+
+   /**
+    * Opens size connections to the given URL.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param size the number of connections to open
+    * @throws java.sql.SQLException when a connection cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd, int size) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._size = size;
+      this._idle = new ArrayBlockingQueue<Connection>(Math.max(1, size));
+      this._waitMillis = Long.getLong("pizzastore.pool.waitMs", 5000L);
+      try {
+         for (int i = 0; i < size; ++i) {
+            Connection c = DriverManager.getConnection(url, user, passwd);
+            this._all.add(c);
+            this._idle.add(c);
+            ++this._open;
+         }//end for
+      } catch (SQLException e) {
+         close();
+         throw e;
+      }//end try
+   }//end ConnectionPool
+
+   /**
+    * Takes a connection out of the pool, waiting for one to be released if
+    * all are in use, or opening a new one in place of a dropped one. Every
+    * borrow must be paired with a release.
+    *
+    * @return an idle connection
+    * @throws java.sql.SQLException when no connection frees up in time, or a
+    *         replacement cannot be opened
+    */
+   public Connection borrow() throws SQLException {
+      long deadline = System.currentTimeMillis() + this._waitMillis;
+      try {
+         while (true) {
+            Connection c = this._idle.poll();
+            if (c == null)
+               c = reopen();
+            if (c != null)
+               return c;
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+               throw new SQLException("Connection pool exhausted after " + this._waitMillis + " ms");
+            c = this._idle.poll(Math.min(left, RETRY_MILLIS), TimeUnit.MILLISECONDS);
+            if (c != null)
+               return c;
+         }//end while
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted waiting for a connection");
+      }//end try
+   }//end borrow
+
+   // opens a connection if the pool is below its size, or returns null
+   private Connection reopen() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool closed");
+      synchronized (this) {
+         if (this._open >= this._size)
+            return null;
+         ++this._open;
+      }
+      try {
+         Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+         this._all.add(c);
+         return c;
+      } catch (SQLException e) {
+         synchronized (this) {
+            --this._open;
+         }
+         throw e;
+      }//end try
+   }//end reopen
+
+   /**
+    * Returns a borrowed connection to the pool, or drops it if it was closed.
+    *
+    * @param c the connection obtained from borrow()
+    */
+   public void release(Connection c) {
+      release(c, false);
+   }
+
+   /**
+    * Returns a borrowed connection to the pool. A closed connection, or one
+    * that failed and does not answer SELECT 1 any more, is dropped instead.
+    *
+    * @param c the connection obtained from borrow()
+    * @param failed true when a statement failed on it
+    */
+   public void release(Connection c, boolean failed) {
+      if (c == null)
+         return;
+      if (isClosed(c) || failed && !answers(c)) {
+         drop(c);
+         return;
+      }
+      this._idle.offer(c);
+   }//end release
+
+   /**
+    * Runs a task on a borrowed connection, releasing it as failed when the
+    * task throws.
+    *
+    * @param task the work to run
+    * @return the task's result
+    * @throws java.sql.SQLException when no connection is available or the task failed
+    */
+   public <T> T run(AsyncPizzaStore.SqlTask<T> task) throws SQLException {
+      Connection c = borrow();
+      boolean failed = true;
+      try {
+         T result = task.run(c);
+         failed = false;
+         return result;
+      } finally {
+         release(c, failed);
+      }
+   }//end run
+
+   private static boolean isClosed(Connection c) {
+      try {
+         return c.isClosed();
+      } catch (SQLException e) {
+         return true;
+      }
+   }
+
+   private static boolean answers(Connection c) {
+      try {
+         if (!c.getAutoCommit())
+            c.rollback();
+         Statement stmt = c.createStatement();
+         try {
+            stmt.executeQuery("SELECT 1;");
+         } finally {
+            stmt.close();
+         }
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }//end try
+   }//end answers
+
+   private void drop(Connection c) {
+      this._all.remove(c);
+      synchronized (this) {
+         --this._open;
+      }
+      try {
+         c.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end drop
+
+   /**
+    * Opens a connection to the pool's database that is not part of the
+    * pool, e.g. for a transaction that outlives the tasks run on the pool.
+    * The caller closes it.
+    *
+    * @return the new connection
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   public Connection open() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+
+   /**
+    * @return every connection of the pool, idle or not
+    */
+   public List<Connection> connections() {
+      return this._all;
+   }
+
+   /**
+    * @return the number of connections the pool holds when none is dropped
+    */
+   public int size() {
+      return this._size;
+   }
+
+   /**
+    * Closes every connection of the pool.
+    */
+   public void close() {
+      this._closed = true;
+      for (Connection c : this._all) {
+         try {
+            c.close();
+         } catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end for
+      this._all.clear();
+      this._idle.clear();
+   }//end close
+
+}//end ConnectionPool
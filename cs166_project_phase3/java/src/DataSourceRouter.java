@@ -0,0 +1,214 @@
+/*
+ * Read/Write Data Source Router
+ * =============================
+ *
+ * Routes read-only menu actions to a set of replica connections and keeps
+ * every write on the primary.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the primary connection together with zero or more replica
+ * connections. Reads are spread round-robin over the replicas whose
+ * replication lag is within the configured bound; anything else (no
+ * replicas, all replicas lagging or down, a recent write in this session)
+ * falls back to the primary. A replica that fails is closed and skipped for
+ * 30 seconds, then connected to again.
+ *
+ * Replicas are configured through system properties:
+ *    -Dpizzastore.replicas=host:port/dbname[,host:port/dbname...]
+ *    -Dpizzastore.replica.maxLagMs=5000
+ *    -Dpizzastore.replica.checkMs=1000
+ */
+public class DataSourceRouter {
+
+   // lag query run against a replica; 0 when it is a primary or fully replayed
+   private static final String LAG_QUERY =
+      "SELECT CASE WHEN NOT pg_is_in_recovery() " +
+      "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+      "ELSE COALESCE(EXTRACT(EPOCH FROM (now() - pg_last_xact_replay_timestamp())) * 1000, 0) END";
+
+   // how long a failed replica is skipped before it is tried again
+   private static final long RETRY_DOWN_MILLIS = 30000;
+
+   private final Connection _primary;
+   private final String _user;
+   private final String _passwd;
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final long _maxLagMillis;
+   private final long _checkMillis;
+   private int _next = 0;
+   private long _lastWriteMillis = 0;
+
+   private static class Replica {
+      final String url;
+      // null while down: closed when it fails, opened again when it is retried
+      Connection connection;
+      long checkedAt = 0;
+      long lagMillis = 0;
+      long downUntil = 0;
+
+      Replica(String url, Connection connection) {
+         this.url = url;
+         this.connection = connection;
+      }
+   }//end Replica
+
+   /**
+    * Creates a router over the given primary connection and connects to the
+    * replicas named in the pizzastore.replicas system property. Replicas that
+    * cannot be reached are reported and skipped.
+    *
+    * @param primary the primary (read/write) connection
+    * @param user the user name used to login to the replicas
+    * @param passwd the user login password
+    */
+   public DataSourceRouter(Connection primary, String user, String passwd) {
+      this._primary = primary;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxLagMillis = Long.getLong("pizzastore.replica.maxLagMs", 5000L);
+      this._checkMillis = Long.getLong("pizzastore.replica.checkMs", 1000L);
+
+      String spec = System.getProperty("pizzastore.replicas", "").trim();
+      if (spec.isEmpty())
+         return;
+      for (String target : spec.split(",")) {
+         target = target.trim();
+         if (target.isEmpty())
+            continue;
+         String url = target.startsWith("jdbc:") ? target : "jdbc:postgresql://" + target;
+         try {
+            this._replicas.add(new Replica(url, DriverManager.getConnection(url, user, passwd)));
+            System.err.println("Read replica: " + url);
+         } catch (SQLException e) {
+            System.err.println("Skipping read replica " + url + ": " + e.getMessage());
+         }//end try
+      }//end for
+   }//end DataSourceRouter
+
+   /**
+    * @return the connection every write must go through
+    */
+   public Connection forWrite() {
+      return this._primary;
+   }
+
+   /**
+    * Picks a connection for a read-only query. Returns the primary when no
+    * replica is healthy and within the lag bound, or when this session wrote
+    * recently enough that a replica might not have seen its own write yet.
+    *
+    * @return a replica connection or the primary
+    */
+   public synchronized Connection forRead() {
+      long now = System.currentTimeMillis();
+      if (this._replicas.isEmpty() || now - this._lastWriteMillis < this._maxLagMillis)
+         return this._primary;
+
+      for (int tried = 0; tried < this._replicas.size(); ++tried) {
+         Replica r = this._replicas.get(this._next);
+         this._next = (this._next + 1) % this._replicas.size();
+         if (r.downUntil > now)
+            continue;
+         if (r.connection == null && !reopen(r, now))
+            continue;
+         if (now - r.checkedAt >= this._checkMillis)
+            refreshLag(r, now);
+         if (r.downUntil <= now && r.lagMillis <= this._maxLagMillis)
+            return r.connection;
+      }//end for
+      return this._primary;
+   }//end forRead
+
+   /**
+    * Records that this session just wrote to the primary so the following
+    * reads stay on the primary for one staleness window.
+    */
+   public synchronized void noteWrite() {
+      this._lastWriteMillis = System.currentTimeMillis();
+   }
+
+   /**
+    * Marks the replica behind the given connection as down so reads skip it
+    * for a while. Does nothing for the primary.
+    *
+    * @param connection the connection a read failed on
+    */
+   public synchronized void markFailed(Connection connection) {
+      for (Replica r : this._replicas) {
+         if (r.connection == connection) {
+            down(r, System.currentTimeMillis());
+            System.err.println("Read replica " + r.url + " failed, using primary");
+         }
+      }//end for
+   }//end markFailed
+
+   /**
+    * @param connection a connection handed out by this router
+    * @return true if it is the primary connection
+    */
+   public boolean isPrimary(Connection connection) {
+      return connection == this._primary;
+   }
+
+   /**
+    * Closes every replica connection. The primary is left to its owner.
+    */
+   public synchronized void close() {
+      for (Replica r : this._replicas)
+         close(r);
+      this._replicas.clear();
+   }//end close
+
+   // skips the replica for a while; its connection may be dead, so it is dropped
+   private static void down(Replica r, long now) {
+      r.downUntil = now + RETRY_DOWN_MILLIS;
+      close(r);
+   }
+
+   private static void close(Replica r) {
+      try {
+         if (r.connection != null)
+            r.connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }//end try
+      r.connection = null;
+   }//end close
+
+   // a fresh connection to a replica whose backoff is over; false if it is still unreachable
+   private boolean reopen(Replica r, long now) {
+      try {
+         r.connection = DriverManager.getConnection(r.url, this._user, this._passwd);
+         r.checkedAt = 0;
+         return true;
+      } catch (SQLException e) {
+         r.downUntil = now + RETRY_DOWN_MILLIS;
+         System.err.println("Read replica " + r.url + " still unavailable: " + e.getMessage());
+         return false;
+      }//end try
+   }//end reopen
+
+   private void refreshLag(Replica r, long now) {
+      r.checkedAt = now;
+      try {
+         Statement stmt = r.connection.createStatement();
+         ResultSet rs = stmt.executeQuery(LAG_QUERY);
+         r.lagMillis = rs.next() ? (long) rs.getDouble(1) : Long.MAX_VALUE;
+         stmt.close();
+      } catch (SQLException e) {
+         down(r, now);
+         System.err.println("Read replica " + r.url + " unavailable: " + e.getMessage());
+      }//end try
+   }//end refreshLag
+
+}//end DataSourceRouter
@@ -0,0 +1,44 @@
+/*
+ * Item Type
+ * =========
+ *
+ * The kinds of menu item, stored as the item_type enum type.
+ *
+ */
+
+/**
+ * The kind of a menu item. The label is the value of the item_type enum in
+ * the database.
+ */
+public enum ItemType {
+   ENTREE("entree"), SIDES("sides"), DRINKS("drinks");
+
+   public final String label;
+
+   ItemType(String label) {
+      this.label = label;
+   }
+
+   /**
+    * @param label an item_type value, or a type typed by a user (any case,
+    *        surrounding blanks ignored)
+    * @return the type, or null if label is not one
+    */
+   public static ItemType of(String label) {
+      if (label == null)
+         return null;
+      for (ItemType t : values())
+         if (t.label.equals(label))
+            return t;
+      String l = label.trim();
+      for (ItemType t : values())
+         if (t.label.equalsIgnoreCase(l))
+            return t;
+      return null;
+   }//end of
+
+   public String toString() {
+      return this.label;
+   }
+
+}//end ItemType
@@ -0,0 +1,244 @@
+/*
+ * Json
+ * ====
+ *
+ * Just enough JSON for the HTTP front end: a parser for request bodies and a
+ * string quoter for responses.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * parse() returns a Map (objects, in key order), List, String, Long (integral
+ * numbers), Double, Boolean or null. Malformed input throws an
+ * IllegalArgumentException.
+ */
+public class Json {
+
+   private final String _s;
+   private int _pos = 0;
+
+   private Json(String s) {
+      this._s = s;
+   }
+
+   /**
+    * @param text a JSON document
+    * @return the parsed value
+    */
+   public static Object parse(String text) {
+      Json p = new Json(text);
+      Object value = p.value();
+      p.space();
+      if (p._pos != p._s.length())
+         throw p.error("trailing characters");
+      return value;
+   }//end parse
+
+   /**
+    * Appends s as a quoted JSON string.
+    *
+    * @param out the buffer to append to
+    * @param s the string, or null for a JSON null
+    * @return out
+    */
+   public static StringBuilder quote(StringBuilder out, String s) {
+      if (s == null)
+         return out.append("null");
+      out.append('"');
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  out.append(String.format("\\u%04x", (int) c));
+               else
+                  out.append(c);
+         }
+      }//end for
+      return out.append('"');
+   }//end quote
+
+   /**
+    * Appends a number with a fixed number of decimals and a decimal point,
+    * whatever the default locale.
+    *
+    * @param out the buffer to append to
+    * @param v the number; NaN and infinities become a JSON null
+    * @param decimals the digits after the point
+    * @return out
+    */
+   public static StringBuilder number(StringBuilder out, double v, int decimals) {
+      if (Double.isNaN(v) || Double.isInfinite(v))
+         return out.append("null");
+      return out.append(String.format(Locale.ROOT, "%." + decimals + "f", v));
+   }
+
+   /**
+    * Appends a numeric column value as the database returned it.
+    *
+    * @param out the buffer to append to
+    * @param s the value, or null (or NaN) for a JSON null
+    * @return out
+    */
+   public static StringBuilder number(StringBuilder out, String s) {
+      s = s == null ? "" : s.trim();
+      if (s.isEmpty() || s.equalsIgnoreCase("NaN") || s.endsWith("Infinity"))
+         return out.append("null");
+      return out.append(s);
+   }
+
+   private Object value() {
+      space();
+      if (this._pos >= this._s.length())
+         throw error("unexpected end");
+      char c = this._s.charAt(this._pos);
+      switch (c) {
+         case '{': return object();
+         case '[': return array();
+         case '"': return string();
+         case 't': return literal("true", Boolean.TRUE);
+         case 'f': return literal("false", Boolean.FALSE);
+         case 'n': return literal("null", null);
+         default:  return number();
+      }
+   }//end value
+
+   private Map<String, Object> object() {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      ++this._pos;
+      space();
+      if (peek() == '}') {
+         ++this._pos;
+         return map;
+      }
+      while (true) {
+         space();
+         if (peek() != '"')
+            throw error("expected a key");
+         String key = string();
+         space();
+         expect(':');
+         map.put(key, value());
+         space();
+         if (peek() == ',') {
+            ++this._pos;
+            continue;
+         }
+         expect('}');
+         return map;
+      }//end while
+   }//end object
+
+   private List<Object> array() {
+      List<Object> list = new ArrayList<Object>();
+      ++this._pos;
+      space();
+      if (peek() == ']') {
+         ++this._pos;
+         return list;
+      }
+      while (true) {
+         list.add(value());
+         space();
+         if (peek() == ',') {
+            ++this._pos;
+            continue;
+         }
+         expect(']');
+         return list;
+      }//end while
+   }//end array
+
+   private String string() {
+      StringBuilder sb = new StringBuilder();
+      ++this._pos;
+      while (this._pos < this._s.length()) {
+         char c = this._s.charAt(this._pos++);
+         if (c == '"')
+            return sb.toString();
+         if (c != '\\') {
+            sb.append(c);
+            continue;
+         }
+         if (this._pos >= this._s.length())
+            break;
+         char e = this._s.charAt(this._pos++);
+         switch (e) {
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+               if (this._pos + 4 > this._s.length())
+                  throw error("bad escape");
+               try {
+                  sb.append((char) Integer.parseInt(this._s.substring(this._pos, this._pos + 4), 16));
+               } catch (NumberFormatException ex) {
+                  throw error("bad escape");
+               }
+               this._pos += 4;
+               break;
+            default: sb.append(e);
+         }
+      }//end while
+      throw error("unterminated string");
+   }//end string
+
+   private Object number() {
+      int start = this._pos;
+      boolean integral = true;
+      while (this._pos < this._s.length()) {
+         char c = this._s.charAt(this._pos);
+         if (c == '.' || c == 'e' || c == 'E')
+            integral = false;
+         else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9')))
+            break;
+         ++this._pos;
+      }
+      String n = this._s.substring(start, this._pos);
+      try {
+         return integral ? (Object) Long.valueOf(n) : (Object) Double.valueOf(n);
+      } catch (NumberFormatException e) {
+         throw error("bad value");
+      }
+   }//end number
+
+   private Object literal(String word, Object value) {
+      if (!this._s.startsWith(word, this._pos))
+         throw error("bad value");
+      this._pos += word.length();
+      return value;
+   }
+
+   private void space() {
+      while (this._pos < this._s.length() && Character.isWhitespace(this._s.charAt(this._pos)))
+         ++this._pos;
+   }
+
+   private char peek() {
+      return this._pos < this._s.length() ? this._s.charAt(this._pos) : 0;
+   }
+
+   private void expect(char c) {
+      if (peek() != c)
+         throw error("expected '" + c + "'");
+      ++this._pos;
+   }
+
+   private IllegalArgumentException error(String what) {
+      return new IllegalArgumentException("Invalid JSON at " + this._pos + ": " + what);
+   }
+
+}//end Json
@@ -0,0 +1,529 @@
+/*
+ * Synthetic Load Generator
+ * ========================
+ *
+ * Builds production sized PizzaStore datasets and replays customer sessions
+ * against a database.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two commands:
+ *
+ *    gen    writes users, stores, orders and order items with skewed item
+ *           popularity and per-store order rates, as CSV files in the
+ *           layout of data/*.csv or as one COPY stream for psql.
+ *    replay runs CreateUser / LogIn / View Menu / Place Order / Update Order
+ *           Status sessions from many concurrent clients at a target rate
+ *           and reports throughput and latency percentiles per operation.
+ *
+ * Usage:
+ *    java LoadGenerator gen [--out dir|-] [--format csv|copy] [--users N]
+ *         [--stores N] [--orders N] [--items data/items.csv] [--seed S]
+ *    java LoadGenerator replay <dbname> <port> <user> [--clients N]
+ *         [--rate ops/s] [--seconds N] [--stores N] [--seed S]
+ */
+public class LoadGenerator {
+
+   // the operations of one replayed session, in order
+   private static final String[] OPS = {
+      "CreateUser", "LogIn", "viewMenu", "placeOrder", "updateOrderStatus"
+   };
+
+   private static final String[] CITIES = {
+      "San Diego,California", "Riverside,California", "Los Angeles,California",
+      "Spring,Texas", "Austin,Texas", "College Station,Texas", "Rockford,Illinois",
+      "Chicago,Illinois", "New York,New York", "Miami,Florida", "Seattle,Washington",
+      "Phoenix,Arizona", "Denver,Colorado", "Atlanta,Georgia", "Boston,Massachusetts"
+   };
+
+   private static final String[] STREETS = {
+      "Main Street", "Hallows Center", "Bunker Hill Avenue", "Lighthouse Bay Road",
+      "Portage Alley", "Oak Court", "Sunset Drive", "Pine Parkway", "Maple Lane"
+   };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length == 0) {
+         System.err.println("Usage: java LoadGenerator gen|replay [options]");
+         return;
+      }
+      Map<String, String> opts = options(args);
+      if (args[0].equals("gen"))
+         generate(opts);
+      else if (args[0].equals("replay") && args.length >= 4)
+         replay(args[1], args[2], args[3], opts);
+      else
+         System.err.println("Usage: java LoadGenerator gen|replay [options]");
+   }//end main
+
+   /*
+    * DATASET GENERATION
+    */
+
+   private static void generate(Map<String, String> opts) throws IOException {
+      int users = intOpt(opts, "users", 100000);
+      int stores = intOpt(opts, "stores", 1000);
+      int orders = intOpt(opts, "orders", 1000000);
+      String out = opts.containsKey("out") ? opts.get("out") : "-";
+      boolean copy = "copy".equals(opts.get("format"));
+      Random rnd = new Random(intOpt(opts, "seed", 166));
+
+      List<List<String>> items = readCsv(opts.containsKey("items") ? opts.get("items") : "data/items.csv");
+      String[] itemNames = new String[items.size()];
+      double[] itemPrices = new double[items.size()];
+      for (int i = 0; i < items.size(); ++i) {
+         itemNames[i] = items.get(i).get(0);
+         itemPrices[i] = Double.parseDouble(items.get(i).get(3));
+      }
+      // a few items sell far more than the rest
+      Zipf itemPick = new Zipf(itemNames.length, 1.1, rnd);
+      // busy downtown stores and quiet suburban ones
+      Zipf storePick = new Zipf(stores, 0.8, rnd);
+      // regulars order a lot, most users rarely
+      Zipf userPick = new Zipf(users, 0.9, rnd);
+
+      Sink sink = new Sink(out, copy);
+      SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+      sink.begin("users", "login,password,role,favoriteItems,phoneNum");
+      for (int u = 0; u < users; ++u) {
+         double r = rnd.nextDouble();
+         String role = r < 0.9 ? "customer" : r < 0.97 ? "driver" : "manager";
+         sink.row(login(u), "pw" + Integer.toHexString(rnd.nextInt()), role,
+                  itemNames[itemPick.next()],
+                  String.format("%03d-%03d-%04d", 200 + rnd.nextInt(800), rnd.nextInt(1000), rnd.nextInt(10000)));
+      }//end for
+      sink.end();
+
+      sink.begin("store", "storeID,address,city,state,isOpen,reviewScore");
+      for (int s = 1; s <= stores; ++s) {
+         String[] cityState = CITIES[rnd.nextInt(CITIES.length)].split(",");
+         sink.row(String.valueOf(s), (1 + rnd.nextInt(99999)) + " " + STREETS[rnd.nextInt(STREETS.length)],
+                  cityState[0], cityState[1], rnd.nextDouble() < 0.8 ? "yes" : "no",
+                  String.valueOf(1 + rnd.nextInt(5)));
+      }//end for
+      sink.end();
+
+      // orders spread over the last year, clustered around lunch and dinner
+      long now = System.currentTimeMillis();
+      long yearMillis = 365L * 24 * 3600 * 1000;
+      // order items are spooled to disk so memory stays flat for any --orders
+      File spool = File.createTempFile("itemsinorder", ".tsv");
+      spool.deleteOnExit();
+      PrintWriter lines = new PrintWriter(new FileWriter(spool));
+      long lineTotal = 0;
+      sink.begin("foodorder", "orderID,login,storeID,totalPrice,\"orderTimestamp\",orderStatus");
+      for (int o = 0; o < orders; ++o) {
+         int orderID = 10000 + o;
+         long day = now - yearMillis + (yearMillis * o / Math.max(1, orders));
+         day -= day % (24L * 3600 * 1000);
+         double hour = rnd.nextDouble() < 0.5 ? 12 + rnd.nextGaussian() : 18.5 + rnd.nextGaussian() * 1.5;
+         long ts = day + (long) (Math.max(0, Math.min(23.99, hour)) * 3600 * 1000);
+
+         int lineCount = 1 + Math.min(4, (int) (-Math.log(1 - rnd.nextDouble()) * 1.2));
+         boolean[] used = new boolean[itemNames.length];
+         double total = 0;
+         for (int l = 0; l < lineCount; ++l) {
+            int item = itemPick.next();
+            if (used[item])
+               continue;
+            used[item] = true;
+            int qty = 1 + (rnd.nextDouble() < 0.25 ? 1 + rnd.nextInt(2) : 0);
+            total += itemPrices[item] * qty;
+            lines.println(orderID + "\t" + itemNames[item] + "\t" + qty);
+            ++lineTotal;
+         }//end for
+         String status = now - ts > 3600 * 1000 ? "complete" : "incomplete";
+         sink.row(String.valueOf(orderID), login(userPick.next()), String.valueOf(1 + storePick.next()),
+                  String.format("%.2f", total), fmt.format(new Date(ts)), status);
+      }//end for
+      sink.end();
+
+      sink.begin("itemsinorder", "orderID,itemName,quantity");
+      lines.close();
+      BufferedReader spooled = new BufferedReader(new FileReader(spool));
+      for (String line = spooled.readLine(); line != null; line = spooled.readLine())
+         sink.row(line.split("\t"));
+      spooled.close();
+      spool.delete();
+      sink.end();
+
+      sink.finish(10000 + orders);
+      System.err.printf("Generated %d users, %d stores, %d orders, %d order items\n",
+                        users, stores, orders, lineTotal);
+   }//end generate
+
+   private static String login(int u) {
+      return "user" + u;
+   }
+
+   /**
+    * Writes tables either as CSV files (same headers as data/*.csv) or as a
+    * single COPY ... FROM stdin stream that can be piped into psql.
+    */
+   private static class Sink {
+      private final String _out;
+      private final boolean _copy;
+      private PrintWriter _stream = null;
+      private PrintWriter _w = null;
+
+      Sink(String out, boolean copy) throws IOException {
+         this._out = out;
+         this._copy = copy;
+         if (copy) {
+            this._stream = out.equals("-") ? new PrintWriter(new OutputStreamWriter(System.out), false)
+                                           : new PrintWriter(new FileWriter(out));
+            // the orderID trigger would renumber rows and break ItemsInOrder
+            this._stream.println("ALTER TABLE FoodOrder DISABLE TRIGGER USER;");
+         }
+      }
+
+      void begin(String table, String header) throws IOException {
+         if (this._copy) {
+            this._w = this._stream;
+            this._w.println("COPY " + table + " (" + header.replace("\"", "") + ") FROM stdin;");
+         } else {
+            new File(this._out).mkdirs();
+            this._w = new PrintWriter(new FileWriter(new File(this._out, table + ".csv")));
+            this._w.println(header);
+         }
+      }//end begin
+
+      void row(String... values) {
+         StringBuilder sb = new StringBuilder();
+         for (int i = 0; i < values.length; ++i) {
+            if (i > 0)
+               sb.append(this._copy ? '\t' : ',');
+            String v = values[i];
+            if (this._copy)
+               sb.append(v.replace("\\", "\\\\").replace("\t", "\\t"));
+            else if (v.indexOf(',') >= 0 || v.indexOf('"') >= 0)
+               sb.append('"').append(v.replace("\"", "\"\"")).append('"');
+            else
+               sb.append(v);
+         }//end for
+         this._w.println(sb);
+      }//end row
+
+      void end() {
+         if (this._copy)
+            this._w.println("\\.");
+         else
+            this._w.close();
+      }
+
+      void finish(int nextOrderID) {
+         if (!this._copy) {
+            System.err.println("Set orderID_Seq to " + nextOrderID + " after loading these files");
+            return;
+         }
+         this._stream.println("ALTER TABLE FoodOrder ENABLE TRIGGER USER;");
+         this._stream.println("DO $$ BEGIN IF EXISTS (SELECT 1 FROM pg_class WHERE relname = 'orderid_seq') "
+                              + "THEN PERFORM setval('orderID_Seq', " + nextOrderID + ", false); END IF; END $$;");
+         this._stream.flush();
+         if (!this._out.equals("-"))
+            this._stream.close();
+      }//end finish
+   }//end Sink
+
+   /**
+    * Zipf distributed ranks 0..n-1 sampled from a precomputed CDF.
+    */
+   private static class Zipf {
+      private final double[] _cdf;
+      private final Random _rnd;
+
+      Zipf(int n, double s, Random rnd) {
+         this._cdf = new double[n];
+         this._rnd = rnd;
+         double sum = 0;
+         for (int i = 0; i < n; ++i) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            this._cdf[i] = sum;
+         }
+         for (int i = 0; i < n; ++i)
+            this._cdf[i] /= sum;
+      }
+
+      int next() {
+         int i = Arrays.binarySearch(this._cdf, this._rnd.nextDouble());
+         return Math.min(this._cdf.length - 1, i < 0 ? -i - 1 : i);
+      }
+   }//end Zipf
+
+   /*
+    * SESSION REPLAY
+    */
+
+   private static void replay(String dbname, String dbport, String user, Map<String, String> opts) throws Exception {
+      final int clients = intOpt(opts, "clients", 16);
+      final double rate = Double.parseDouble(opts.containsKey("rate") ? opts.get("rate") : "100");
+      final int seconds = intOpt(opts, "seconds", 60);
+      final int stores = intOpt(opts, "stores", 1000);
+      final int seed = intOpt(opts, "seed", 166);
+      final String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      final String dbuser = user;
+
+      Class.forName("org.postgresql.Driver");
+      final Recorder recorder = new Recorder();
+      final long runId = System.currentTimeMillis() % 100000000L;
+      final long deadline = System.nanoTime() + seconds * 1000000000L;
+      // each client paces itself to its share of the target rate
+      final long intervalNanos = (long) (1e9 * clients * OPS.length / rate);
+      final CountDownLatch done = new CountDownLatch(clients);
+      final AtomicInteger errors = new AtomicInteger();
+
+      for (int c = 0; c < clients; ++c) {
+         final int client = c;
+         new Thread(new Runnable() {
+            public void run() {
+               try {
+                  Connection conn = DriverManager.getConnection(url, dbuser, "");
+                  Session s = new Session(conn, recorder, new Random(seed + client), stores);
+                  long next = System.nanoTime();
+                  for (int n = 0; System.nanoTime() < deadline; ++n) {
+                     try {
+                        next = s.run("lg" + runId + "_" + client + "_" + n, next, intervalNanos);
+                     } catch (SQLException e) {
+                        errors.incrementAndGet();
+                     }
+                  }//end for
+                  conn.close();
+               } catch (Exception e) {
+                  System.err.println("Client " + client + ": " + e.getMessage());
+               } finally {
+                  done.countDown();
+               }
+            }
+         }, "loadgen-" + c).start();
+      }//end for
+      done.await();
+      recorder.report(seconds, errors.get());
+   }//end replay
+
+   /**
+    * One simulated customer terminal issuing the same SQL the console menu
+    * does. Each operation is scheduled at a fixed interval and its latency is
+    * measured from the scheduled time, so a slow database is not hidden by
+    * the client backing off.
+    */
+   private static class Session {
+      private final Connection _conn;
+      private final Recorder _recorder;
+      private final Random _rnd;
+      private final int _stores;
+      private List<String[]> _menu = null;
+
+      Session(Connection conn, Recorder recorder, Random rnd, int stores) {
+         this._conn = conn;
+         this._recorder = recorder;
+         this._rnd = rnd;
+         this._stores = stores;
+      }
+
+      long run(String login, long next, long interval) throws SQLException {
+         String password = "pw";
+         next = op(0, next, interval, String.format(
+            "INSERT INTO USERS (login, password, role, favoriteItems, phoneNum) VALUES ('%s', '%s', 'customer', '', '000-000-0000');",
+            login, password));
+         next = op(1, next, interval, String.format(
+            "SELECT * FROM Users WHERE login = '%s' AND password = '%s';", login, password));
+         next = op(2, next, interval, "SELECT * FROM ITEMS ORDER BY price ASC;");
+
+         // place an order of one to three picks, like the console does; a repeated pick adds to its quantity
+         next = pace(next, interval);
+         long start = System.nanoTime();
+         int storeID = 1 + this._rnd.nextInt(this._stores);
+         int lines = 1 + this._rnd.nextInt(3);
+         List<String[]> menu = menu();
+         Map<String, Integer> picked = new LinkedHashMap<String, Integer>();
+         Map<String, Double> prices = new HashMap<String, Double>();
+         for (int i = 0; i < lines; ++i) {
+            String[] item = menu.get(this._rnd.nextInt(menu.size()));
+            picked.merge(item[0], 1, Integer::sum);
+            prices.put(item[0], Double.parseDouble(item[1]));
+         }
+         double total = 0;
+         for (Map.Entry<String, Integer> e : picked.entrySet())
+            total += prices.get(e.getKey()) * e.getValue();
+         // the order and its items commit together, so the total always matches its lines
+         this._conn.setAutoCommit(false);
+         int orderID;
+         try {
+            Statement stmt = this._conn.createStatement();
+            ResultSet rs = stmt.executeQuery(String.format(
+               "INSERT INTO FOODORDER (login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+               "VALUES('%s', '%d', '%.2f', NOW(), 'incomplete') RETURNING orderID, orderTimestamp;", login, storeID, total));
+            rs.next();
+            orderID = rs.getInt(1);
+            StringBuilder insert = new StringBuilder("INSERT INTO ITEMSINORDER (orderID, itemName, quantity) VALUES ");
+            for (Map.Entry<String, Integer> e : picked.entrySet())
+               insert.append(String.format("('%d', '%s', '%d'),", orderID, e.getKey().replace("'", "''"), e.getValue()));
+            insert.setCharAt(insert.length() - 1, ';');
+            stmt.executeUpdate(insert.toString());
+            stmt.close();
+            this._conn.commit();
+         } catch (SQLException e) {
+            this._conn.rollback();
+            throw e;
+         } finally {
+            this._conn.setAutoCommit(true);
+         }//end try
+         this._recorder.record(3, System.nanoTime() - Math.min(start, next));
+         next += interval;
+
+         return op(4, next, interval, String.format(
+            "UPDATE FoodOrder SET orderStatus ='complete' WHERE orderID ='%d';", orderID));
+      }//end run
+
+      private long op(int op, long next, long interval, String sql) throws SQLException {
+         next = pace(next, interval);
+         long start = System.nanoTime();
+         Statement stmt = this._conn.createStatement();
+         if (sql.startsWith("SELECT")) {
+            ResultSet rs = stmt.executeQuery(sql);
+            while (rs.next())
+               ;
+         } else {
+            stmt.executeUpdate(sql);
+         }
+         stmt.close();
+         // latency counts from when the operation was due, not when it started
+         this._recorder.record(op, System.nanoTime() - Math.min(start, next));
+         return next + interval;
+      }//end op
+
+      private long pace(long next, long interval) {
+         long wait = next - System.nanoTime();
+         if (wait > 0) {
+            try {
+               Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         return next;
+      }//end pace
+
+      private List<String[]> menu() throws SQLException {
+         if (this._menu == null) {
+            this._menu = new ArrayList<String[]>();
+            Statement stmt = this._conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT itemName, price FROM Items;");
+            while (rs.next())
+               this._menu.add(new String[] { rs.getString(1), rs.getString(2) });
+            stmt.close();
+         }
+         return this._menu;
+      }//end menu
+   }//end Session
+
+   /**
+    * Collects latencies per operation and prints throughput and percentiles.
+    */
+   private static class Recorder {
+      private final long[][] _samples = new long[OPS.length][];
+      private final int[] _counts = new int[OPS.length];
+
+      Recorder() {
+         for (int i = 0; i < OPS.length; ++i)
+            this._samples[i] = new long[1024];
+      }
+
+      synchronized void record(int op, long nanos) {
+         if (this._counts[op] == this._samples[op].length)
+            this._samples[op] = Arrays.copyOf(this._samples[op], this._counts[op] * 2);
+         this._samples[op][this._counts[op]++] = nanos;
+      }
+
+      synchronized void report(int seconds, int errors) {
+         System.out.printf("%-18s %10s %10s %10s %10s %10s %10s\n",
+                           "operation", "count", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms");
+         long total = 0;
+         for (int op = 0; op < OPS.length; ++op) {
+            int n = this._counts[op];
+            long[] s = Arrays.copyOf(this._samples[op], n);
+            Arrays.sort(s);
+            total += n;
+            System.out.printf("%-18s %10d %10.1f %10.2f %10.2f %10.2f %10.2f\n", OPS[op], n, (double) n / seconds,
+                              pct(s, 0.50), pct(s, 0.95), pct(s, 0.99), n == 0 ? 0 : s[n - 1] / 1e6);
+         }//end for
+         System.out.printf("%-18s %10d %10.1f   (%d failed sessions)\n", "total", total, (double) total / seconds, errors);
+      }//end report
+
+      private static double pct(long[] sorted, double p) {
+         if (sorted.length == 0)
+            return 0;
+         return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+      }
+   }//end Recorder
+
+   /*
+    * HELPERS
+    */
+
+   private static Map<String, String> options(String[] args) {
+      Map<String, String> opts = new HashMap<String, String>();
+      for (int i = 0; i < args.length - 1; ++i) {
+         if (args[i].startsWith("--"))
+            opts.put(args[i].substring(2), args[++i]);
+      }
+      return opts;
+   }//end options
+
+   private static int intOpt(Map<String, String> opts, String name, int dflt) {
+      return opts.containsKey(name) ? Integer.parseInt(opts.get(name)) : dflt;
+   }
+
+   // reads a data/*.csv file: quoted fields, whitespace after commas
+   private static List<List<String>> readCsv(String path) throws IOException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      BufferedReader r = new BufferedReader(new FileReader(path));
+      r.readLine();
+      for (String line = r.readLine(); line != null; line = r.readLine()) {
+         if (line.trim().isEmpty())
+            continue;
+         List<String> row = new ArrayList<String>();
+         StringBuilder field = new StringBuilder();
+         boolean quoted = false;
+         for (char ch : line.toCharArray()) {
+            if (ch == '"')
+               quoted = !quoted;
+            else if (ch == ',' && !quoted) {
+               row.add(field.toString().trim());
+               field.setLength(0);
+            } else
+               field.append(ch);
+         }//end for
+         row.add(field.toString().trim());
+         rows.add(row);
+      }//end for
+      r.close();
+      return rows;
+   }//end readCsv
+
+}//end LoadGenerator
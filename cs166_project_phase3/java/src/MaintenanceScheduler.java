@@ -0,0 +1,325 @@
+/*
+ * Maintenance Scheduler
+ * =====================
+ *
+ * Watches the health of the order tables and runs ANALYZE, VACUUM and
+ * REINDEX CONCURRENTLY on them in an off-peak window.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every -Dpizzastore.maintenance.checkMs (default 300000) the scheduler
+ * reads, for FoodOrder, ItemsInOrder and their partitions:
+ *
+ *    dead tuples      n_dead_tup / (n_live_tup + n_dead_tup)
+ *    stale statistics n_mod_since_analyze / n_live_tup
+ *    index bloat      1 - estimated size / actual size of each index
+ *                     (foodTime, itemsOrder, the primary keys); the estimate
+ *                     is reltuples * (key width from pg_stats + 12 bytes) at
+ *                     90% fill
+ *
+ * Inside -Dpizzastore.maintenance.window (default 01:00-05:00, local time,
+ * may wrap past midnight) a table over deadRatio (default 0.2) gets VACUUM
+ * (ANALYZE), one over analyzeRatio (default 0.1) gets ANALYZE, and an index
+ * of at least minIndexKB (default 1024) over bloatRatio (default 0.4) gets
+ * REINDEX INDEX CONCURRENTLY. At most -Dpizzastore.maintenance.concurrency
+ * (default 1) of them run at a time, each on a connection of its own, and a
+ * table or index is never queued twice. Outside the window the health is
+ * still read, so metrics() always shows it.
+ *
+ *    -Dpizzastore.maintenance=true
+ *
+ * Only the primary database is maintained; shards need a scheduler of
+ * their own.
+ */
+public class MaintenanceScheduler {
+
+   // the order tables and their partitions (foodorder_p0, ...), by relname
+   private static final String ORDER_TABLES = "~ '^(foodorder|itemsinorder)(_p[0-9]+)?$'";
+
+   private static final String TABLE_HEALTH =
+      "SELECT relname, n_live_tup, n_dead_tup, n_mod_since_analyze FROM pg_stat_user_tables " +
+      "WHERE lower(relname) " + ORDER_TABLES + ";";
+
+   private static final String INDEX_HEALTH =
+      "SELECT i.relname, pg_relation_size(i.oid), i.reltuples, " +
+      "(SELECT COALESCE(SUM(s.avg_width), 0) FROM pg_attribute a JOIN pg_stats s " +
+      "ON s.tablename = t.relname AND s.attname = a.attname " +
+      "WHERE a.attrelid = t.oid AND a.attnum = ANY (x.indkey)) " +
+      "FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid JOIN pg_class t ON t.oid = x.indrelid " +
+      "WHERE i.relkind = 'i' AND lower(t.relname) " + ORDER_TABLES + ";";
+
+   // bytes of an index tuple besides its key: tuple header and line pointer
+   private static final int ENTRY_OVERHEAD = 12;
+   private static final double FILL = 0.9;
+
+   /**
+    * Runs and failures of one kind of maintenance.
+    */
+   public static class Counter {
+      final AtomicLong runs = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+      final AtomicLong millis = new AtomicLong();
+
+      public long runs() {
+         return this.runs.get();
+      }
+
+      public long failures() {
+         return this.failures.get();
+      }
+
+      /**
+       * @return the total time spent, in milliseconds
+       */
+      public long millis() {
+         return this.millis.get();
+      }
+   }//end Counter
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final long _checkMillis = Long.getLong("pizzastore.maintenance.checkMs", 300000L);
+   private final double _deadRatio = ratio("pizzastore.maintenance.deadRatio", 0.2);
+   private final double _analyzeRatio = ratio("pizzastore.maintenance.analyzeRatio", 0.1);
+   private final double _bloatRatio = ratio("pizzastore.maintenance.bloatRatio", 0.4);
+   private final long _minIndexBytes = Integer.getInteger("pizzastore.maintenance.minIndexKB", 1024) * 1024L;
+   private final LocalTime _windowStart;
+   private final LocalTime _windowEnd;
+
+   private final ExecutorService _workers;
+   private final Thread _thread;
+   private volatile boolean _running = true;
+   // the targets queued or running
+   private final Set<String> _busy = ConcurrentHashMap.newKeySet();
+
+   private final Counter _vacuum = new Counter();
+   private final Counter _analyze = new Counter();
+   private final Counter _reindex = new Counter();
+   // the last reading: table -> {deadRatio, analyzeRatio}, index -> bloat
+   private volatile Map<String, double[]> _tables = Collections.emptyMap();
+   private volatile Map<String, Double> _indexes = Collections.emptyMap();
+
+   // touched by the monitor thread only
+   private Connection _conn = null;
+
+   /**
+    * Starts the monitor thread.
+    *
+    * @param url the JDBC connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public MaintenanceScheduler(String url, String user, String passwd) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      String[] window = System.getProperty("pizzastore.maintenance.window", "01:00-05:00").split("-");
+      this._windowStart = LocalTime.parse(window[0].trim());
+      this._windowEnd = LocalTime.parse(window[1].trim());
+      this._workers = Executors.newFixedThreadPool(
+         Math.max(1, Integer.getInteger("pizzastore.maintenance.concurrency", 1)), r -> {
+            Thread t = new Thread(r, "pizzastore-maintenance-worker");
+            t.setDaemon(true);
+            return t;
+         });
+      this._thread = new Thread(new Runnable() {
+         public void run() {
+            loop();
+         }
+      }, "pizzastore-maintenance");
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end MaintenanceScheduler
+
+   /**
+    * @param url the JDBC connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @return the scheduler, or null unless -Dpizzastore.maintenance=true
+    */
+   public static MaintenanceScheduler fromProperties(String url, String user, String passwd) {
+      return Boolean.getBoolean("pizzastore.maintenance") ? new MaintenanceScheduler(url, user, passwd) : null;
+   }
+
+   private static double ratio(String property, double defaultValue) {
+      String value = System.getProperty(property);
+      return value == null ? defaultValue : Double.parseDouble(value);
+   }
+
+   /**
+    * @param now a time of day
+    * @return true when now is inside the maintenance window
+    */
+   public boolean inWindow(LocalTime now) {
+      if (this._windowStart.isBefore(this._windowEnd))
+         return !now.isBefore(this._windowStart) && now.isBefore(this._windowEnd);
+      // e.g. 23:00-03:00
+      return !now.isBefore(this._windowStart) || now.isBefore(this._windowEnd);
+   }//end inWindow
+
+   private void loop() {
+      while (this._running) {
+         try {
+            check(inWindow(LocalTime.now()));
+         } catch (SQLException e) {
+            System.err.println("Maintenance: " + e.getMessage());
+            close(this._conn);
+            this._conn = null;
+         }//end try
+         try {
+            Thread.sleep(this._checkMillis);
+         } catch (InterruptedException e) {
+            break;
+         }
+      }//end while
+      close(this._conn);
+   }//end loop
+
+   // reads the health of the order tables and queues what is due
+   private void check(boolean maintain) throws SQLException {
+      if (this._conn == null)
+         this._conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      Map<String, double[]> tables = new LinkedHashMap<String, double[]>();
+      Map<String, Double> indexes = new LinkedHashMap<String, Double>();
+      Statement stmt = this._conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(TABLE_HEALTH);
+         while (rs.next()) {
+            double live = rs.getLong(2);
+            double dead = rs.getLong(3);
+            double dirty = live + dead == 0 ? 0 : dead / (live + dead);
+            double stale = rs.getLong(4) / Math.max(1, live);
+            tables.put(rs.getString(1), new double[] { dirty, stale });
+         }//end while
+         rs = stmt.executeQuery(INDEX_HEALTH);
+         while (rs.next()) {
+            long bytes = rs.getLong(2);
+            double estimate = rs.getDouble(3) * (rs.getLong(4) + ENTRY_OVERHEAD) / FILL;
+            // small indexes are all page overhead, their bloat means nothing
+            if (bytes >= this._minIndexBytes)
+               indexes.put(rs.getString(1), Math.max(0, 1 - estimate / bytes));
+         }//end while
+      } finally {
+         stmt.close();
+      }
+      this._tables = Collections.unmodifiableMap(tables);
+      this._indexes = Collections.unmodifiableMap(indexes);
+      if (!maintain)
+         return;
+      for (Map.Entry<String, double[]> e : tables.entrySet()) {
+         if (e.getValue()[0] >= this._deadRatio)
+            submit(e.getKey(), "VACUUM (ANALYZE) " + e.getKey() + ";", this._vacuum);
+         else if (e.getValue()[1] >= this._analyzeRatio)
+            submit(e.getKey(), "ANALYZE " + e.getKey() + ";", this._analyze);
+      }
+      for (Map.Entry<String, Double> e : indexes.entrySet())
+         if (e.getValue() >= this._bloatRatio)
+            submit(e.getKey(), "REINDEX INDEX CONCURRENTLY " + e.getKey() + ";", this._reindex);
+   }//end check
+
+   private void submit(final String target, final String sql, final Counter counter) {
+      if (!this._busy.add(target))
+         return;
+      this._workers.execute(() -> {
+         try {
+            // checked again when the job starts, it may have waited for a worker past the window
+            if (this._running && inWindow(LocalTime.now()))
+               run(sql, counter);
+         } catch (SQLException e) {
+            counter.failures.incrementAndGet();
+            System.err.println("Maintenance: " + sql + " failed: " + e.getMessage());
+         } finally {
+            this._busy.remove(target);
+         }//end try
+      });
+   }//end submit
+
+   // VACUUM and REINDEX CONCURRENTLY cannot run in a transaction, so autocommit on a connection of their own
+   private void run(String sql, Counter counter) throws SQLException {
+      long start = System.currentTimeMillis();
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      try {
+         Statement stmt = c.createStatement();
+         try {
+            stmt.executeUpdate(sql);
+         } finally {
+            stmt.close();
+         }
+         counter.runs.incrementAndGet();
+      } finally {
+         close(c);
+         counter.millis.addAndGet(System.currentTimeMillis() - start);
+      }
+   }//end run
+
+   private static void close(Connection c) {
+      try {
+         if (c != null)
+            c.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   /**
+    * @return the counters of VACUUM (ANALYZE) runs
+    */
+   public Counter vacuums() {
+      return this._vacuum;
+   }
+
+   /**
+    * @return the counters of ANALYZE runs
+    */
+   public Counter analyzes() {
+      return this._analyze;
+   }
+
+   /**
+    * @return the counters of REINDEX CONCURRENTLY runs
+    */
+   public Counter reindexes() {
+      return this._reindex;
+   }
+
+   /**
+    * @return table -> {dead tuple ratio, modified since analyze ratio} at the last check
+    */
+   public Map<String, double[]> tables() {
+      return this._tables;
+   }
+
+   /**
+    * @return index -> estimated bloat ratio at the last check
+    */
+   public Map<String, Double> indexes() {
+      return this._indexes;
+   }
+
+   /**
+    * Stops the monitor. A running VACUUM or REINDEX is left to finish.
+    */
+   public void close() {
+      this._running = false;
+      this._thread.interrupt();
+      this._workers.shutdown();
+   }
+
+}//end MaintenanceScheduler
@@ -0,0 +1,138 @@
+/*
+ * Menu Cache
+ * ==========
+ *
+ * In-memory copy of the Items table used by order placement.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds every row of Items keyed by itemName so placing an order does not
+ * query Items once per line. The rows are an immutable snapshot; call
+ * invalidate() after the menu changes and the next reader reloads it. The
+ * search index is built from the current snapshot on first use, so it is
+ * rebuilt after every reload.
+ */
+public class MenuCache {
+
+   public static final String QUERY =
+      "SELECT itemName, ingredients, typeOfItem, price, description FROM Items;";
+
+   private volatile Map<String, List<String>> _items = null;
+   private volatile MenuIndex _index = null;
+   // bumped by invalidate(), so a load that raced with it is not kept
+   private final AtomicLong _generation = new AtomicLong();
+
+   /**
+    * Looks an item up by its exact name.
+    *
+    * @param esql the database Items is read from on a miss
+    * @param itemName the item to find
+    * @return the Items row (itemName, ingredients, typeOfItem, price, description), or null
+    * @throws java.sql.SQLException when failed to load the menu
+    */
+   public List<String> find(PizzaStore esql, String itemName) throws SQLException {
+      return items(esql).get(itemName);
+   }
+
+   /**
+    * @param esql the database Items is read from on a miss
+    * @return every item keyed by name
+    * @throws java.sql.SQLException when failed to load the menu
+    */
+   public Map<String, List<String>> items(PizzaStore esql) throws SQLException {
+      Map<String, List<String>> items = this._items;
+      if (items == null) {
+         long generation = generation();
+         items = load(esql.executeReadQueryAndReturnResult(QUERY), generation);
+      }
+      return items;
+   }//end items
+
+   /**
+    * @param esql the database Items is read from on a miss
+    * @return the search index of the current menu
+    * @throws java.sql.SQLException when failed to load the menu
+    */
+   public MenuIndex index(PizzaStore esql) throws SQLException {
+      return index(items(esql));
+   }
+
+   /**
+    * @param items the current menu, as returned by items() or load()
+    * @return the search index of that menu
+    */
+   public MenuIndex index(Map<String, List<String>> items) {
+      MenuIndex index = this._index;
+      if (index == null || index.items() != items) {
+         index = new MenuIndex(items);
+         this._index = index;
+      }
+      return index;
+   }//end index
+
+   /**
+    * @return every item keyed by name, or null if the menu is not loaded
+    */
+   public Map<String, List<String>> peek() {
+      return this._items;
+   }
+
+   /**
+    * Replaces the cached menu with rows already read with QUERY.
+    *
+    * @param rows the Items rows
+    * @return every item keyed by name
+    */
+   public Map<String, List<String>> load(List<List<String>> rows) {
+      return load(rows, generation());
+   }
+
+   /**
+    * Replaces the cached menu with rows read with QUERY, unless the menu was
+    * invalidated since generation() was taken before reading them.
+    *
+    * @param rows the Items rows
+    * @param generation generation() before the rows were read
+    * @return every item keyed by name
+    */
+   public Map<String, List<String>> load(List<List<String>> rows, long generation) {
+      Map<String, List<String>> items = byName(rows);
+      this._items = items;
+      // set first, then check, so an invalidate() in between is never lost
+      if (this._generation.get() != generation)
+         this._items = null;
+      return items;
+   }//end load
+
+   /**
+    * @return the number of invalidations so far
+    */
+   public long generation() {
+      return this._generation.get();
+   }
+
+   /**
+    * Drops the cached menu so the next reader reloads it.
+    */
+   public void invalidate() {
+      this._generation.incrementAndGet();
+      this._items = null;
+      this._index = null;
+   }
+
+   private static Map<String, List<String>> byName(List<List<String>> rows) {
+      Map<String, List<String>> items = new HashMap<String, List<String>>(rows.size() * 2);
+      for (List<String> row : rows)
+         items.put(row.get(0), Collections.unmodifiableList(row));
+      return Collections.unmodifiableMap(items);
+   }//end byName
+
+}//end MenuCache
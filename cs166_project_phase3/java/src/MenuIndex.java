@@ -0,0 +1,186 @@
+/*
+ * Menu Index
+ * ==========
+ *
+ * Inverted index over the ingredients and text of the cached menu, behind
+ * ingredient and keyword search.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Built from one snapshot of the menu cache. Every item gets a row number
+ * (items in itemName order); each ingredient and each word maps to the set
+ * of rows that have it, so a search is a few bit set intersections instead
+ * of a scan of every ingredients and description string.
+ *
+ * Ingredients are the comma separated entries of Items.ingredients, compared
+ * case-insensitively ("Tomato Sauce"). Words are the runs of letters and
+ * digits of itemName, description and ingredients, lower case, the same
+ * words the 'simple' text search configuration of Postgres produces.
+ */
+public class MenuIndex {
+
+   // the expression indexed by itemsText in create_indexes.sql
+   private static final String TEXT = "itemName || ' ' || ingredients || ' ' || coalesce(description, '')";
+
+   private final Map<String, List<String>> _items;
+   private final String[] _names;
+   private final Map<String, BitSet> _ingredients = new HashMap<String, BitSet>();
+   private final Map<String, BitSet> _words = new HashMap<String, BitSet>();
+
+   /**
+    * @param items every menu item keyed by name, as held by the menu cache
+    */
+   public MenuIndex(Map<String, List<String>> items) {
+      this._items = items;
+      this._names = items.keySet().toArray(new String[0]);
+      Arrays.sort(this._names);
+      for (int i = 0; i < this._names.length; ++i) {
+         List<String> row = items.get(this._names[i]);
+         for (String ingredient : ingredients(row.get(1)))
+            post(this._ingredients, ingredient, i);
+         // itemName, ingredients and description
+         for (int c : new int[] { 0, 1, 4 })
+            for (String word : words(row.get(c)))
+               post(this._words, word, i);
+      }//end for
+   }//end MenuIndex
+
+   private static void post(Map<String, BitSet> postings, String term, int row) {
+      BitSet rows = postings.get(term);
+      if (rows == null) {
+         rows = new BitSet();
+         postings.put(term, rows);
+      }
+      rows.set(row);
+   }
+
+   /**
+    * @return the menu snapshot this index was built from
+    */
+   public Map<String, List<String>> items() {
+      return this._items;
+   }
+
+   /**
+    * Finds the items that have every ingredient of with, none of without and
+    * every word of keywords.
+    *
+    * @param with required ingredients, or null
+    * @param without excluded ingredients (e.g. allergens), or null
+    * @param keywords words that must appear in the name, description or
+    *        ingredients, or null
+    * @return the Items rows (itemName, ingredients, typeOfItem, price,
+    *         description) of the matches, in itemName order
+    */
+   public List<List<String>> search(Collection<String> with, Collection<String> without, String keywords) {
+      BitSet rows = new BitSet(this._names.length);
+      rows.set(0, this._names.length);
+      if (with != null)
+         for (String ingredient : with)
+            if (!ingredient.trim().isEmpty())
+               and(rows, this._ingredients.get(ingredient.trim().toLowerCase()));
+      for (String word : words(keywords))
+         and(rows, this._words.get(word));
+      if (without != null)
+         for (String ingredient : without) {
+            BitSet excluded = this._ingredients.get(ingredient.trim().toLowerCase());
+            if (excluded != null)
+               rows.andNot(excluded);
+         }
+      List<List<String>> result = new ArrayList<List<String>>(rows.cardinality());
+      for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1))
+         result.add(this._items.get(this._names[i]));
+      return result;
+   }//end search
+
+   /**
+    * The SQL equivalent of search(with, without, keywords), as conditions
+    * on Items that the GIN indexes itemsIngredients and itemsText of
+    * create_indexes.sql answer.
+    *
+    * @param with required ingredients, or null
+    * @param without excluded ingredients, or null
+    * @param keywords required words, or null
+    * @return the conditions, to be joined with AND
+    */
+   public static List<String> conditions(Collection<String> with, Collection<String> without, String keywords) {
+      List<String> where = new ArrayList<String>();
+      if (with != null && !with.isEmpty())
+         where.add("item_ingredients(ingredients) @> " + array(with));
+      if (without != null && !without.isEmpty())
+         where.add("NOT item_ingredients(ingredients) && " + array(without));
+      List<String> words = words(keywords);
+      if (!words.isEmpty()) {
+         StringBuilder query = new StringBuilder();
+         for (String word : words)
+            query.append(query.length() == 0 ? "" : " & ").append(word);
+         where.add("to_tsvector('simple', " + TEXT + ") @@ to_tsquery('simple', '" + query + "')");
+      }
+      return where;
+   }//end conditions
+
+   private static String array(Collection<String> ingredients) {
+      StringBuilder sb = new StringBuilder("ARRAY[");
+      int n = 0;
+      for (String ingredient : ingredients) {
+         String s = ingredient.trim().toLowerCase();
+         if (!s.isEmpty())
+            sb.append(n++ == 0 ? "'" : ", '").append(s.replace("'", "''")).append('\'');
+      }
+      return sb.append("]::text[]").toString();
+   }//end array
+
+   private static void and(BitSet rows, BitSet term) {
+      if (term == null)
+         rows.clear();
+      else
+         rows.and(term);
+   }
+
+   /**
+    * @param ingredients an Items.ingredients value
+    * @return its entries, trimmed and lower case
+    */
+   public static List<String> ingredients(String ingredients) {
+      List<String> result = new ArrayList<String>();
+      if (ingredients == null)
+         return result;
+      for (String s : ingredients.split(",")) {
+         s = s.trim().toLowerCase();
+         if (!s.isEmpty())
+            result.add(s);
+      }
+      return result;
+   }//end ingredients
+
+   /**
+    * @param text any text
+    * @return its runs of letters and digits, lower case
+    */
+   public static List<String> words(String text) {
+      List<String> result = new ArrayList<String>();
+      if (text == null)
+         return result;
+      int start = -1;
+      for (int i = 0; i <= text.length(); ++i) {
+         boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+         if (letter && start < 0)
+            start = i;
+         else if (!letter && start >= 0) {
+            result.add(text.substring(start, i).toLowerCase());
+            start = -1;
+         }
+      }//end for
+      return result;
+   }//end words
+
+}//end MenuIndex
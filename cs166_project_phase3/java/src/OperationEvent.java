@@ -0,0 +1,133 @@
+/*
+ * Operation Event
+ * ===============
+ *
+ * Java Flight Recorder event for one user-facing PizzaStore operation.
+ *
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Spans one console menu action or one HTTP request. While it runs it is
+ * the current operation of its thread: the statements run on that thread
+ * are counted into it and their StatementEvents carry its name, so a
+ * recording attributes samples, allocations and database time to the menu
+ * action that caused them.
+ *
+ *    java -XX:StartFlightRecording=filename=pizzastore.jfr ... PizzaStore ...
+ *    jfr print --events pizzastore.Operation pizzastore.jfr
+ *
+ * A console action also spans the prompts it shows, so its duration includes
+ * the time spent typing; databaseTime is the part spent in SQL. When no
+ * recording is running, start() and finish() do nothing but allocate an
+ * event the JIT removes.
+ */
+@Name("pizzastore.Operation")
+@Label("PizzaStore Operation")
+@Category("PizzaStore")
+@StackTrace(false)
+public class OperationEvent extends Event {
+
+   private static final ThreadLocal<OperationEvent> CURRENT = new ThreadLocal<OperationEvent>();
+
+   @Label("Operation")
+   public String operation;
+
+   @Label("Login")
+   public String login;
+
+   @Label("Role")
+   public String role;
+
+   @Label("Store ID")
+   @Description("The store of the order placed, -1 when none")
+   public int storeID = -1;
+
+   @Label("Statements")
+   public int statements;
+
+   @Label("Rows")
+   @Description("Rows returned or changed by the statements")
+   public long rows;
+
+   @Label("Database Time")
+   @Timespan(Timespan.NANOSECONDS)
+   public long databaseTime;
+
+   // the operation this one runs inside, restored by finish()
+   private transient OperationEvent _outer;
+   private transient boolean _started;
+
+   /**
+    * Starts an operation on the calling thread.
+    *
+    * @param operation the name of the menu action or request
+    * @param login the user, or null when not logged in
+    * @return the event, to finish() when the operation is done
+    */
+   public static OperationEvent start(String operation, String login) {
+      OperationEvent e = new OperationEvent();
+      if (e.isEnabled()) {
+         e.operation = operation;
+         e.login = login;
+         e._outer = CURRENT.get();
+         e._started = true;
+         CURRENT.set(e);
+         e.begin();
+      }
+      return e;
+   }//end start
+
+   /**
+    * Ends the operation and records it.
+    *
+    * @param roles where the role of the login is looked up
+    */
+   public void finish(RoleCache roles) {
+      if (!this._started)
+         return;
+      end();
+      if (this._outer == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(this._outer);
+      if (shouldCommit()) {
+         Role r = this.login == null ? null : roles.peek(this.login);
+         this.role = r == null ? null : r.label;
+         commit();
+      }
+   }//end finish
+
+   /**
+    * @return the operation running on the calling thread, or null
+    */
+   public static OperationEvent current() {
+      return CURRENT.get();
+   }
+
+   /**
+    * Notes the store the current operation works on, if there is one.
+    *
+    * @param storeID the store
+    */
+   public static void store(int storeID) {
+      OperationEvent e = CURRENT.get();
+      if (e != null)
+         e.storeID = storeID;
+   }
+
+   // counts a statement into the current operation
+   void statement(long nanos, int rows) {
+      this.statements++;
+      this.rows += rows;
+      this.databaseTime += nanos;
+   }
+
+}//end OperationEvent
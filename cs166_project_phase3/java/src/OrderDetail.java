@@ -0,0 +1,119 @@
+/*
+ * Order Detail
+ * ============
+ *
+ * Everything shown on the "View Order Information" screen, fetched with one
+ * joined query.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An order header together with its line items, their unit prices and the
+ * address of the store the order was placed at.
+ */
+public class OrderDetail {
+
+   // header, store and line items of one order in a single round-trip
+   public static final String QUERY =
+      "SELECT f.orderID, f.login, f.orderTimestamp, f.totalPrice, f.orderStatus, " +
+      "s.storeID, s.address, s.city, s.state, i.itemName, i.quantity, it.price " +
+      "FROM FoodOrder f JOIN Store s ON s.storeID = f.storeID " +
+      "LEFT JOIN ItemsInOrder i ON i.orderID = f.orderID " +
+      "LEFT JOIN Items it ON it.itemName = i.itemName " +
+      "WHERE f.orderID = %d ORDER BY i.itemName;";
+
+   // header and line items on an order shard, which has no Store or Items
+   public static final String SHARD_QUERY =
+      "SELECT f.orderID, f.login, f.orderTimestamp, f.totalPrice, f.orderStatus, " +
+      "f.storeID, i.itemName, i.quantity " +
+      "FROM FoodOrder f LEFT JOIN ItemsInOrder i ON i.orderID = f.orderID " +
+      "WHERE f.orderID = %d ORDER BY i.itemName;";
+
+   public final int orderID;
+   public final String login;
+   public final String orderTimestamp;
+   public final String totalPrice;
+   public final OrderStatus orderStatus;
+   public final int storeID;
+   public final String storeAddress;
+   public final List<Line> lines;
+
+   /**
+    * One item of an order.
+    */
+   public static class Line {
+      public final String itemName;
+      public final int quantity;
+      public final String unitPrice;
+
+      public Line(String itemName, int quantity, String unitPrice) {
+         this.itemName = itemName;
+         this.quantity = quantity;
+         this.unitPrice = unitPrice;
+      }
+   }//end Line
+
+   private OrderDetail(List<String> header, List<Line> lines) {
+      this.orderID = Integer.parseInt(header.get(0).trim());
+      this.login = header.get(1);
+      this.orderTimestamp = header.get(2);
+      this.totalPrice = header.get(3);
+      this.orderStatus = OrderStatus.of(header.get(4));
+      this.storeID = Integer.parseInt(header.get(5).trim());
+      // a shard's order may name a store the directory no longer has
+      this.storeAddress = header.get(6) == null ? null : header.get(6) + ", " + header.get(7) + ", " + header.get(8);
+      this.lines = lines;
+   }
+
+   /**
+    * Builds an order detail from the rows returned by QUERY.
+    *
+    * @param rows the result of QUERY for one orderID
+    * @return the order, or null if the order does not exist
+    */
+   public static OrderDetail fromRows(List<List<String>> rows) {
+      if (rows.isEmpty())
+         return null;
+      List<Line> lines = new ArrayList<Line>(rows.size());
+      for (List<String> row : rows) {
+         if (row.get(9) != null)
+            lines.add(new Line(row.get(9), Integer.parseInt(row.get(10).trim()), row.get(11)));
+      }//end for
+      return new OrderDetail(rows.get(0), lines);
+   }//end fromRows
+
+   /**
+    * Builds an order detail from the rows returned by SHARD_QUERY, taking
+    * the store address and unit prices from the main database's caches.
+    *
+    * @param rows the result of SHARD_QUERY for one orderID
+    * @param stores the store directory
+    * @param menu every item keyed by name
+    * @return the order, or null if the order does not exist
+    */
+   public static OrderDetail fromShardRows(List<List<String>> rows, StoreDirectory.Snapshot stores,
+                                           Map<String, List<String>> menu) {
+      List<List<String>> joined = new ArrayList<List<String>>(rows.size());
+      for (List<String> row : rows) {
+         int store = stores.find(Integer.parseInt(row.get(5).trim()));
+         List<String> item = row.get(6) == null ? null : menu.get(row.get(6));
+         joined.add(Arrays.asList(row.get(0), row.get(1), row.get(2), row.get(3), row.get(4), row.get(5),
+            store < 0 ? null : stores.address(store), store < 0 ? null : stores.city(store),
+            store < 0 ? null : stores.state(store), row.get(6), row.get(7), item == null ? null : item.get(3)));
+      }//end for
+      return fromRows(joined);
+   }//end fromShardRows
+
+   /**
+    * @return true once the order can no longer change
+    */
+   public boolean isComplete() {
+      return this.orderStatus == OrderStatus.COMPLETE;
+   }
+
+}//end OrderDetail
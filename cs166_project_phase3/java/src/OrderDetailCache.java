@@ -0,0 +1,87 @@
+/*
+ * Order Detail Cache
+ * ==================
+ *
+ * Short lived cache of completed orders for the "View Order Information"
+ * screen.
+ *
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches OrderDetail by orderID for a short time. Only completed orders are
+ * kept, since they no longer change; updateOrderStatus invalidates the entry
+ * anyway. A TTL of 0 turns the cache off.
+ *
+ *    -Dpizzastore.orderDetail.ttlMs=30000
+ *    -Dpizzastore.orderDetail.maxEntries=1000
+ */
+public class OrderDetailCache {
+
+   private final long _ttlMillis;
+   private final LinkedHashMap<Integer, Cached> _entries;
+
+   private static class Cached {
+      final OrderDetail detail;
+      final long expiresAt;
+
+      Cached(OrderDetail detail, long expiresAt) {
+         this.detail = detail;
+         this.expiresAt = expiresAt;
+      }
+   }//end Cached
+
+   public OrderDetailCache() {
+      this(Long.getLong("pizzastore.orderDetail.ttlMs", 30000L),
+           Integer.getInteger("pizzastore.orderDetail.maxEntries", 1000));
+   }
+
+   /**
+    * @param ttlMillis how long a completed order is served from memory
+    * @param maxEntries how many orders are kept at most
+    */
+   public OrderDetailCache(long ttlMillis, final int maxEntries) {
+      this._ttlMillis = ttlMillis;
+      this._entries = new LinkedHashMap<Integer, Cached>(64, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Cached> eldest) {
+            return size() > maxEntries;
+         }
+      };
+   }//end OrderDetailCache
+
+   /**
+    * @param orderID the order to look up
+    * @return the cached order, or null if missing or expired
+    */
+   public synchronized OrderDetail get(int orderID) {
+      Cached c = this._entries.get(orderID);
+      if (c == null)
+         return null;
+      if (c.expiresAt < System.currentTimeMillis()) {
+         this._entries.remove(orderID);
+         return null;
+      }
+      return c.detail;
+   }//end get
+
+   /**
+    * Caches an order if the cache is enabled and the order is complete.
+    *
+    * @param detail the order read from the database
+    */
+   public synchronized void put(OrderDetail detail) {
+      if (this._ttlMillis <= 0 || detail == null || !detail.isComplete())
+         return;
+      this._entries.put(detail.orderID, new Cached(detail, System.currentTimeMillis() + this._ttlMillis));
+   }
+
+   /**
+    * @param orderID the order that changed
+    */
+   public synchronized void invalidate(int orderID) {
+      this._entries.remove(orderID);
+   }
+
+}//end OrderDetailCache
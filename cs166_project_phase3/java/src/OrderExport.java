@@ -0,0 +1,350 @@
+/*
+ * Order Export
+ * ============
+ *
+ * Parallel extract of FoodOrder and ItemsInOrder to compressed CSV files,
+ * for finance.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The orderID range of the orders to export is cut into chunks; each chunk
+ * becomes foodorder-NNNN.csv.gz and itemsinorder-NNNN.csv.gz, with a header
+ * line, in the output directory. Workers, each on a connection of the pool,
+ * take chunks off a queue and stream them to disk, so memory does not grow
+ * with the size of the export.
+ *
+ * Every worker reads in a REPEATABLE READ transaction that imports the
+ * snapshot exported by the coordinating transaction (pg_export_snapshot),
+ * so all files together are one consistent view of both tables, whatever
+ * is being placed meanwhile.
+ *
+ * A chunk is streamed with COPY ... TO STDOUT when the JDBC driver offers a
+ * copy API. The bundled pg73 driver does not, so it is read through a
+ * cursor, 1000 rows per FETCH, and written as CSV in the format COPY uses.
+ *
+ * Usage:
+ *    java OrderExport <dbname> <port> <user> [--out dir] [--threads N]
+ *         [--chunks N] [--since timestamp] [--until timestamp]
+ *
+ * Threads default to -Dpizzastore.pool.size, chunks to four per thread.
+ *
+ * With -Dpizzastore.shards each order shard is exported after the primary,
+ * the same way, on the shard's pool (at most -Dpizzastore.shards.poolSize
+ * workers), to shardN-foodorder-NNNN.csv.gz and shardN-itemsinorder-NNNN.csv.gz.
+ * Each database is one consistent view; the shards are not read at the
+ * same instant as each other or the primary.
+ */
+public class OrderExport {
+
+   private static final String ORDERS =
+      "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder " +
+      "WHERE orderID >= %d AND orderID < %d%s ORDER BY orderID";
+   private static final String ITEMS =
+      "SELECT orderID, itemName, quantity FROM ItemsInOrder " +
+      "WHERE orderID >= %d AND orderID < %d%s ORDER BY orderID";
+   private static final int FETCH = 1000;
+
+   /**
+    * What an export wrote.
+    */
+   public static class Result {
+      public final int chunks;
+      public final long orders;
+      public final long items;
+      public final long millis;
+
+      public Result(int chunks, long orders, long items, long millis) {
+         this.chunks = chunks;
+         this.orders = orders;
+         this.items = items;
+         this.millis = millis;
+      }
+   }//end Result
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderExport <dbname> <port> <user> [--out dir] [--threads N] " +
+                            "[--chunks N] [--since timestamp] [--until timestamp]");
+         return;
+      }
+      Map<String, String> opts = new HashMap<String, String>();
+      for (int i = 3; i < args.length - 1; ++i)
+         if (args[i].startsWith("--"))
+            opts.put(args[i].substring(2), args[++i]);
+      Class.forName("org.postgresql.Driver");
+      PizzaStore esql = new PizzaStore("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+      try {
+         int threads = opts.containsKey("threads") ? Integer.parseInt(opts.get("threads")) : esql.pool().size();
+         int chunks = opts.containsKey("chunks") ? Integer.parseInt(opts.get("chunks")) : threads * 4;
+         File out = new File(opts.containsKey("out") ? opts.get("out") : "export");
+         Result r = export(esql, out, threads, chunks, opts.get("since"), opts.get("until"));
+         System.out.printf("%d orders and %d order items in %d chunks to %s in %.1f s%n",
+                           r.orders, r.items, r.chunks, out, r.millis / 1000.0);
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Exports the orders placed in [since, until) with their items, from the
+    * primary and, when orders are sharded, from every shard.
+    *
+    * @param esql the connected store; its pools provide the worker connections
+    * @param dir the output directory, created if needed
+    * @param threads the number of workers per database, at most its pool size
+    * @param chunks the number of orderID ranges to cut each database's export into
+    * @param since the first orderTimestamp to export, or null
+    * @param until the orderTimestamp to stop before, or null
+    * @return the row counts
+    * @throws java.sql.SQLException when a query fails
+    * @throws java.io.IOException when a file cannot be written
+    */
+   public static Result export(PizzaStore esql, File dir, int threads, int chunks, String since, String until)
+         throws SQLException, IOException {
+      long start = System.currentTimeMillis();
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Unable to create " + dir);
+      StringBuilder when = new StringBuilder();
+      if (since != null)
+         when.append(" AND orderTimestamp >= '").append(since.replace("'", "''")).append('\'');
+      if (until != null)
+         when.append(" AND orderTimestamp < '").append(until.replace("'", "''")).append('\'');
+      String ordersFilter = when.toString();
+
+      long[] total = exportDatabase(esql.primary(), esql.pool(), dir, "", threads, chunks, ordersFilter);
+      ShardRouter shards = esql.shards();
+      if (shards != null) {
+         for (int i = 0; i < shards.count(); ++i) {
+            // the coordinator holds its snapshot outside the pool, so every pooled connection can be a worker
+            Connection coordinator = shards.pool(i).open();
+            try {
+               long[] part = exportDatabase(coordinator, shards.pool(i), dir, "shard" + i + "-", threads, chunks,
+                                            ordersFilter);
+               for (int k = 0; k < total.length; ++k)
+                  total[k] += part[k];
+            } finally {
+               coordinator.close();
+            }
+         }//end for
+      }//end if
+      return new Result((int) total[0], total[1], total[2], System.currentTimeMillis() - start);
+   }//end export
+
+   // exports one database into files named prefix + foodorder-NNNN.csv.gz ...; returns {chunks, orders, items}
+   private static long[] exportDatabase(Connection coordinator, final ConnectionPool pool, File dir, final String prefix,
+                                        int threads, int chunks, final String ordersFilter)
+         throws SQLException, IOException {
+      coordinator.setAutoCommit(false);
+      try {
+         execute(coordinator, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         Statement stmt = coordinator.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()");
+         rs.next();
+         final String snapshot = rs.getString(1);
+         rs = stmt.executeQuery("SELECT MIN(orderID), MAX(orderID) FROM FoodOrder WHERE true" + ordersFilter);
+         rs.next();
+         long lo = rs.getLong(1);
+         long hi = rs.getLong(2) + 1;
+         boolean empty = rs.wasNull();
+         stmt.close();
+         if (empty)
+            return new long[] { 0, 0, 0 };
+
+         // equal orderID ranges: orderIDs come from one sequence, so they are dense
+         final ConcurrentLinkedQueue<long[]> queue = new ConcurrentLinkedQueue<long[]>();
+         chunks = (int) Math.max(1, Math.min(chunks, hi - lo));
+         for (int i = 0; i < chunks; ++i)
+            queue.add(new long[] { i, lo + (hi - lo) * i / chunks, lo + (hi - lo) * (i + 1) / chunks });
+         final File out = dir;
+         final AtomicLong orders = new AtomicLong();
+         final AtomicLong items = new AtomicLong();
+         threads = Math.max(1, Math.min(threads, Math.min(chunks, pool.size())));
+         ExecutorService workers = Executors.newFixedThreadPool(threads);
+         try {
+            Future<?>[] running = new Future<?>[threads];
+            for (int t = 0; t < threads; ++t) {
+               running[t] = workers.submit(() -> {
+                  Connection c = pool.borrow();
+                  boolean failed = true;
+                  try {
+                     c.setAutoCommit(false);
+                     try {
+                        execute(c, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+                        execute(c, "SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+                        for (long[] chunk = queue.poll(); chunk != null; chunk = queue.poll()) {
+                           String name = String.format("%04d.csv.gz", chunk[0]);
+                           orders.addAndGet(copy(c, String.format(ORDERS, chunk[1], chunk[2], ordersFilter),
+                                                 new File(out, prefix + "foodorder-" + name)));
+                           String itemsFilter = ordersFilter.isEmpty() ? "" : String.format(
+                              " AND orderID IN (SELECT orderID FROM FoodOrder WHERE orderID >= %d AND orderID < %d%s)",
+                              chunk[1], chunk[2], ordersFilter);
+                           items.addAndGet(copy(c, String.format(ITEMS, chunk[1], chunk[2], itemsFilter),
+                                                new File(out, prefix + "itemsinorder-" + name)));
+                        }//end for
+                     } finally {
+                        c.rollback();
+                        c.setAutoCommit(true);
+                     }//end try
+                     failed = false;
+                  } finally {
+                     pool.release(c, failed);
+                  }//end try
+                  return null;
+               });
+            }//end for
+            for (Future<?> f : running)
+               await(f, queue);
+         } finally {
+            workers.shutdown();
+         }
+         return new long[] { chunks, orders.get(), items.get() };
+      } finally {
+         // the snapshot must stay exported until every worker has imported it
+         coordinator.rollback();
+         coordinator.setAutoCommit(true);
+      }//end try
+   }//end exportDatabase
+
+   // waits for a worker; after a failure the queue is emptied so the others stop
+   private static void await(Future<?> f, ConcurrentLinkedQueue<long[]> queue) throws SQLException, IOException {
+      try {
+         f.get();
+      } catch (InterruptedException e) {
+         queue.clear();
+         Thread.currentThread().interrupt();
+         throw new SQLException("Export interrupted");
+      } catch (java.util.concurrent.ExecutionException e) {
+         queue.clear();
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         throw new IllegalStateException(e.getCause());
+      }//end try
+   }//end await
+
+   private static void execute(Connection c, String sql) throws SQLException {
+      Statement stmt = c.createStatement();
+      try {
+         stmt.execute(sql);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   // streams one query to a gzipped CSV file, returning the rows written
+   private static long copy(Connection c, String query, File file) throws SQLException, IOException {
+      OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536), 65536);
+      try {
+         Method copyApi = copyApi(c);
+         if (copyApi != null)
+            return copyOut(c, copyApi, query, out);
+         return cursor(c, query, out);
+      } finally {
+         out.close();
+      }
+   }//end copy
+
+   // the driver's PGConnection.getCopyAPI(), or null when it has none
+   private static Method copyApi(Connection c) {
+      try {
+         return c.getClass().getMethod("getCopyAPI");
+      } catch (NoSuchMethodException e) {
+         return null;
+      }
+   }
+
+   private static long copyOut(Connection c, Method copyApi, String query, OutputStream out)
+         throws SQLException, IOException {
+      try {
+         Object manager = copyApi.invoke(c);
+         Method copyOut = manager.getClass().getMethod("copyOut", String.class, OutputStream.class);
+         return ((Number) copyOut.invoke(manager, "COPY (" + query + ") TO STDOUT WITH (FORMAT csv, HEADER)", out))
+            .longValue();
+      } catch (InvocationTargetException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         throw new SQLException("COPY failed: " + e.getCause());
+      } catch (ReflectiveOperationException e) {
+         throw new SQLException("COPY failed: " + e);
+      }//end try
+   }//end copyOut
+
+   // the same CSV as COPY: header, NULL as an empty field, quotes only where needed
+   private static long cursor(Connection c, String query, OutputStream out) throws SQLException, IOException {
+      Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      Statement stmt = c.createStatement();
+      long rows = 0;
+      try {
+         stmt.execute("DECLARE export NO SCROLL CURSOR FOR " + query);
+         boolean header = true;
+         while (true) {
+            ResultSet rs = stmt.executeQuery("FETCH " + FETCH + " FROM export");
+            ResultSetMetaData meta = rs.getMetaData();
+            int n = meta.getColumnCount();
+            if (header) {
+               for (int i = 1; i <= n; ++i)
+                  w.write((i > 1 ? "," : "") + meta.getColumnName(i));
+               w.write('\n');
+               header = false;
+            }
+            int fetched = 0;
+            while (rs.next()) {
+               for (int i = 1; i <= n; ++i) {
+                  if (i > 1)
+                     w.write(',');
+                  field(w, rs.getString(i));
+               }
+               w.write('\n');
+               ++fetched;
+            }//end while
+            rs.close();
+            rows += fetched;
+            if (fetched < FETCH)
+               break;
+         }//end while
+         stmt.execute("CLOSE export");
+      } finally {
+         stmt.close();
+      }
+      w.flush();
+      return rows;
+   }//end cursor
+
+   private static void field(Writer w, String s) throws IOException {
+      if (s == null)
+         return;
+      if (s.isEmpty() || s.indexOf(',') >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0)
+         w.write('"' + s.replace("\"", "\"\"") + '"');
+      else
+         w.write(s);
+   }//end field
+
+}//end OrderExport
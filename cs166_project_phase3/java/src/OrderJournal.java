@@ -0,0 +1,409 @@
+/*
+ * Order Journal
+ * =============
+ *
+ * Store-local, memory-mapped log of orders taken while the database could
+ * not be reached, replayed into FoodOrder and ItemsInOrder in the
+ * background.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The journal is one file of fixed size, mapped into memory:
+ *
+ *    header   magic, replay position
+ *    records  length, CRC32 of the payload, payload ... then a length of 0
+ *
+ * An append writes the payload and checksum first and the length last, then
+ * forces the mapping to disk, so a record is either whole or ends the log; on
+ * open the records are scanned from the replay position and the first torn
+ * or corrupt one ends the log. When every record has been replayed the log
+ * starts over at the front of the file.
+ *
+ * Every journaled order carries a request key (the client's, or a generated
+ * one), so the replayer can write a record again after a crash without
+ * doubling the order. A replayer thread drains the journal every
+ * -Dpizzastore.journal.replayMs (default 1000) in transactions of up to
+ * -Dpizzastore.journal.batch (default 50) orders. After a failed batch the
+ * replayer waits twice as long each time, up to 32 times replayMs, and keeps
+ * every order for as long as the database stays unreachable. Only an order
+ * the database answers and refuses on its own (5 tries, then a constraint or
+ * data error, or a failure while the database still answers a trivial query)
+ * is moved to the file's .rejected companion so it does not block the rest.
+ *
+ *    -Dpizzastore.journal=orders.journal      turns the journal on
+ *    -Dpizzastore.journal.sizeKB=16384
+ *    -Dpizzastore.journal.mode=fallback|always
+ *
+ * In fallback mode an order is journaled only when the database cannot be
+ * reached (a connection, resource or shutdown error, or no answer to a
+ * trivial query); an order it refuses fails checkout as before. In always
+ * mode every order is journaled and checkout never
+ * waits for the database.
+ */
+public class OrderJournal {
+
+   /**
+    * One journaled order.
+    */
+   public static class Entry {
+      public final String requestKey;
+      public final String login;
+      public final int storeID;
+      public final double totalPrice;
+      // when the order was taken, yyyy-MM-dd HH:mm:ss
+      public final String orderTimestamp;
+      public final Map<String, Integer> items;
+      // end of the record in the file, set when read back
+      final int end;
+
+      public Entry(String requestKey, String login, int storeID, double totalPrice, String orderTimestamp,
+                   Map<String, Integer> items) {
+         this(requestKey, login, storeID, totalPrice, orderTimestamp, items, -1);
+      }
+
+      private Entry(String requestKey, String login, int storeID, double totalPrice, String orderTimestamp,
+                    Map<String, Integer> items, int end) {
+         this.requestKey = requestKey;
+         this.login = login;
+         this.storeID = storeID;
+         this.totalPrice = totalPrice;
+         this.orderTimestamp = orderTimestamp;
+         this.items = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(items));
+         this.end = end;
+      }
+   }//end Entry
+
+   /**
+    * Writes replayed orders to the database.
+    */
+   public interface Sink {
+      /**
+       * Writes a batch of orders in one transaction. Orders whose request key
+       * is already in the database are skipped.
+       *
+       * @param batch the orders, all for stores of one database
+       * @throws java.sql.SQLException when the batch could not be written
+       */
+      void write(List<Entry> batch) throws SQLException;
+
+      /**
+       * @param a one store
+       * @param b another store
+       * @return true when their orders are written to the same database
+       */
+      boolean sameDatabase(int a, int b) throws SQLException;
+
+      /**
+       * Tells an order the database refuses from a database that could not be
+       * reached.
+       *
+       * @param e an order that failed on its own
+       * @param cause why it failed
+       * @return true when the database answered and refused the order itself
+       */
+      boolean refused(Entry e, SQLException cause);
+
+      /**
+       * Called after an order the database refused was set aside, so whatever
+       * was kept about it as pending can be dropped.
+       *
+       * @param e the order
+       */
+      void rejected(Entry e);
+   }//end Sink
+
+   private static final int MAGIC = 0x505a4a31;
+   // magic, replay position
+   private static final int HEADER = 16;
+   private static final int REPLAY_AT = 8;
+   private static final int MAX_TRIES = 5;
+   // the longest wait after failures, in multiples of replayMs
+   private static final int MAX_BACKOFF = 32;
+
+   private final String _path;
+   private final MappedByteBuffer _map;
+   private final boolean _always;
+   private final int _batch = Integer.getInteger("pizzastore.journal.batch", 50);
+   private final long _replayMillis = Long.getLong("pizzastore.journal.replayMs", 1000L);
+   private int _replayAt;
+   private int _writeAt;
+   private int _pending;
+   private Thread _replayer = null;
+   private volatile boolean _running = true;
+
+   /**
+    * Maps the journal file, creating it if needed, and finds the records
+    * still to replay.
+    *
+    * @param path the journal file
+    * @param size the file size in bytes
+    * @param always true to journal every order, false only when the database fails
+    * @throws java.io.IOException when the file cannot be mapped
+    */
+   public OrderJournal(String path, int size, boolean always) throws IOException {
+      this._path = path;
+      this._always = always;
+      RandomAccessFile file = new RandomAccessFile(path, "rw");
+      try {
+         boolean fresh = file.length() == 0;
+         if (fresh)
+            file.setLength(size);
+         this._map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+      } finally {
+         file.close();
+      }
+      if (this._map.getInt(0) != MAGIC) {
+         this._map.putInt(0, MAGIC);
+         this._map.putInt(REPLAY_AT, HEADER);
+         this._map.putInt(HEADER, 0);
+         this._map.force();
+      }
+      this._replayAt = this._map.getInt(REPLAY_AT);
+      this._writeAt = this._replayAt;
+      // find the end of the log: the first empty, torn or corrupt record
+      for (Entry e = read(this._writeAt); e != null; e = read(this._writeAt)) {
+         this._writeAt = e.end;
+         ++this._pending;
+      }
+      if (this._writeAt + 4 <= this._map.capacity())
+         this._map.putInt(this._writeAt, 0);
+   }//end OrderJournal
+
+   /**
+    * @return the journal configured by -Dpizzastore.journal, or null if off
+    * @throws java.io.IOException when the file cannot be mapped
+    */
+   public static OrderJournal fromProperties() throws IOException {
+      String path = System.getProperty("pizzastore.journal");
+      if (path == null || path.trim().isEmpty())
+         return null;
+      return new OrderJournal(path.trim(), Integer.getInteger("pizzastore.journal.sizeKB", 16384) * 1024,
+                              "always".equals(System.getProperty("pizzastore.journal.mode")));
+   }
+
+   /**
+    * @return true when every order goes through the journal
+    */
+   public boolean always() {
+      return this._always;
+   }
+
+   /**
+    * @return the number of orders waiting to be replayed
+    */
+   public synchronized int pending() {
+      return this._pending;
+   }
+
+   /**
+    * Appends an order and forces it to disk.
+    *
+    * @param e the order
+    * @throws java.sql.SQLException when the journal is full
+    */
+   public synchronized void append(Entry e) throws SQLException {
+      byte[] payload = encode(e);
+      int end = this._writeAt + 8 + payload.length;
+      if (this._writeAt == this._replayAt && this._writeAt > HEADER) {
+         // everything is replayed, start over at the front
+         this._map.putInt(HEADER, 0);
+         this._map.putInt(REPLAY_AT, HEADER);
+         this._map.force();
+         this._replayAt = HEADER;
+         this._writeAt = HEADER;
+         end = HEADER + 8 + payload.length;
+      }
+      if (end + 4 > this._map.capacity())
+         throw new SQLException("Order placement failed, the database is unreachable and the order journal is full.");
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      this._map.putInt(end, 0);
+      this._map.position(this._writeAt + 8);
+      this._map.put(payload);
+      this._map.putInt(this._writeAt + 4, (int) crc.getValue());
+      this._map.force();
+      // the length commits the record
+      this._map.putInt(this._writeAt, payload.length);
+      this._map.force();
+      this._writeAt = end;
+      ++this._pending;
+      notifyAll();
+   }//end append
+
+   // the record at pos, or null at the end of the log
+   private Entry read(int pos) {
+      if (pos + 8 > this._map.capacity())
+         return null;
+      int length = this._map.getInt(pos);
+      if (length <= 0 || pos + 8 + length > this._map.capacity())
+         return null;
+      byte[] payload = new byte[length];
+      for (int i = 0; i < length; ++i)
+         payload[i] = this._map.get(pos + 8 + i);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != this._map.getInt(pos + 4))
+         return null;
+      try {
+         return decode(payload, pos + 8 + length);
+      } catch (IOException ex) {
+         return null;
+      }
+   }//end read
+
+   private static byte[] encode(Entry e) {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeUTF(e.requestKey);
+         out.writeUTF(e.login);
+         out.writeInt(e.storeID);
+         out.writeDouble(e.totalPrice);
+         out.writeUTF(e.orderTimestamp);
+         out.writeInt(e.items.size());
+         for (Map.Entry<String, Integer> item : e.items.entrySet()) {
+            out.writeUTF(item.getKey());
+            out.writeInt(item.getValue());
+         }
+         out.flush();
+         return bytes.toByteArray();
+      } catch (IOException ex) {
+         throw new IllegalStateException(ex);
+      }
+   }//end encode
+
+   private static Entry decode(byte[] payload, int end) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+      String requestKey = in.readUTF();
+      String login = in.readUTF();
+      int storeID = in.readInt();
+      double totalPrice = in.readDouble();
+      String orderTimestamp = in.readUTF();
+      int n = in.readInt();
+      Map<String, Integer> items = new LinkedHashMap<String, Integer>();
+      for (int i = 0; i < n; ++i)
+         items.put(in.readUTF(), in.readInt());
+      return new Entry(requestKey, login, storeID, totalPrice, orderTimestamp, items, end);
+   }//end decode
+
+   // up to max records from the replay position
+   private synchronized List<Entry> next(int max) {
+      List<Entry> batch = new ArrayList<Entry>();
+      int pos = this._replayAt;
+      while (batch.size() < max && pos < this._writeAt) {
+         Entry e = read(pos);
+         if (e == null)
+            break;
+         batch.add(e);
+         pos = e.end;
+      }
+      return batch;
+   }//end next
+
+   // marks the records up to end as replayed
+   private synchronized void replayed(int end, int count) {
+      this._replayAt = end;
+      this._map.putInt(REPLAY_AT, end);
+      this._map.force();
+      this._pending -= count;
+   }
+
+   /**
+    * Starts the background replayer.
+    *
+    * @param sink where the orders are written
+    */
+   public synchronized void startReplay(final Sink sink) {
+      if (this._replayer != null)
+         return;
+      this._replayer = new Thread(new Runnable() {
+         public void run() {
+            replayLoop(sink);
+         }
+      }, "pizzastore-journal");
+      this._replayer.setDaemon(true);
+      this._replayer.start();
+   }//end startReplay
+
+   private void replayLoop(Sink sink) {
+      int failures = 0;
+      while (this._running) {
+         try {
+            synchronized (this) {
+               if (failures > 0)
+                  wait(this._replayMillis * Math.min(1 << Math.min(failures - 1, 5), MAX_BACKOFF));
+               else if (this._pending == 0)
+                  wait(this._replayMillis);
+            }
+            List<Entry> batch = next(failures >= MAX_TRIES ? 1 : this._batch);
+            if (batch.isEmpty())
+               continue;
+            // one transaction writes to one database
+            int n = 1;
+            while (n < batch.size() && sink.sameDatabase(batch.get(0).storeID, batch.get(n).storeID))
+               ++n;
+            batch = batch.subList(0, n);
+            try {
+               sink.write(batch);
+               failures = 0;
+            } catch (SQLException e) {
+               // during an outage every order stays; only one the database refuses on its own is set aside
+               if (++failures <= MAX_TRIES || batch.size() > 1 || !sink.refused(batch.get(0), e))
+                  continue;
+               reject(batch.get(0), e);
+               sink.rejected(batch.get(0));
+               failures = 0;
+            }
+            Entry last = batch.get(batch.size() - 1);
+            replayed(last.end, batch.size());
+         } catch (InterruptedException e) {
+            return;
+         } catch (Exception e) {
+            System.err.println("Order journal: " + e.getMessage());
+         }//end try
+      }//end while
+   }//end replayLoop
+
+   private void reject(Entry e, SQLException cause) {
+      try {
+         FileWriter out = new FileWriter(this._path + ".rejected", true);
+         try {
+            out.write(String.format("%s %s store %d %.2f %s %s: %s%n", e.orderTimestamp, e.login, e.storeID,
+                                    e.totalPrice, e.items, e.requestKey, cause.getMessage()));
+         } finally {
+            out.close();
+         }
+      } catch (IOException ex) {
+         System.err.println("Order journal: " + ex.getMessage());
+      }
+      System.err.println("Order journal: order " + e.requestKey + " refused, moved to " + this._path + ".rejected");
+   }//end reject
+
+   /**
+    * Stops the replayer. Orders not replayed yet stay in the file.
+    */
+   public void close() {
+      this._running = false;
+      if (this._replayer != null)
+         this._replayer.interrupt();
+   }
+
+}//end OrderJournal
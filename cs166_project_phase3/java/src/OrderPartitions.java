@@ -0,0 +1,85 @@
+/*
+ * Order Partitions
+ * ================
+ *
+ * Keeps the orderID range partitions of FoodOrder and ItemsInOrder (see
+ * sql/src/partition_orders.sql) created ahead of the orders being placed.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When -Dpizzastore.orders.partitioned=true, the connect of PizzaStore runs
+ * ensure_order_partitions() so the partitions for the next
+ * -Dpizzastore.orders.partitionsAhead (default 2) partition widths of
+ * orderIDs exist. Every placed order is reported to placed(); the first order
+ * in a new partition runs ensure_order_partitions() again in the background,
+ * so inserts never reach an orderID without a partition.
+ *
+ * Queries by orderID (order details, status updates) name the partition key
+ * and read one partition of each table. Per-login history has no orderID or
+ * time bound, so it is not pruned and reads every partition's foodTime
+ * index.
+ */
+public class OrderPartitions {
+
+   private final boolean _enabled = Boolean.getBoolean("pizzastore.orders.partitioned");
+   private final int _ahead = Integer.getInteger("pizzastore.orders.partitionsAhead", 2);
+
+   // orderIDs per partition, 0 until known
+   private volatile int _width = 0;
+
+   // the highest partition number partitions were ensured for
+   private final AtomicLong _checked = new AtomicLong(-1);
+
+   /**
+    * @return true when the order tables are partitioned
+    */
+   public boolean enabled() {
+      return this._enabled;
+   }
+
+   /**
+    * Creates the missing partitions up to partitionsAhead past the current
+    * orderIDs.
+    *
+    * @param esql the store the query runs through
+    * @param conn a connection to the primary
+    * @throws java.sql.SQLException when the partitions cannot be created
+    */
+   public void ensure(PizzaStore esql, Connection conn) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(conn,
+         "SELECT ensure_order_partitions(" + this._ahead + ");");
+      this._width = Integer.parseInt(rows.get(0).get(0).trim());
+   }//end ensure
+
+   /**
+    * Notes a placed order, creating further partitions in the background the
+    * first time an order lands in a new partition.
+    *
+    * @param esql the store whose pool runs the background work
+    * @param orderID the new order
+    */
+   public void placed(final PizzaStore esql, int orderID) {
+      int width = this._width;
+      if (!this._enabled || width == 0)
+         return;
+      long partition = orderID / width;
+      long checked = this._checked.get();
+      if (partition <= checked || !this._checked.compareAndSet(checked, partition))
+         return;
+      esql.async().submit(c -> {
+         ensure(esql, c);
+         return null;
+      }).exceptionally(e -> {
+         System.err.println("Unable to create order partitions: " + e.getMessage());
+         this._checked.set(checked);
+         return null;
+      });
+   }//end placed
+
+}//end OrderPartitions
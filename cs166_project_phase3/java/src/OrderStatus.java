@@ -0,0 +1,44 @@
+/*
+ * Order Status
+ * ============
+ *
+ * The states of an order, stored as the order_status enum type.
+ *
+ */
+
+/**
+ * The status of an order. The label is the value of the order_status enum in
+ * the database.
+ */
+public enum OrderStatus {
+   INCOMPLETE("incomplete"), COMPLETE("complete");
+
+   public final String label;
+
+   OrderStatus(String label) {
+      this.label = label;
+   }
+
+   /**
+    * @param label an order_status value, or a status typed by a user (any case,
+    *        surrounding blanks ignored)
+    * @return the status, or null if label is not one
+    */
+   public static OrderStatus of(String label) {
+      if (label == null)
+         return null;
+      for (OrderStatus s : values())
+         if (s.label.equals(label))
+            return s;
+      String l = label.trim();
+      for (OrderStatus s : values())
+         if (s.label.equalsIgnoreCase(l))
+            return s;
+      return null;
+   }//end of
+
+   public String toString() {
+      return this.label;
+   }
+
+}//end OrderStatus
@@ -20,9 +20,14 @@ import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.lang.Math;
 
 /**
@@ -35,6 +40,64 @@ public class PizzaStore {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // routes read-only menu actions to replicas, writes to _connection
+   private DataSourceRouter _router = null;
+
+   // last few orders per login, shared by every session of this process
+   private final RecentOrdersCache _recentOrders = new RecentOrdersCache();
+
+   // the order databases by storeID, null when orders are in this database
+   private ShardRouter _shards = null;
+
+   // orderID range partitions of FoodOrder and ItemsInOrder, if enabled
+   private final OrderPartitions _partitions = new OrderPartitions();
+
+   // orders placed with a client request key, for cheap retries
+   private final RequestKeyCache _requestKeys = new RequestKeyCache();
+
+   // completed orders shown by View Order Information, kept briefly
+   private final OrderDetailCache _orderDetails = new OrderDetailCache();
+
+   // Store table held in memory for View Stores and store lookups
+   private final StoreDirectory _stores = new StoreDirectory();
+
+   // item quantities of the incomplete orders per store
+   private final PrepBoard _prepBoard = new PrepBoard();
+
+   // Items table and user roles held in memory
+   private final MenuCache _menu = new MenuCache();
+   private final RoleCache _roles = new RoleCache();
+
+   // invalidates the caches above when another process changes their tables
+   private CacheBus _cacheBus = null;
+
+   // off-peak VACUUM, ANALYZE and REINDEX of the order tables, if enabled
+   private MaintenanceScheduler _maintenance = null;
+
+   // who changed users, the menu and order statuses, if enabled
+   private AuditTrail _audit = null;
+
+   // orders taken while the database is unreachable, if enabled
+   private OrderJournal _journal = null;
+
+   // connections for background work, opened up front
+   private ConnectionPool _pool = null;
+
+   // concurrent lookups on the pooled connections
+   private AsyncPizzaStore _async = null;
+
+   // per-login and per-store rate limits of the service operations
+   private final AdmissionControl _admission = new AdmissionControl();
+
+   // the business operations, on the session connection
+   private PizzaStoreService _service = null;
+
+   // buffered console output of this session
+   private final ResultRenderer _renderer = new ResultRenderer();
+
+   // statements over the slow query threshold, one log per process
+   private static final SlowQueryLog SLOW_QUERIES = new SlowQueryLog();
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -58,7 +121,7 @@ public class PizzaStore {
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         connect(url, user, passwd);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -67,22 +130,75 @@ public class PizzaStore {
       }//end catch
    }//end PizzaStore
 
+   /**
+    * Creates a new instance of PizzaStore for embedding: no console output,
+    * and a failed connection is thrown to the caller.
+    *
+    * @param url the JDBC connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public PizzaStore(String url, String user, String passwd) throws SQLException {
+      connect(url, user, passwd);
+   }//end PizzaStore
+
+   private void connect(String url, String user, String passwd) throws SQLException {
+      this._connection = DriverManager.getConnection(url, user, passwd);
+      SLOW_QUERIES.credentials(user, passwd);
+      this._router = new DataSourceRouter(this._connection, user, passwd);
+      this._pool = new ConnectionPool(url, user, passwd, Integer.getInteger("pizzastore.pool.size", 4));
+      this._async = new AsyncPizzaStore(this, this._pool);
+      this._shards = ShardRouter.fromProperties(user, passwd);
+      this._service = new PizzaStoreService(this);
+      this._cacheBus = CacheBus.fromProperties(this, url, user, passwd);
+      this._audit = AuditTrail.fromProperties(url, user, passwd);
+      this._maintenance = MaintenanceScheduler.fromProperties(url, user, passwd);
+      try {
+         this._journal = OrderJournal.fromProperties();
+      } catch (IOException e) {
+         throw new SQLException("Unable to open the order journal: " + e.getMessage());
+      }
+      if (this._journal != null)
+         this._journal.startReplay(this._service.journalSink(url, user, passwd));
+      if (this._partitions.enabled())
+         this._partitions.ensure(this, this._connection);
+   }//end connect
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql) throws SQLException {
+      return executeUpdate (this._connection, sql);
+   }//end executeUpdate
+
+   /**
+    * Method to execute an update SQL statement on the given connection.
+    *
+    * @param conn the connection to run the statement on
+    * @param sql the input SQL string
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   int executeUpdate (Connection conn, String sql) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      StatementEvent event = StatementEvent.start ();
+      long start = System.nanoTime ();
+      int rows = stmt.executeUpdate (sql);
 
       // close the instruction
       stmt.close ();
+      finished (conn, sql, event, start, rows);
+      this._router.noteWrite ();
+      return rows;
    }//end executeUpdate
 
    /**
@@ -95,38 +211,49 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      return executeQueryAndPrintResult (this._connection, query);
+   }//end executeQuery
+
+   /**
+    * Method to execute a read-only query (i.e. SELECT) on a read replica when
+    * one is configured and fresh enough, and output the results to standard
+    * out. Falls back to the primary if the replica fails.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeReadQueryAndPrintResult (String query) throws SQLException {
+      Connection conn = this._router.forRead ();
+      try {
+         return executeQueryAndPrintResult (conn, query);
+      }catch (SQLException e){
+         if (this._router.isPrimary (conn))
+            throw e;
+         this._router.markFailed (conn);
+         return executeQueryAndPrintResult (this._connection, query);
+      }//end try
+   }//end executeReadQueryAndPrintResult
+
+   private int executeQueryAndPrintResult (Connection conn, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
+      StatementEvent event = StatementEvent.start ();
+      long start = System.nanoTime ();
       ResultSet rs = stmt.executeQuery (query);
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
+      // streams the rows through the session's buffered renderer and
+      // writes them to standard out in one go.
+      int rowCount = this._renderer.render (rs);
+      this._renderer.flush ();
       stmt.close();
+      finished (conn, query, event, start, rowCount);
+      if (isWrite (query))
+         this._router.noteWrite ();
       return rowCount;
-   }//end executeQuery
+   }//end executeQueryAndPrintResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -138,10 +265,46 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      return executeQueryAndReturnResult (this._connection, query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a read-only query (i.e. SELECT) on a read replica when
+    * one is configured and fresh enough, falling back to the primary if the
+    * replica fails. Must not be used for statements that modify data.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query) throws SQLException {
+      Connection conn = this._router.forRead ();
+      try {
+         return executeQueryAndReturnResult (conn, query);
+      }catch (SQLException e){
+         if (this._router.isPrimary (conn))
+            throw e;
+         this._router.markFailed (conn);
+         return executeQueryAndReturnResult (this._connection, query);
+      }//end try
+   }//end executeReadQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) on the
+    * given connection and return the results as a list of records.
+    *
+    * @param conn the connection to run the query on
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   List<List<String>> executeQueryAndReturnResult (Connection conn, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
+      StatementEvent event = StatementEvent.start ();
+      long start = System.nanoTime ();
       ResultSet rs = stmt.executeQuery (query);
 
       /*
@@ -162,9 +325,28 @@ public class PizzaStore {
         result.add(record);
       }//end while
       stmt.close ();
+      finished (conn, query, event, start, result.size ());
+      // e.g. INSERT ... RETURNING
+      if (isWrite (query))
+         this._router.noteWrite ();
       return result;
    }//end executeQueryAndReturnResult
 
+   // true unless the statement is a plain SELECT, so the reads after it stay on the primary
+   private static boolean isWrite (String sql) {
+      String head = sql.trim ();
+      while (head.startsWith ("("))
+         head = head.substring (1).trim ();
+      return !head.regionMatches (true, 0, "SELECT", 0, 6);
+   }//end isWrite
+
+   // records a statement that succeeded in the flight recording and the
+   // slow query log
+   private static void finished (Connection conn, String sql, StatementEvent event, long start, int rows) {
+      event.finish (sql, System.nanoTime () - start, rows);
+      SLOW_QUERIES.record (conn, sql, start, rows);
+   }//end finished
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -178,6 +360,8 @@ public class PizzaStore {
        Statement stmt = this._connection.createStatement ();
 
        // issues the query instruction
+       StatementEvent event = StatementEvent.start ();
+       long start = System.nanoTime ();
        ResultSet rs = stmt.executeQuery (query);
 
        int rowCount = 0;
@@ -187,6 +371,7 @@ public class PizzaStore {
           rowCount++;
        }//end while
        stmt.close ();
+       finished (this._connection, query, event, start, rowCount);
        return rowCount;
    }
 
@@ -208,11 +393,181 @@ public class PizzaStore {
 	return -1;
    }
 
+   /**
+    * @return the per-login cache of recent orders
+    */
+   public RecentOrdersCache recentOrders() {
+      return this._recentOrders;
+   }
+
+   /**
+    * @return the order shards, or null when orders are not sharded
+    */
+   public ShardRouter shards() {
+      return this._shards;
+   }
+
+   /**
+    * @return the partitioning of the order tables
+    */
+   public OrderPartitions partitions() {
+      return this._partitions;
+   }
+
+   /**
+    * @return the cache of orders placed with a request key
+    */
+   public RequestKeyCache requestKeys() {
+      return this._requestKeys;
+   }
+
+   /**
+    * @return the cache of completed order details
+    */
+   public OrderDetailCache orderDetails() {
+      return this._orderDetails;
+   }
+
+   /**
+    * @return the in-memory store directory
+    */
+   public StoreDirectory stores() {
+      return this._stores;
+   }
+
+   /**
+    * @return the kitchen prep boards of the stores
+    */
+   public PrepBoard prepBoard() {
+      return this._prepBoard;
+   }
+
+   /**
+    * @return the cached Items table
+    */
+   public MenuCache menu() {
+      return this._menu;
+   }
+
+   /**
+    * @return the cached user roles
+    */
+   public RoleCache roles() {
+      return this._roles;
+   }
+
+   /**
+    * Method to look up the role of a user, trimmed, from the role cache.
+    *
+    * @param login the user login
+    * @return the role, or null if the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Role getRole(String login) throws SQLException {
+      return this._roles.get(this, login);
+   }
+
+   /**
+    * @return the maintenance scheduler, or null when it is off
+    */
+   public MaintenanceScheduler maintenance() {
+      return this._maintenance;
+   }
+
+   /**
+    * @return the audit trail, or null when it is off
+    */
+   public AuditTrail audit() {
+      return this._audit;
+   }
+
+   /**
+    * @return the order journal, or null when it is off
+    */
+   public OrderJournal journal() {
+      return this._journal;
+   }
+
+   /**
+    * @return the pool of background connections
+    */
+   public ConnectionPool pool() {
+      return this._pool;
+   }
+
+   /**
+    * @return the asynchronous data access over the pool
+    */
+   public AsyncPizzaStore async() {
+      return this._async;
+   }
+
+   /**
+    * @return the rate limits shared by every service of this store
+    */
+   public AdmissionControl admission() {
+      return this._admission;
+   }
+
+   /**
+    * @return the business operations on the session connection
+    */
+   public PizzaStoreService service() {
+      return this._service;
+   }
+
+   /**
+    * Records a write made on the session connection without going through
+    * the execute methods, so the next reads of this session stay on the
+    * primary.
+    */
+   public void noteWrite() {
+      this._router.noteWrite();
+   }
+
+   /**
+    * @return the session connection every write goes through
+    */
+   public Connection primary() {
+      return this._connection;
+   }
+
+   /**
+    * @return the buffered output of this session
+    */
+   public ResultRenderer renderer() {
+      return this._renderer;
+   }
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
+         if (this._cacheBus != null){
+            this._cacheBus.close ();
+         }//end if
+         if (this._journal != null){
+            this._journal.close ();
+         }//end if
+         if (this._audit != null){
+            this._audit.close ();
+         }//end if
+         if (this._maintenance != null){
+            this._maintenance.close ();
+         }//end if
+         if (this._router != null){
+            this._router.close ();
+         }//end if
+         if (this._async != null){
+            this._async.shutdown ();
+         }//end if
+         if (this._shards != null){
+            this._shards.close ();
+         }//end if
+         if (this._pool != null){
+            this._pool.close ();
+         }//end if
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -221,6 +576,11 @@ public class PizzaStore {
       }//end try
    }//end cleanup
 
+   // names of the user menu actions by choice, for the flight recorder
+   private static final String[] ACTIONS = { null, "viewProfile", "updateProfile", "viewMenu", "placeOrder",
+      "viewAllOrders", "viewRecentOrders", "viewOrderInfo", "viewStores", "updateOrderStatus", "updateMenu",
+      "updateUser", "viewPrepBoard" };
+
    /**
     * The main execution method
     *
@@ -240,13 +600,15 @@ public class PizzaStore {
       PizzaStore esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver");
          // instantiate the PizzaStore object and creates a physical
          // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
          esql = new PizzaStore (dbname, dbport, user, "");
+         if (StartupWarmup.enabled())
+            StartupWarmup.run (esql);
 
          boolean keepon = true;
          while(keepon) {
@@ -279,6 +641,7 @@ public class PizzaStore {
 
                 //**the following functionalities should only be able to be used by drivers & managers**
                 System.out.println("9. Update Order Status");
+                System.out.println("12. View Prep Board");
 
                 //**the following functionalities should ony be able to be used by managers**
                 System.out.println("10. Update Menu");
@@ -286,24 +649,32 @@ public class PizzaStore {
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
-                   case 5: viewAllOrders(esql, authorisedUser); break;
-                   case 6: viewRecentOrders(esql, authorisedUser); break;
-                   case 7: viewOrderInfo(esql, authorisedUser); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql, authorisedUser); break;
-                   case 10: updateMenu(esql, authorisedUser); break;
-                   case 11: updateUser(esql, authorisedUser); break;
-
-
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
+                int choice = readChoice();
+                OperationEvent operation = OperationEvent.start(
+                   choice > 0 && choice < ACTIONS.length ? ACTIONS[choice] : "other", authorisedUser);
+                try {
+                   switch (choice){
+                      case 1: viewProfile(esql, authorisedUser); break;
+                      case 2: updateProfile(esql, authorisedUser); break;
+                      case 3: viewMenu(esql); break;
+                      case 4: placeOrder(esql, authorisedUser); break;
+                      case 5: viewAllOrders(esql, authorisedUser); break;
+                      case 6: viewRecentOrders(esql, authorisedUser); break;
+                      case 7: viewOrderInfo(esql, authorisedUser); break;
+                      case 8: viewStores(esql); break;
+                      case 9: updateOrderStatus(esql, authorisedUser); break;
+                      case 10: updateMenu(esql, authorisedUser); break;
+                      case 11: updateUser(esql, authorisedUser); break;
+                      case 12: viewPrepBoard(esql, authorisedUser); break;
+
+
+
+                      case 20: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                } finally {
+                   operation.finish(esql.roles());
+                }//end try
               }
             }
          }//end while
@@ -384,11 +755,7 @@ public class PizzaStore {
          System.out.print("\tEnter User Phone Number: ");
          String phoneNum = in.readLine();
 
-         String createUserQry = ("INSERT INTO USERS (login, password, role, favoriteItems, phoneNum) VALUES ('"  
-                                 + username + "', '" + password + "', 'Customer', '', '" + phoneNum + "');");
-         // System.out.println(createUserQry);
-
-         esql.executeUpdate(createUserQry);
+         esql.service().createUser(username, password, phoneNum);
          System.out.println("\nProfile has been Created...\n");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -412,10 +779,7 @@ public class PizzaStore {
          String password = in.readLine();
 
          // Check for Log In
-         String query = "SELECT * FROM Users WHERE login = '" + username + "' AND password = '" + password + "';";
-         int userNum = esql.executeQuery(query);
-
-         if (userNum > 0) {
+         if (esql.service().login(username, password)) {
             System.out.println("\nSuccessfully Logged In...\n");
             return username;
          } 
@@ -435,16 +799,12 @@ public class PizzaStore {
 
    public static void viewProfile(PizzaStore esql, String username) {
         try {
-         String findRole = String.format("SELECT role FROM USERS WHERE login = '%s';", username);
-         // System.out.println(findRole);
-         List<List<String>> role = esql.executeQueryAndReturnResult(findRole);
-         // System.out.println(role);
+         Role check = esql.getRole(username);
+         // System.out.println(check);
 
-         if (!role.isEmpty()) {
-            String check = role.get(0).get(0).trim();
-            // System.out.println(check);
+         if (check != null) {
 
-            if(check.equals("Customer")) {
+            if(check == Role.CUSTOMER) {
                System.out.println("\nUser Profile: [ " + username + " ]");
                String userProfile = String.format("SELECT * FROM USERS WHERE login = '%s';", username);
                List<List<String>> user = esql.executeQueryAndReturnResult(userProfile);
@@ -534,18 +894,17 @@ public class PizzaStore {
     public static void updateProfile(PizzaStore esql, String username) {
       try {
 
-         String findRole = String.format("SELECT role FROM USERS WHERE login = '%s';", username);
-         List<List<String>> role = esql.executeQueryAndReturnResult(findRole);
+         Role check = esql.getRole(username);
+         List<List<String>> role;
          String userchoice;
          int input;
          List<String> isolate;
          String updateQry = "";
          boolean editing = true;
 
-         if (!role.isEmpty()) {
-            String check = role.get(0).get(0).trim();
+         if (check != null) {
 
-            if(check.equals("Customer")) {
+            if(check == Role.CUSTOMER) {
 
                while(editing) {
                   System.out.println("\nCUSTOMER PROFILE: [ "  + username + " ]");
@@ -826,11 +1185,14 @@ public class PizzaStore {
                                           System.out.println("---------");
                                           System.out.print("Enter New User Login: ");
                                           userchoice = in.readLine();
-                                          updateQry = String.format("UPDATE USERS SET login = '%s' WHERE login = '%s';", userchoice, holdName);
-                                          
+
                                           try {
-                                             esql.executeUpdate(updateQry);
-                                             System.out.println("\nUser Login has Successfully Updated...\n");
+                                             if (esql.service().renameUser(username, holdName, userchoice)) {
+                                                holdName = userchoice;
+                                                System.out.println("\nUser Login has Successfully Updated...\n");
+                                             } else {
+                                                System.out.println("\nUser not found...\n");
+                                             }
                                           } catch (Exception e) {
                                              System.err.println(e.getMessage());
                                           }
@@ -840,10 +1202,9 @@ public class PizzaStore {
                                           System.out.println("---------");
                                           System.out.print("Enter New User Role (Manager, Customer, Driver): ");
                                           userchoice = in.readLine();
-                                          updateQry = String.format("UPDATE USERS SET role = '%s' WHERE login = '%s';", userchoice, holdName);
                                           
                                           try {
-                                             esql.executeUpdate(updateQry);
+                                             esql.service().updateUser(username, holdName, userchoice, null, null);
                                              System.out.println("\nUser Role has Successfully Updated...\n");
                                           } catch (Exception e) {
                                              System.err.println(e.getMessage());
@@ -892,6 +1253,24 @@ public class PizzaStore {
          System.err.println(e.getMessage());
         }
     }
+    // prints menu rows read in MENU_COLUMNS order
+    private static void printMenu(PizzaStore esql, List<List<String>> rows) {
+       PrintWriter out = esql.renderer().out();
+       if (rows.isEmpty())
+          out.print("No Items Found...\n");
+       for (List<String> row : rows) {
+          out.print(row.get(0).trim()); out.print(" | $"); out.print(row.get(1).trim());
+          out.print(" | "); out.print(row.get(2).trim());
+          out.print("\n   "); out.print(row.get(4) == null ? "" : row.get(4).trim());
+          out.print("\n   "); out.print(row.get(3) == null ? "" : row.get(3).trim());
+          out.print("\n");
+       }
+       esql.renderer().flush();
+    }//end printMenu
+
+    // columns of the menu listing, in display order
+    static final String MENU_COLUMNS = "SELECT itemName, price, typeOfItem, description, ingredients FROM ITEMS";
+
     public static void viewMenu(PizzaStore esql) {
         try {
 
@@ -899,6 +1278,9 @@ public class PizzaStore {
          String viewMenuQry = "";
          String userChoice = "";
          boolean exitCase = true;
+         // ingredient and keyword search, answered from the menu index
+         List<String> with = null, without = null;
+         String keywords = null;
 
          while(exitCase) {
             System.out.println("\nPizza Store MENU");
@@ -906,6 +1288,7 @@ public class PizzaStore {
             System.out.println("1. View Full Menu");
             System.out.println("2. Search Menu by Type");
             System.out.println("3. Search Menu by Price");
+            System.out.println("4. Search Menu by Ingredient or Keyword");
             System.out.println("9. < EXIT");
             userChoice = in.readLine();
 
@@ -918,7 +1301,7 @@ public class PizzaStore {
            
             switch (input) {
                case 1:
-                  viewMenuQry = "SELECT * FROM ITEMS";
+                  viewMenuQry = MENU_COLUMNS;
                   exitCase = false;
                   break;   
 
@@ -926,7 +1309,12 @@ public class PizzaStore {
                   System.out.print("Enter Choice of Type (entree, sides, drinks): ");
                   userChoice = in.readLine();
 
-                  viewMenuQry = String.format("SELECT * FROM ITEMS WHERE typeOfItem = ' %s'", userChoice);
+                  ItemType type = ItemType.of(userChoice);
+                  if (type == null) {
+                     System.out.println("\nInvalid Type...\n");
+                     break;
+                  }
+                  viewMenuQry = String.format(MENU_COLUMNS + " WHERE typeOfItem = '%s'", type.label);
                   // System.out.println(viewMenuQry);
 
                   exitCase = false; 
@@ -938,7 +1326,7 @@ public class PizzaStore {
                   try {
                      float price = Float.parseFloat(userChoice);
 
-                     viewMenuQry = "SELECT * FROM ITEMS WHERE price <= " + price;
+                     viewMenuQry = MENU_COLUMNS + " WHERE price <= " + price;
                      // System.out.println(viewMenuQry);
 
                   } catch (Exception e) {
@@ -949,12 +1337,22 @@ public class PizzaStore {
                   exitCase = false;
                   break;
 
+               case 4:
+                  System.out.print("Must Include Ingredients (comma separated, blank for any): ");
+                  with = MenuIndex.ingredients(in.readLine());
+                  System.out.print("Must Not Include Ingredients (e.g. allergens, blank for none): ");
+                  without = MenuIndex.ingredients(in.readLine());
+                  System.out.print("Keywords (blank for none): ");
+                  keywords = in.readLine();
+                  exitCase = false;
+                  break;
+
                case 9:
                   exitCase = false;
                   return;
             
                default:
-                  System.out.println("Invalid Choice! Please Enter a Valid Choice (1-3)...");
+                  System.out.println("Invalid Choice! Please Enter a Valid Choice (1-4)...");
                   exitCase = true;
                   break;
             }
@@ -994,13 +1392,17 @@ public class PizzaStore {
                      break;
                }
 
-               List<List<String>> MENU = esql.executeQueryAndReturnResult(viewMenuQry);
+               if (exitCase) continue;
 
-               System.out.println("\nPizza Store Menu");
-               System.out.println("---------");
-               for(List<String> item : MENU) {
-                  System.out.println("|Item: " + item.get(0) + " | Price: $" + item.get(3) + "|\n\t|Type:" + item.get(2) + "\n\t|Description: " + item.get(4) + "\n\t|Ingredients: " + item.get(1) + "\n");
+               esql.renderer().out().print("\nPizza Store Menu\n---------\n");
+               if (with != null) {
+                  PizzaStoreService.MenuSort sort = input == 1 ? PizzaStoreService.MenuSort.PRICE_DESC
+                     : input == 2 ? PizzaStoreService.MenuSort.PRICE_ASC : PizzaStoreService.MenuSort.NONE;
+                  printMenu(esql, esql.service().searchMenu(null, with, without, keywords, null, null, sort));
+               } else {
+                  esql.executeReadQueryAndPrintResult(viewMenuQry);
                }
+               System.out.println();
 
             } catch (Exception e) {
                System.err.println(e.getMessage());
@@ -1016,7 +1418,10 @@ public class PizzaStore {
          String userinput = "";
          int storeID;
          String storeLocation = "";
-         String locateQry = "";
+
+         // load the stores and the menu together while the user types
+         CompletableFuture<StoreDirectory.Snapshot> storesLookup = esql.async().stores();
+         CompletableFuture<Map<String, List<String>>> menuLookup = esql.async().menu();
          
          System.out.println("\nORDER");
          System.out.println("---------");
@@ -1026,43 +1431,35 @@ public class PizzaStore {
          try {
             storeID = Integer.parseInt(userinput);
 
-            locateQry = String.format("SELECT * FROM STORE WHERE storeID = %d", storeID);
-            List<List<String>> Sto = esql.executeQueryAndReturnResult(locateQry);
-            if(!Sto.isEmpty()) {
+            StoreDirectory.Snapshot Sto = AsyncPizzaStore.join(storesLookup);
+            int storeRow = Sto.find(storeID);
+            if(storeRow >= 0) {
 
-               List<String> StoreName = Sto.get(0);
-               storeID = Integer.parseInt(StoreName.get(0));
-               storeLocation = StoreName.get(1);
+               storeLocation = Sto.address(storeRow);
                System.out.println("Ordering From: " + storeLocation + " | StoreID: " + storeID);
                boolean continueOrder = true;
                int quantity;
                double totalPrice = 0.0;
                double tempPrice = 0.0;
-               List<List<String>> itemFind;
                List<String> itemStuff;
 
-               List<String> items = new ArrayList<>();
-               List<Integer> quant = new ArrayList<>();
+               Map<String, List<String>> menu = AsyncPizzaStore.join(menuLookup);
+               Map<String, Integer> items = new LinkedHashMap<>();
 
                while (continueOrder) {
                   System.out.print("Enter Item to Order: ");
                   userinput = in.readLine();
                   // System.out.print(userinput);
 
-                  locateQry = String.format("SELECT * FROM ITEMS WHERE itemName = '%s';", userinput);
-                  // System.out.println(locateQry);
-
-                  itemFind = esql.executeQueryAndReturnResult(locateQry);
-                  if(!itemFind.isEmpty()) {
-                     itemStuff = itemFind.get(0);
+                  itemStuff = menu.get(userinput);
+                  if(itemStuff != null) {
 
                      System.out.print("Enter Quantity to Order: ");
                      quantity = Integer.parseInt(in.readLine());
 
                      // System.out.println(quantity);
 
-                     items.add(userinput);
-                     quant.add(quantity);
+                     items.merge(userinput, quantity, Integer::sum);
 
                      // System.out.println(itemStuff.get(3));
 
@@ -1095,27 +1492,16 @@ public class PizzaStore {
 
                } // While Loop Bracket
 
-               String orderQry = String.format("INSERT INTO FOODORDER (login, storeID, totalPrice, orderTimestamp, orderStatus) " + 
-                        "VALUES('%s', '%d', '%.2f', NOW(), 'incomplete') RETURNING orderID;", username, storeID, totalPrice);
-
-               List<List<String>> orderResult = esql.executeQueryAndReturnResult(orderQry);
-               if (orderResult.isEmpty()) {
-                  throw new Exception("Order placement failed, could not retrieve Order ID.");
-               }
+               PizzaStoreService.PlacedOrder order = esql.service().placeOrder(username, storeID, items);
 
-               int orderID = Integer.parseInt(orderResult.get(0).get(0)); // Get orderID
-               // System.out.println(orderID);
-               // System.out.println(orderID);
-
-               for(int i = 0; i < items.size(); i++) {
-                  // System.out.printf("'%d', '%s', '%d'\n", orderID, items.get(i), quant.get(i));
-                  String insertQry = String.format(" INSERT INTO ITEMSINORDER (orderID, itemName, quantity) VALUES ('%d', '%s', '%d');", orderID, items.get(i), quant.get(i));
-                  esql.executeUpdate(insertQry);
+               if (order.pending) {
+                  System.out.println("\nYour Order Has Been Taken!");
+                  System.out.println("The database is unavailable, the order will be submitted shortly.");
+               } else {
+                  System.out.println("\nYour Order Has Been Placed!");
+                  System.out.println("Order ID: " + order.orderID);
                }
-
-               System.out.println("\nYour Order Has Been Placed!");
-               System.out.println("Order ID: " + orderID);
-               System.out.printf("Total Order Price: %.2f\n\n", totalPrice);
+               System.out.printf("Total Order Price: %.2f\n\n", order.totalPrice);
 
             } else {
                System.out.println("\nStore Not Found...\n");
@@ -1134,25 +1520,21 @@ public class PizzaStore {
     public static void viewAllOrders(PizzaStore esql, String username) {
       try {
 
-         String roleQuery = "SELECT role FROM users WHERE login = '" + username + "';";
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+         Role role = esql.getRole(username);
 
-         if (roleResult.isEmpty()) {
+         if (role == null) {
             System.out.println("User not found.");
             return;
          }
 
-         String role = roleResult.get(0).get(0).trim();
-
          String targetUser = username; 
 
-         if (role.equalsIgnoreCase("manager") || role.equalsIgnoreCase("driver")) {
+         if (role.isStaff()) {
             System.out.print("Enter the username of the user whose order history you want to view: ");
             targetUser = in.readLine();
          }
 
-         String query = "SELECT * FROM FoodOrder WHERE login ='" + targetUser + "';";
-         List<List<String>> allOrders = esql.executeQueryAndReturnResult(query);
+         List<List<String>> allOrders = esql.service().orderHistory(username, targetUser);
 
          if (!allOrders.isEmpty()) {
             int count = 1;
@@ -1174,32 +1556,29 @@ public class PizzaStore {
    public static void viewRecentOrders(PizzaStore esql, String username) {
       try {
 
-         String roleQuery = "SELECT role FROM users WHERE login = '" + username + "';";
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+         Role role = esql.getRole(username);
 
-         if (roleResult.isEmpty()) {
+         if (role == null) {
             System.out.println("User not found.");
             return;
          }
 
-         String role = roleResult.get(0).get(0).trim();
-
          String targetUser = username; 
 
-         if (role.equalsIgnoreCase("manager") || role.equalsIgnoreCase("driver")) {
+         if (role.isStaff()) {
             System.out.print("Enter the username of the user whose recent order history you want to view: ");
             targetUser = in.readLine();
          }
 
-         String query = "SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '" + targetUser + "' ORDER BY orderTimestamp DESC LIMIT 5;";
-         List<List<String>> lastFive = esql.executeQueryAndReturnResult(query);
+         List<RecentOrdersCache.Entry> lastFive = esql.service().recentOrders(username, targetUser);
 
          if (!lastFive.isEmpty()) {
             int count = 1;
             System.out.println("\nRecent Order History of " + targetUser + ": \n");
 
-            for (List<String> order : lastFive) {
-                System.out.printf("[%d] ~ [ Order ID: %s ]\n", count,  order.get(0));
+            for (RecentOrdersCache.Entry order : lastFive) {
+                if (count > 5) break;
+                System.out.printf("[%d] ~ [ Order ID: %d ]\n", count,  order.orderID);
                 count++;
             }
                System.out.println();
@@ -1213,55 +1592,49 @@ public class PizzaStore {
    }
     public static void viewOrderInfo(PizzaStore esql, String username) {
         try {
-            String roleQuery = "SELECT role FROM users WHERE login = '" + username + "';";
-            List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+            Role role = esql.getRole(username);
 
-            if (roleResult.isEmpty()) {
+            if (role == null) {
                 System.out.println("User not found.");
                 return;
             }
-
-            String role = roleResult.get(0).get(0).trim();
             String targetUser = username;
 
-            if (role.equalsIgnoreCase("manager") || role.equalsIgnoreCase("driver")) {
+            if (role.isStaff()) {
                 System.out.print("Enter the username of the user whose order details you want to view: ");
                 targetUser = in.readLine();
             }
 
             System.out.print("Enter the Order ID to view details: ");
-            String orderID = in.readLine();
-
-            String orderQuery = "SELECT orderTimestamp, totalPrice, orderStatus, login " +
-                                "FROM FoodOrder WHERE orderID = '" + orderID + "';";
-
-            List<List<String>> orderResult = esql.executeQueryAndReturnResult(orderQuery);
-
-            if (orderResult.isEmpty()) {
-                System.out.println("Order not found.");
+            int orderID;
+            try {
+                orderID = Integer.parseInt(in.readLine().trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid Order ID.");
                 return;
             }
 
-            String orderTimestamp = orderResult.get(0).get(0);
-            String totalPrice = orderResult.get(0).get(1);
-            String orderStatus = orderResult.get(0).get(2);
-            String orderOwner = orderResult.get(0).get(3);
-
-            if (!role.equalsIgnoreCase("manager") && !role.equalsIgnoreCase("driver") && !orderOwner.equals(username)) {
-                System.out.println("You are not authorized to view this order.");
+            OrderDetail order;
+            try {
+                order = esql.service().orderDetail(username, orderID);
+            } catch (PizzaStoreService.ServiceException e) {
+                System.out.println(e.getMessage());
                 return;
             }
 
-            System.out.printf("\nOrder ID: %s\nDate: %s\nTotal Price: $%s\nStatus: %s\n",
-                            orderID, orderTimestamp, totalPrice, orderStatus);
+            if (order == null) {
+                System.out.println("Order not found.");
+                return;
+            }
 
-            String itemsQuery = "SELECT itemName, quantity FROM ItemsInOrder WHERE orderID = '" + orderID + "';";
-            List<List<String>> items = esql.executeQueryAndReturnResult(itemsQuery);
+            System.out.printf("\nOrder ID: %d\nDate: %s\nTotal Price: $%s\nStatus: %s\nStore: %d | %s\n",
+                            order.orderID, order.orderTimestamp, order.totalPrice, order.orderStatus,
+                            order.storeID, order.storeAddress);
 
-            if (!items.isEmpty()) {
+            if (!order.lines.isEmpty()) {
                 System.out.println("Items in this order:");
-                for (List<String> item : items) {
-                    System.out.printf("   - %s (x%s)\n", item.get(0), item.get(1));
+                for (OrderDetail.Line item : order.lines) {
+                    System.out.printf("   - %s (x%d) @ $%s\n", item.itemName, item.quantity, item.unitPrice);
                 }
             } else {
                 System.out.println("No items found in this order.");
@@ -1275,11 +1648,62 @@ public class PizzaStore {
 
    public static void viewStores(PizzaStore esql) {
         try {
-         String viewStoresQry = "SELECT * FROM STORE;";
-         List<List<String>> Stores = esql.executeQueryAndReturnResult(viewStoresQry);
+         StoreDirectory.Snapshot Stores = esql.stores().get(esql);
+         String state = null;
+         boolean openOnly = false;
+         StoreDirectory.Sort sort = StoreDirectory.Sort.STORE_ID;
+         int pageSize = 10;
+
+         System.out.println("\nVIEW STORES");
+         System.out.println("---------");
+         System.out.println("1. View All Stores");
+         System.out.println("2. Filter by State");
+         System.out.println("3. Open Stores Only");
+         System.out.println("9. < EXIT");
+         switch (readChoice()) {
+            case 1: break;
+            case 2:
+               System.out.print("Enter State: ");
+               state = in.readLine();
+               break;
+            case 3: openOnly = true; break;
+            case 9: return;
+            default:
+               System.out.println("Invalid Choice...");
+               return;
+         }
+
+         System.out.println("---------");
+         System.out.println("1. Sort by Store ID");
+         System.out.println("2. Sort by State");
+         System.out.println("3. Sort by Rating (High to Low)");
+         switch (readChoice()) {
+            case 2: sort = StoreDirectory.Sort.STATE; break;
+            case 3: sort = StoreDirectory.Sort.REVIEW_SCORE; break;
+            default: break;
+         }
 
-         for(List<String> Store : Stores) {
-            System.out.println("|ID: " + Store.get(0) + " | Rating: " + Store.get(5) + " | IsOpen?: " + Store.get(4) + " |\n|Address: " + Store.get(1) + "\n|" + Store.get(2) + ", " + Store.get(3) + "\n");
+         for (int page = 0; ; page++) {
+            int[] rows = Stores.view(state, openOnly, sort, page, pageSize);
+            if (rows.length == 0) {
+               if (page == 0) System.out.println("\nNo Stores Found...\n");
+               return;
+            }
+            PrintWriter out = esql.renderer().out();
+            for (int row : rows) {
+               float score = Stores.reviewScore(row);
+               out.print("|ID: "); out.print(Stores.storeID(row));
+               out.print(" | Rating: "); out.print(Float.isNaN(score) ? "null" : String.valueOf(score));
+               out.print(" | IsOpen?: "); out.print(Stores.isOpen(row) ? "yes" : "no");
+               out.print(" |\n|Address: "); out.print(Stores.address(row));
+               out.print("\n|"); out.print(Stores.city(row)); out.print(", "); out.print(Stores.state(row));
+               out.print("\n\n");
+            }
+            esql.renderer().flush();
+            if (rows.length < pageSize) return;
+            System.out.print("Show More Stores? (y/n): ");
+            String more = in.readLine();
+            if (more == null || !more.equalsIgnoreCase("y")) return;
          }
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -1287,23 +1711,24 @@ public class PizzaStore {
    }
    public static void updateOrderStatus(PizzaStore esql, String username) {
       try{
-         String roleQuery = "SELECT role FROM users WHERE login = '" + username + "';";
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+         Role role = esql.getRole(username);
 
-         if (roleResult.isEmpty()) {
+         if (role == null) {
             System.out.println("User not found.");
             return;
          }
 
-         String role = roleResult.get(0).get(0).trim();
-
-         if (role.equalsIgnoreCase("manager") || role.equalsIgnoreCase("driver")) {
+         if (role.isStaff()) {
             System.out.println("Type in the orderID you want to update the status of: ");
             String orderID = in.readLine();
             System.out.println("Enter the new order status: ");
             String orderStatus = in.readLine();
-               String query = "UPDATE FoodOrder SET orderStatus ='" + orderStatus + "' WHERE orderID ='" + orderID + "';";
-               esql.executeUpdate(query);
+            try {
+               if (!esql.service().updateOrderStatus(username, Integer.parseInt(orderID.trim()), orderStatus))
+                  System.out.println("Order not found.");
+            } catch (NumberFormatException e) {
+               System.out.println("Invalid Order ID.");
+            }
             return;
          }
          else {
@@ -1313,14 +1738,31 @@ public class PizzaStore {
          System.err.println(e.getMessage());
       }
    }  
+   public static void viewPrepBoard(PizzaStore esql, String username) {
+      try {
+         System.out.print("Enter Store ID: ");
+         int storeID = Integer.parseInt(in.readLine().trim());
+         Map<String, Long> board = esql.service().prepBoard(username, storeID);
+         System.out.println("\nPREP BOARD ~ Store " + storeID);
+         System.out.println("---------");
+         if (board.isEmpty())
+            System.out.println("Nothing to prepare.");
+         for (Map.Entry<String, Long> e : board.entrySet())
+            System.out.printf("%5d  %s\n", e.getValue(), e.getKey());
+         System.out.println();
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid Store ID.");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }//end viewPrepBoard
+
    public static void updateMenu(PizzaStore esql, String username) {
         try {
-         String findRole = String.format("SELECT role FROM USERS WHERE login = '%s';", username);
-         List<List<String>> role = esql.executeQueryAndReturnResult(findRole);
+         Role check = esql.getRole(username);
 
-         if (!role.isEmpty()) {
-            String check = role.get(0).get(0).trim();
-            if(check.equals("Customer")) {
+         if (check != null) {
+            if(!check.isStaff()) {
                System.out.println("\nYou do not have Permission to Update the Menu...\n");
                return;
             }
@@ -1341,9 +1783,7 @@ public class PizzaStore {
 
             try {
                int input = Integer.parseInt(userChoice);
-               String upQry = "";
-               List<List<String>> item;
-               double inp;
+               PizzaStoreService.MenuField field;
                         
                switch (input) {
                   case 1:
@@ -1351,12 +1791,11 @@ public class PizzaStore {
                   userChoice = in.readLine();
 
                   
-                  upQry = String.format("SELECT * FROM ITEMS WHERE itemName = '%s'", userChoice);
-                  item = esql.executeQueryAndReturnResult(upQry);
+                  List<String> item = esql.service().menuItems().get(userChoice);
 
-                  if(!item.isEmpty()) {
+                  if(item != null) {
                      boolean itemEdit = true;
-                     String I = item.get(0).get(0).trim();
+                     String I = item.get(0).trim();
 
                      while(itemEdit) {
                         System.out.println("\nSelect Item Data you would like to Update:");
@@ -1373,37 +1812,32 @@ public class PizzaStore {
 
                         try {
                            input = Integer.parseInt(userChoice);
+                           field = null;
 
                            switch (input) {
                               case 1:
                                  System.out.print("Enter New Item Name: ");
-                                 userChoice = in.readLine();
-                                 upQry = String.format("UPDATE ITEMS SET itemName = '%s' WHERE itemName = '%s'", userChoice, I);
+                                 field = PizzaStoreService.MenuField.ITEM_NAME;
                                  break;
 
                               case 2:
                                  System.out.print("Enter New Ingredient(s): ");
-                                 userChoice = in.readLine();
-                                 upQry = String.format("UPDATE ITEMS SET ingredients = '%s' WHERE itemName = '%s'", userChoice, I);
+                                 field = PizzaStoreService.MenuField.INGREDIENTS;
                                  break;
 
                               case 3:
                                  System.out.print("Enter New Item Type: ");
-                                 userChoice = in.readLine();
-                                 upQry = String.format("UPDATE ITEMS SET typeOfItem = '%s' WHERE itemName = '%s'", userChoice, I);
+                                 field = PizzaStoreService.MenuField.TYPE_OF_ITEM;
                                  break;
 
                               case 4:
-
                                  System.out.print("Enter New Price: ");
-                                 inp = Double.parseDouble(in.readLine());
-                                 upQry = String.format("UPDATE ITEMS SET price = '%s' WHERE itemName = '%s'", inp, I);
+                                 field = PizzaStoreService.MenuField.PRICE;
                                  break;
 
                               case 5:
                                  System.out.print("Enter New Description: ");
-                                 userChoice = in.readLine();
-                                 upQry = String.format("UPDATE ITEMS SET description = '%s' WHERE itemName = '%s'", userChoice, I);
+                                 field = PizzaStoreService.MenuField.DESCRIPTION;
                                  break;
 
                               case 9:
@@ -1414,8 +1848,10 @@ public class PizzaStore {
                                  break;
                            }
 
-                           if(!upQry.isEmpty()) {
-                              esql.executeUpdate(upQry);
+                           if(field != null) {
+                              userChoice = in.readLine();
+                              esql.service().updateMenuItem(username, I, field, userChoice);
+                              if (field == PizzaStoreService.MenuField.ITEM_NAME) I = userChoice;
                               System.out.println("Item information has been Updated Successfully!");
                            }
                         } catch (Exception e) {
@@ -1449,14 +1885,12 @@ public class PizzaStore {
 
                         System.out.print("Enter Description: ");
                         dE = in.readLine();
-                        upQry = String.format("INSERT INTO ITEMS (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', ' %s', '%f', '%s');", iN, In, tI, pR, dE);
+                        esql.service().addMenuItem(username, iN, In, tI, pR, dE);
+                        System.out.println("Item has been Added Successfully!\n");
                      }
 
                      editPerm = false;
 
-                     esql.executeUpdate(upQry);
-                     System.out.println("Item has been Added Successfully!\n");
-
 
                      System.out.print("Would you like to Continue Adding Items? (y/n): ");
                      String userinput = in.readLine();
@@ -1493,64 +1927,42 @@ public class PizzaStore {
    }
    public static void updateUser(PizzaStore esql, String username) {
     try {
-        String roleQuery = "SELECT role FROM users WHERE login = '" + username + "';";
-        List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleQuery);
+        Role role = esql.getRole(username);
 
-        if (roleResult.isEmpty()) {
+        if (role == null) {
             System.out.println("User not found.");
             return;
         }
 
-        String role = roleResult.get(0).get(0).trim();
-
-        if (role.equalsIgnoreCase("manager")) {
+        if (role == Role.MANAGER) {
 
             System.out.print("Enter the username of the user you want to update: ");
             String user = in.readLine();
 
-            boolean updated = false; 
-            StringBuilder queryBuilder = new StringBuilder("UPDATE Users SET ");
+            String newRole = null, favoriteItems = null, phoneNum = null;
 
             System.out.print("Do you want to update the role? (yes/no): ");
             String choice = in.readLine();
             if (choice.equalsIgnoreCase("yes")) {
                 System.out.print("Enter new role: ");
-                String newRole = in.readLine();
-                if (!newRole.isEmpty()) {
-                    queryBuilder.append("role = '").append(newRole).append("', ");
-
-                    updated = true;
-                }
+                newRole = in.readLine();
             }
 
             System.out.print("Do you want to update the favorite item? (yes/no): ");
             choice = in.readLine();
             if (choice.equalsIgnoreCase("yes")) {
                 System.out.print("Enter favorite item: ");
-                String favoriteItems = in.readLine();
-                if (!favoriteItems.isEmpty()) {
-                    queryBuilder.append("favoriteItems = '").append(favoriteItems).append("', ");
-                    updated = true;
-                }
+                favoriteItems = in.readLine();
             }
 
             System.out.print("Do you want to update the phone number? (yes/no): ");
             choice = in.readLine();
             if (choice.equalsIgnoreCase("yes")) {
                 System.out.print("Enter new phone number: ");
-                String phoneNum = in.readLine();
-                if (!phoneNum.isEmpty()) {
-                    queryBuilder.append("phoneNum = '").append(phoneNum).append("', ");
-                    updated = true;
-                }
+                phoneNum = in.readLine();
             }
 
-            if (updated) {
-                // Remove the last comma and space from the query
-                queryBuilder.setLength(queryBuilder.length() - 2);
-                queryBuilder.append(" WHERE login = '").append(user).append("';");
-
-                esql.executeUpdate(queryBuilder.toString());
+            if (esql.service().updateUser(username, user, newRole, favoriteItems, phoneNum)) {
                 System.out.println("User updated successfully.");
             } else {
                 System.out.println("No changes made.");
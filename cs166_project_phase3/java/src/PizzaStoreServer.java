@@ -0,0 +1,618 @@
+/*
+ * PizzaStore HTTP Server
+ * ======================
+ *
+ * A local HTTP/JSON front end over PizzaStoreService, so kiosks and driver
+ * apps can share one process instead of each running a console.
+ *
+ */
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Endpoints (JSON in and out, HTTP Basic authentication with the PizzaStore
+ * login and password except for POST /users):
+ *
+ *    POST /users                {"login", "password", "phoneNum"}
+ *    GET  /menu                 ?type=&maxPrice=&sort=price_asc|price_desc
+ *    GET  /stores               ?state=&open=true&sort=store_id|state|review_score&page=&pageSize=
+ *    GET  /stores/{id}/prep     item quantities of the store's incomplete orders (staff)
+ *    POST /orders               {"storeID": 3, "items": {"Italian Pizza": 2}}
+ *                               optional Idempotency-Key header; a retry returns 200 and the original order
+ *    GET  /orders               ?login=   (every order of login, default the caller)
+ *    GET  /orders/recent        ?login=
+ *    GET  /orders/{id}
+ *    PUT  /orders/{id}/status   {"status": "complete"}
+ *    GET  /metrics              admitted and rejected calls per operation, audit and maintenance counters (staff)
+ *
+ * An invalid value gets 400, an unknown store or order 404, and a request
+ * the caller may not make 403. A caller over its rate limit (see
+ * AdmissionControl) gets 429 with a Retry-After header.
+ *
+ * The JDK server keeps HTTP/1.1 connections alive; every response has a
+ * fixed length so connections are reused. Responses of at least
+ * -Dpizzastore.http.gzipMin bytes (default 1024) are gzipped for clients
+ * that accept it. Requests run on virtual threads when the JVM has them,
+ * otherwise on -Dpizzastore.http.threads (default 64) platform threads;
+ * either way database work is bounded by the connection pool.
+ *
+ * Checked credentials are remembered as a salted SHA-256 hash for
+ * -Dpizzastore.http.authCacheMs (default 60000), for at most
+ * -Dpizzastore.http.authCache.max logins (default 1000). Every change to a
+ * user that reaches the role cache (updateUser, or the cache bus for changes
+ * made by other processes) drops them all.
+ */
+public class PizzaStoreServer {
+
+   private final PizzaStoreService _service;
+   private final HttpServer _server;
+   private final ExecutorService _executor;
+   private final int _gzipMin = Integer.getInteger("pizzastore.http.gzipMin", 1024);
+
+   // login -> credentials that have been checked against Users, least recently used first
+   private final LinkedHashMap<String, Verified> _verified;
+   private final long _authCacheMillis = Long.getLong("pizzastore.http.authCacheMs", 60000L);
+   private final byte[] _salt = new byte[16];
+
+   // a checked login: the hash of its password, and when and at which role cache generation it was checked
+   private static class Verified {
+      final byte[] hash;
+      final long generation;
+      final long at;
+
+      Verified(byte[] hash, long generation, long at) {
+         this.hash = hash;
+         this.generation = generation;
+         this.at = at;
+      }
+   }//end Verified
+
+   /**
+    * @param esql the connected store
+    * @param host the address to listen on
+    * @param port the port to listen on
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public PizzaStoreServer(PizzaStore esql, String host, int port) throws IOException {
+      this._service = new PizzaStoreService(esql, true);
+      final int authCacheMax = Integer.getInteger("pizzastore.http.authCache.max", 1000);
+      this._verified = new LinkedHashMap<String, Verified>(256, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+            return size() > authCacheMax;
+         }
+      };
+      new SecureRandom().nextBytes(this._salt);
+      this._server = HttpServer.create(new InetSocketAddress(host, port),
+                                       Integer.getInteger("pizzastore.http.backlog", 1024));
+      this._executor = newExecutor();
+      this._server.setExecutor(this._executor);
+      this._server.createContext("/users", new Route() {
+         Object handle(HttpExchange ex, String login) throws Exception { return users(ex); }
+      });
+      this._server.createContext("/menu", new Route() {
+         Object handle(HttpExchange ex, String login) throws Exception { return menu(ex, login); }
+      });
+      this._server.createContext("/stores", new Route() {
+         Object handle(HttpExchange ex, String login) throws Exception { return stores(ex, login); }
+      });
+      this._server.createContext("/orders", new Route() {
+         Object handle(HttpExchange ex, String login) throws Exception { return orders(ex, login); }
+      });
+      this._server.createContext("/metrics", new Route() {
+         Object handle(HttpExchange ex, String login) throws Exception { return metrics(ex, login); }
+      });
+   }//end PizzaStoreServer
+
+   public void start() {
+      this._server.start();
+   }
+
+   public void stop() {
+      this._server.stop(1);
+      this._executor.shutdownNow();
+   }
+
+   /*
+    * ROUTES
+    */
+
+   private Object users(HttpExchange ex) throws Exception {
+      requireMethod(ex, "POST");
+      Map<String, Object> body = body(ex);
+      String login = str(body, "login", true);
+      this._service.createUser(login, str(body, "password", true), str(body, "phoneNum", false));
+      ex.getResponseHeaders().set("Location", "/users/" + login);
+      return new Response(201, object("login", login));
+   }//end users
+
+   private Object menu(HttpExchange ex, String login) throws Exception {
+      requireMethod(ex, "GET");
+      Map<String, String> q = query(ex);
+      String maxPrice = q.get("maxPrice");
+      PizzaStoreService.MenuSort sort = PizzaStoreService.MenuSort.NONE;
+      if (q.get("sort") != null)
+         sort = PizzaStoreService.MenuSort.valueOf(q.get("sort").toUpperCase());
+      ItemType type = null;
+      if (q.get("type") != null && (type = ItemType.of(q.get("type"))) == null)
+         throw new IllegalArgumentException("type must be one of entree, sides, drinks");
+      List<List<String>> rows;
+      if (q.get("with") != null || q.get("without") != null || q.get("q") != null)
+         rows = this._service.searchMenu(login, MenuIndex.ingredients(q.get("with")),
+            MenuIndex.ingredients(q.get("without")), q.get("q"), type,
+            maxPrice == null ? null : Double.valueOf(maxPrice), sort);
+      else
+         rows = this._service.menu(login, type, maxPrice == null ? null : Double.valueOf(maxPrice), sort);
+      StringBuilder out = new StringBuilder("[");
+      for (List<String> row : rows) {
+         if (out.length() > 1)
+            out.append(',');
+         out.append("{\"itemName\":");
+         Json.number(Json.quote(out, row.get(0).trim()).append(",\"price\":"), row.get(1)).append(",\"typeOfItem\":");
+         Json.quote(out, row.get(2).trim()).append(",\"description\":");
+         Json.quote(out, row.get(3) == null ? null : row.get(3).trim()).append(",\"ingredients\":");
+         Json.quote(out, row.get(4) == null ? null : row.get(4).trim()).append('}');
+      }
+      return out.append(']');
+   }//end menu
+
+   private Object stores(HttpExchange ex, String login) throws Exception {
+      requireMethod(ex, "GET");
+      String[] path = ex.getRequestURI().getPath().split("/");
+      // "", "stores", id, "prep"
+      if (path.length == 4 && path[3].equals("prep")) {
+         int storeID;
+         try {
+            storeID = Integer.parseInt(path[2]);
+         } catch (NumberFormatException e) {
+            return new Response(404, object("error", "Not Found"));
+         }
+         StringBuilder out = new StringBuilder("[");
+         for (Map.Entry<String, Long> e : this._service.prepBoard(login, storeID).entrySet()) {
+            if (out.length() > 1)
+               out.append(',');
+            out.append("{\"itemName\":");
+            Json.quote(out, e.getKey()).append(",\"quantity\":").append(e.getValue()).append('}');
+         }
+         return out.append(']');
+      }//end if
+      Map<String, String> q = query(ex);
+      StoreDirectory.Sort sort = StoreDirectory.Sort.STORE_ID;
+      if (q.get("sort") != null)
+         sort = StoreDirectory.Sort.valueOf(q.get("sort").toUpperCase());
+      int page = q.get("page") == null ? 0 : Integer.parseInt(q.get("page"));
+      int pageSize = q.get("pageSize") == null ? 50 : Integer.parseInt(q.get("pageSize"));
+      if (page < 0 || pageSize < 1 || pageSize > 1000)
+         throw new IllegalArgumentException("page must be >= 0 and pageSize between 1 and 1000");
+      StoreDirectory.Snapshot s = this._service.stores(login);
+      StringBuilder out = new StringBuilder("[");
+      for (int row : s.view(q.get("state"), "true".equals(q.get("open")), sort, page, pageSize)) {
+         if (out.length() > 1)
+            out.append(',');
+         out.append("{\"storeID\":").append(s.storeID(row)).append(",\"address\":");
+         Json.quote(out, s.address(row)).append(",\"city\":");
+         Json.quote(out, s.city(row)).append(",\"state\":");
+         Json.quote(out, s.state(row)).append(",\"isOpen\":").append(s.isOpen(row)).append(",\"reviewScore\":");
+         Json.number(out, s.reviewScore(row), 2).append('}');
+      }
+      return out.append(']');
+   }//end stores
+
+   private Object orders(HttpExchange ex, String login) throws Exception {
+      String[] path = ex.getRequestURI().getPath().split("/");
+      // "", "orders", ...
+      if (path.length == 2) {
+         if ("POST".equals(ex.getRequestMethod()))
+            return placeOrder(ex, login);
+         requireMethod(ex, "GET");
+         String target = orDefault(query(ex).get("login"), login);
+         StringBuilder out = new StringBuilder("[");
+         for (List<String> row : this._service.orderHistory(login, target)) {
+            if (out.length() > 1)
+               out.append(',');
+            order(out, Integer.parseInt(row.get(0).trim()), row.get(1), row.get(2));
+         }
+         return out.append(']');
+      }//end if
+      if (path.length == 3 && path[2].equals("recent")) {
+         requireMethod(ex, "GET");
+         String target = orDefault(query(ex).get("login"), login);
+         StringBuilder out = new StringBuilder("[");
+         for (RecentOrdersCache.Entry e : this._service.recentOrders(login, target)) {
+            if (out.length() > 1)
+               out.append(',');
+            order(out, e.orderID, e.orderTimestamp, e.orderStatus == null ? null : e.orderStatus.label);
+         }
+         return out.append(']');
+      }//end if
+      int orderID;
+      try {
+         orderID = Integer.parseInt(path.length > 2 ? path[2] : "");
+      } catch (NumberFormatException e) {
+         return new Response(404, object("error", "Not Found"));
+      }
+      if (path.length == 4 && path[3].equals("status")) {
+         requireMethod(ex, "PUT");
+         String typed = str(body(ex), "status", true);
+         OrderStatus status = OrderStatus.of(typed);
+         if (status == null)
+            throw new PizzaStoreService.ServiceException("Invalid Order Status: " + typed);
+         if (!this._service.updateOrderStatus(login, orderID, status))
+            return new Response(404, object("error", "Order not found."));
+         return object("orderID", String.valueOf(orderID), "orderStatus", status.label);
+      }
+      if (path.length != 3)
+         return new Response(404, object("error", "Not Found"));
+      requireMethod(ex, "GET");
+      OrderDetail d = this._service.orderDetail(login, orderID);
+      if (d == null)
+         return new Response(404, object("error", "Order not found."));
+      StringBuilder out = new StringBuilder();
+      out.append("{\"orderID\":").append(d.orderID).append(",\"login\":");
+      Json.quote(out, d.login.trim()).append(",\"storeID\":").append(d.storeID).append(",\"storeAddress\":");
+      Json.quote(out, d.storeAddress).append(",\"orderTimestamp\":");
+      Json.number(Json.quote(out, d.orderTimestamp).append(",\"totalPrice\":"), d.totalPrice).append(",\"orderStatus\":");
+      Json.quote(out, d.orderStatus == null ? null : d.orderStatus.label).append(",\"items\":[");
+      for (int i = 0; i < d.lines.size(); ++i) {
+         OrderDetail.Line l = d.lines.get(i);
+         out.append(i == 0 ? "{" : ",{").append("\"itemName\":");
+         Json.quote(out, l.itemName.trim()).append(",\"quantity\":").append(l.quantity).append(",\"unitPrice\":");
+         // null on a shard when the item has left the menu
+         Json.number(out, l.unitPrice).append('}');
+      }
+      return out.append("]}");
+   }//end orders
+
+   private Object placeOrder(HttpExchange ex, String login) throws Exception {
+      Map<String, Object> body = body(ex);
+      Object storeID = body.get("storeID");
+      Object items = body.get("items");
+      if (!(storeID instanceof Long) || !(items instanceof Map))
+         throw new IllegalArgumentException("storeID (a number) and items (an object) are required");
+      Map<String, Integer> lines = new LinkedHashMap<String, Integer>();
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) items).entrySet()) {
+         if (!(e.getValue() instanceof Long))
+            throw new IllegalArgumentException("the quantity of " + e.getKey() + " must be a number");
+         lines.put((String) e.getKey(), ((Long) e.getValue()).intValue());
+      }
+      PizzaStoreService.PlacedOrder o = this._service.placeOrder(login, ((Long) storeID).intValue(), lines,
+         ex.getRequestHeaders().getFirst("Idempotency-Key"));
+      // a journaled order has no orderID until it is replayed
+      if (!o.pending)
+         ex.getResponseHeaders().set("Location", "/orders/" + o.orderID);
+      StringBuilder out = new StringBuilder();
+      out.append("{\"orderID\":").append(o.pending ? "null" : String.valueOf(o.orderID))
+         .append(",\"storeID\":").append(o.storeID)
+         .append(",\"totalPrice\":");
+      Json.number(out, o.totalPrice, 2).append(",\"orderTimestamp\":");
+      Json.quote(out, o.orderTimestamp).append(",\"pending\":").append(o.pending).append('}');
+      return new Response(o.pending ? 202 : o.replayed ? 200 : 201, out);
+   }//end placeOrder
+
+   private Object metrics(HttpExchange ex, String login) throws Exception {
+      requireMethod(ex, "GET");
+      // rate limits, audit and maintenance internals are for staff only
+      Role role = this._service.role(login);
+      if (role == null || !role.isStaff())
+         throw new PizzaStoreService.Forbidden("You do not have permission to view metrics.");
+      AdmissionControl admission = this._service.store().admission();
+      StringBuilder out = new StringBuilder("{\"admission\":{");
+      for (AdmissionControl.Operation op : AdmissionControl.Operation.values()) {
+         if (op.ordinal() > 0)
+            out.append(',');
+         Json.quote(out, op.name().toLowerCase()).append(":{\"admitted\":").append(admission.admitted(op))
+            .append(",\"rejected\":").append(admission.rejected(op)).append('}');
+      }
+      out.append('}');
+      AuditTrail audit = this._service.store().audit();
+      if (audit != null)
+         out.append(",\"audit\":{\"written\":").append(audit.written()).append(",\"dropped\":")
+            .append(audit.dropped()).append('}');
+      MaintenanceScheduler maintenance = this._service.store().maintenance();
+      if (maintenance != null) {
+         out.append(",\"maintenance\":{");
+         counter(out, "vacuum", maintenance.vacuums()).append(',');
+         counter(out, "analyze", maintenance.analyzes()).append(',');
+         counter(out, "reindex", maintenance.reindexes()).append(",\"tables\":{");
+         int n = 0;
+         for (Map.Entry<String, double[]> e : maintenance.tables().entrySet()) {
+            Json.quote(n++ == 0 ? out : out.append(','), e.getKey()).append(":{\"deadRatio\":");
+            Json.number(out, e.getValue()[0], 3).append(",\"modifiedRatio\":");
+            Json.number(out, e.getValue()[1], 3).append('}');
+         }
+         out.append("},\"indexBloat\":{");
+         n = 0;
+         for (Map.Entry<String, Double> e : maintenance.indexes().entrySet())
+            Json.number(Json.quote(n++ == 0 ? out : out.append(','), e.getKey()).append(':'), e.getValue(), 3);
+         out.append("}}");
+      }//end if
+      return out.append('}');
+   }//end metrics
+
+   private static StringBuilder counter(StringBuilder out, String name, MaintenanceScheduler.Counter c) {
+      Json.quote(out, name).append(":{\"runs\":").append(c.runs()).append(",\"failures\":").append(c.failures())
+         .append(",\"millis\":").append(c.millis()).append('}');
+      return out;
+   }
+
+   private static void order(StringBuilder out, int orderID, String timestamp, String status) {
+      out.append("{\"orderID\":").append(orderID).append(",\"orderTimestamp\":");
+      Json.quote(out, timestamp).append(",\"orderStatus\":");
+      Json.quote(out, status == null ? null : status.trim()).append('}');
+   }
+
+   /*
+    * PLUMBING
+    */
+
+   // a non-200 response
+   private static class Response {
+      final int status;
+      final Object body;
+
+      Response(int status, Object body) {
+         this.status = status;
+         this.body = body;
+      }
+   }//end Response
+
+   // authenticates the caller, runs the route and writes its result
+   private abstract class Route implements HttpHandler {
+      abstract Object handle(HttpExchange ex, String login) throws Exception;
+
+      public void handle(HttpExchange ex) throws IOException {
+         int status = 200;
+         Object body;
+         try {
+            String login = authenticate(ex);
+            if (login == null && !ex.getHttpContext().getPath().equals("/users")) {
+               ex.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"PizzaStore\"");
+               status = 401;
+               body = object("error", "Login required");
+            } else {
+               OperationEvent operation = OperationEvent.start(
+                  ex.getRequestMethod() + " " + ex.getHttpContext().getPath(), login);
+               try {
+                  body = handle(ex, login);
+               } finally {
+                  operation.finish(_service.store().roles());
+               }
+            }
+         } catch (AdmissionControl.Rejected e) {
+            ex.getResponseHeaders().set("Retry-After", String.valueOf((e.retryAfterMs + 999) / 1000));
+            status = 429;
+            body = object("error", e.getMessage());
+         } catch (PizzaStoreService.Forbidden e) {
+            status = 403;
+            body = object("error", e.getMessage());
+         } catch (PizzaStoreService.NotFound e) {
+            status = 404;
+            body = object("error", e.getMessage());
+         } catch (PizzaStoreService.ServiceException e) {
+            status = 400;
+            body = object("error", e.getMessage());
+         } catch (MethodNotAllowed e) {
+            status = 405;
+            body = object("error", e.getMessage());
+         } catch (IllegalArgumentException e) {
+            status = 400;
+            body = object("error", e.getMessage());
+         } catch (SQLException e) {
+            status = 500;
+            body = object("error", e.getMessage());
+         } catch (Exception e) {
+            status = 500;
+            body = object("error", e.toString());
+         }//end try
+         if (body instanceof Response) {
+            status = ((Response) body).status;
+            body = ((Response) body).body;
+         }
+         send(ex, status, body.toString());
+      }//end handle
+   }//end Route
+
+   private static class MethodNotAllowed extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      MethodNotAllowed(String method) {
+         super("Method " + method + " not allowed");
+      }
+   }
+
+   private void send(HttpExchange ex, int status, String body) throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      Headers h = ex.getResponseHeaders();
+      h.set("Content-Type", "application/json; charset=utf-8");
+      String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+      if (bytes.length >= this._gzipMin && accept != null && accept.contains("gzip")) {
+         ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length / 4 + 64);
+         GZIPOutputStream gz = new GZIPOutputStream(buf);
+         gz.write(bytes);
+         gz.close();
+         bytes = buf.toByteArray();
+         h.set("Content-Encoding", "gzip");
+         h.set("Vary", "Accept-Encoding");
+      }
+      ex.sendResponseHeaders(status, bytes.length);
+      OutputStream os = ex.getResponseBody();
+      os.write(bytes);
+      os.close();
+   }//end send
+
+   // the login of valid Basic credentials, or null
+   private String authenticate(HttpExchange ex) throws PizzaStoreService.ServiceException, SQLException {
+      String auth = ex.getRequestHeaders().getFirst("Authorization");
+      if (auth == null || !auth.regionMatches(true, 0, "Basic ", 0, 6))
+         return null;
+      String decoded;
+      try {
+         decoded = new String(Base64.getDecoder().decode(auth.substring(6).trim()), StandardCharsets.UTF_8);
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+      int colon = decoded.indexOf(':');
+      if (colon < 0)
+         return null;
+      String login = decoded.substring(0, colon);
+      String password = decoded.substring(colon + 1);
+      byte[] hash = hash(password);
+      // taken before the check, so a user change that races with it drops the entry
+      long generation = this._service.store().roles().generation();
+      synchronized (this._verified) {
+         Verified v = this._verified.get(login);
+         if (v != null && v.generation == generation && System.currentTimeMillis() - v.at < this._authCacheMillis
+             && MessageDigest.isEqual(v.hash, hash))
+            return login;
+         this._verified.remove(login);
+      }
+      if (!this._service.login(login, password))
+         return null;
+      synchronized (this._verified) {
+         this._verified.put(login, new Verified(hash, generation, System.currentTimeMillis()));
+      }
+      return login;
+   }//end authenticate
+
+   private byte[] hash(String password) {
+      try {
+         MessageDigest sha = MessageDigest.getInstance("SHA-256");
+         sha.update(this._salt);
+         return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }//end hash
+
+   private static void requireMethod(HttpExchange ex, String method) throws MethodNotAllowed {
+      if (!method.equals(ex.getRequestMethod()))
+         throw new MethodNotAllowed(ex.getRequestMethod());
+   }
+
+   private static Map<String, Object> body(HttpExchange ex) throws IOException {
+      InputStream in = ex.getRequestBody();
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      byte[] chunk = new byte[4096];
+      for (int n; (n = in.read(chunk)) > 0; ) {
+         buf.write(chunk, 0, n);
+         if (buf.size() > 65536)
+            throw new IllegalArgumentException("Request body too large");
+      }
+      Object body = Json.parse(new String(buf.toByteArray(), StandardCharsets.UTF_8));
+      if (!(body instanceof Map))
+         throw new IllegalArgumentException("Expected a JSON object");
+      @SuppressWarnings("unchecked")
+      Map<String, Object> map = (Map<String, Object>) body;
+      return map;
+   }//end body
+
+   private static Map<String, String> query(HttpExchange ex) throws UnsupportedEncodingException {
+      Map<String, String> q = new HashMap<String, String>();
+      String raw = ex.getRequestURI().getRawQuery();
+      if (raw == null)
+         return q;
+      for (String pair : raw.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq > 0 && eq < pair.length() - 1)
+            q.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      }
+      return q;
+   }//end query
+
+   private static String str(Map<String, Object> body, String key, boolean required) {
+      Object v = body.get(key);
+      if (v == null && !required)
+         return "";
+      if (!(v instanceof String) || ((String) v).isEmpty())
+         throw new IllegalArgumentException(key + " is required");
+      return (String) v;
+   }
+
+   private static String orDefault(String value, String fallback) {
+      return value != null ? value : fallback;
+   }
+
+   // {"k1": "v1", ...} of string pairs
+   private static StringBuilder object(String... pairs) {
+      StringBuilder out = new StringBuilder("{");
+      for (int i = 0; i < pairs.length; i += 2) {
+         if (i > 0)
+            out.append(',');
+         Json.quote(out, pairs[i]).append(':');
+         Json.quote(out, pairs[i + 1]);
+      }
+      return out.append('}');
+   }//end object
+
+   // a virtual thread per request when the JVM has them, a fixed pool otherwise
+   private static ExecutorService newExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return Executors.newFixedThreadPool(Integer.getInteger("pizzastore.http.threads", 64));
+      }
+   }//end newExecutor
+
+   /**
+    * Serves the HTTP front end until the process is stopped.
+    *
+    * @param args dbname, port and user, as for PizzaStore
+    */
+   public static void main(String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PizzaStoreServer.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      try {
+         Class.forName ("org.postgresql.Driver");
+         final PizzaStore esql = new PizzaStore ("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+         if (StartupWarmup.enabled())
+            StartupWarmup.run (esql);
+         String host = System.getProperty("pizzastore.http.host", "127.0.0.1");
+         int port = Integer.getInteger("pizzastore.http.port", 8080);
+         final PizzaStoreServer server = new PizzaStoreServer(esql, host, port);
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               server.stop();
+               esql.cleanup();
+            }
+         });
+         server.start();
+         System.out.println("Listening on http://" + host + ":" + port + "/");
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+         System.exit(-1);
+      }//end try
+   }//end main
+
+}//end PizzaStoreServer
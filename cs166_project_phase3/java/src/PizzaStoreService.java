@@ -0,0 +1,1092 @@
+/*
+ * PizzaStore Service
+ * ==================
+ *
+ * The business operations of PizzaStore without any console input or output,
+ * so they can be embedded behind another front end or benchmarked on their
+ * own.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Every operation takes plain values and returns data or throws: a
+ * ServiceException for a business rule and an SQLException for a database
+ * failure. A ServiceException is a NotFound for an unknown store, a
+ * Forbidden when the user may not do it, and a plain ServiceException for
+ * an invalid value.
+ *
+ * A session service (PizzaStore.service()) runs on the session connection
+ * and routes reads through the replica router; it is for one thread at a
+ * time. A pooled service (new PizzaStoreService(esql, true)) runs each
+ * operation on a connection borrowed from the pool and may be shared by any
+ * number of threads. Both share the caches and the rate limits
+ * (AdmissionControl) of the PizzaStore they wrap; a call over its login's or
+ * store's rate throws AdmissionControl.Rejected, a ServiceException.
+ *
+ * With -Dpizzastore.shards set, order data goes through the ShardRouter:
+ * placing an order writes to the shard of the store, order details and
+ * status updates go to the shard named by the orderID, and per-user
+ * histories are gathered from every shard. The orders placed before
+ * sharding stay in the primary, which is read along with the shards unless
+ * -Dpizzastore.shards.primaryOrders=false (once they have been moved).
+ *
+ * Changes to users, the menu and order statuses are recorded in the
+ * AuditTrail when -Dpizzastore.audit is set.
+ *
+ * With -Dpizzastore.journal set, an order the database cannot take is
+ * written to the OrderJournal instead and placeOrder returns it as pending;
+ * the journal replays it later.
+ *
+ *    PizzaStore db = new PizzaStore("jdbc:postgresql://localhost:5432/mydb", "me", "");
+ *    PizzaStoreService svc = new PizzaStoreService(db, true);
+ *    PizzaStoreService.PlacedOrder o = svc.placeOrder("me", 12, items);
+ *
+ * Like the rest of PizzaStore the service is in the default package, and
+ * Java cannot import a class of the default package from a named one. A
+ * program using it as a library must itself be in the default package, or
+ * call it through reflection.
+ */
+public class PizzaStoreService {
+
+   /**
+    * A request that breaks a business rule.
+    */
+   public static class ServiceException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      public ServiceException(String message) {
+         super(message);
+      }
+   }//end ServiceException
+
+   /**
+    * A request for a store or user that does not exist.
+    */
+   public static class NotFound extends ServiceException {
+      private static final long serialVersionUID = 1L;
+
+      public NotFound(String message) {
+         super(message);
+      }
+   }//end NotFound
+
+   /**
+    * A request the user is not allowed to make.
+    */
+   public static class Forbidden extends ServiceException {
+      private static final long serialVersionUID = 1L;
+
+      public Forbidden(String message) {
+         super(message);
+      }
+   }//end Forbidden
+
+   /**
+    * Sort orders of the menu listing.
+    */
+   public enum MenuSort { NONE, PRICE_ASC, PRICE_DESC }
+
+   /**
+    * Item columns a manager can change.
+    */
+   public enum MenuField {
+      ITEM_NAME("itemName"), INGREDIENTS("ingredients"), TYPE_OF_ITEM("typeOfItem"),
+      PRICE("price"), DESCRIPTION("description");
+
+      public final String column;
+
+      MenuField(String column) {
+         this.column = column;
+      }
+   }//end MenuField
+
+   /**
+    * The outcome of a successful placeOrder.
+    */
+   public static class PlacedOrder {
+      public final int orderID;
+      public final int storeID;
+      public final double totalPrice;
+      public final String orderTimestamp;
+      // true when this is the original order of a retried request key
+      public final boolean replayed;
+      // true when the order is in the journal, not the database yet; orderID is -1
+      public final boolean pending;
+
+      public PlacedOrder(int orderID, int storeID, double totalPrice, String orderTimestamp) {
+         this(orderID, storeID, totalPrice, orderTimestamp, false);
+      }
+
+      public PlacedOrder(int orderID, int storeID, double totalPrice, String orderTimestamp, boolean replayed) {
+         this(orderID, storeID, totalPrice, orderTimestamp, replayed, false);
+      }
+
+      public PlacedOrder(int orderID, int storeID, double totalPrice, String orderTimestamp, boolean replayed,
+                         boolean pending) {
+         this.orderID = orderID;
+         this.storeID = storeID;
+         this.totalPrice = totalPrice;
+         this.orderTimestamp = orderTimestamp;
+         this.replayed = replayed;
+         this.pending = pending;
+      }
+   }//end PlacedOrder
+
+   // the row an order write returned: (orderID, orderTimestamp) of a new order, or the
+   // (orderID, login, storeID, totalPrice, orderTimestamp) of the original order of its request key
+   private static class Written {
+      final List<String> row;
+      final boolean original;
+
+      Written(List<String> row, boolean original) {
+         this.row = row;
+         this.original = original;
+      }
+   }//end Written
+
+   // false to search the menu with SQL instead of the in-memory index
+   private static final boolean MENU_INDEX =
+      !"false".equals(System.getProperty("pizzastore.menuIndex.enabled"));
+
+   // false once the orders placed before sharding have been moved out of the primary
+   private static final boolean PRIMARY_ORDERS =
+      !"false".equals(System.getProperty("pizzastore.shards.primaryOrders"));
+
+   private final PizzaStore _esql;
+   private final boolean _pooled;
+
+   /**
+    * Creates a session service over the session connection of esql.
+    *
+    * @param esql the connected store
+    */
+   public PizzaStoreService(PizzaStore esql) {
+      this(esql, false);
+   }
+
+   /**
+    * @param esql the connected store
+    * @param pooled true to run every operation on a pooled connection
+    */
+   public PizzaStoreService(PizzaStore esql, boolean pooled) {
+      this._esql = esql;
+      this._pooled = pooled;
+   }
+
+   /**
+    * @return the store this service runs against
+    */
+   public PizzaStore store() {
+      return this._esql;
+   }
+
+   /*
+    * USERS
+    */
+
+   /**
+    * Creates a customer account.
+    *
+    * @param login the new login
+    * @param password the password
+    * @param phoneNum the phone number
+    * @throws java.sql.SQLException when the insert fails (e.g. login taken)
+    */
+   public void createUser(String login, String password, String phoneNum) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.CREATE_USER, login);
+      update(String.format(
+         "INSERT INTO USERS (login, password, role, favoriteItems, phoneNum) VALUES ('%s', '%s', 'customer', '', '%s');",
+         q(login), q(password), q(phoneNum)));
+   }
+
+   /**
+    * @param login the login
+    * @param password the password
+    * @return true if the credentials match a user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean login(String login, String password) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.LOGIN, login);
+      return !read(String.format("SELECT login FROM Users WHERE login = '%s' AND password = '%s';",
+                                 q(login), q(password))).isEmpty();
+   }
+
+   /**
+    * @param login the user login
+    * @return the role, or null if the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Role role(String login) throws SQLException {
+      if (!this._pooled)
+         return this._esql.getRole(login);
+      Role role = this._esql.roles().peek(login);
+      if (role == null) {
+         long generation = this._esql.roles().generation();
+         List<List<String>> rows = read(String.format("SELECT login, role FROM Users WHERE login = '%s';", q(login)));
+         this._esql.roles().load(rows, generation);
+         role = rows.isEmpty() ? null : Role.of(rows.get(0).get(1));
+      }
+      return role;
+   }//end role
+
+   /**
+    * Changes the role, favorite items and/or phone number of a user. Null
+    * or empty values are left unchanged. Managers only.
+    *
+    * @param actor the manager making the change
+    * @param login the user to change
+    * @return true if anything was updated
+    * @throws ServiceException when actor is not a manager or role is not a role
+    * @throws java.sql.SQLException when the update fails
+    */
+   public boolean updateUser(String actor, String login, String role, String favoriteItems, String phoneNum)
+         throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.UPDATE, actor);
+      requireManager(actor);
+      StringBuilder set = new StringBuilder();
+      if (role != null && !role.isEmpty()) {
+         Role r = Role.of(role);
+         if (r == null)
+            throw new ServiceException("Invalid Role: " + role);
+         set.append("role = '").append(r.label).append("', ");
+      }
+      if (favoriteItems != null && !favoriteItems.isEmpty())
+         set.append("favoriteItems = '").append(q(favoriteItems)).append("', ");
+      if (phoneNum != null && !phoneNum.isEmpty())
+         set.append("phoneNum = '").append(q(phoneNum)).append("', ");
+      if (set.length() == 0)
+         return false;
+      set.setLength(set.length() - 2);
+      int rows = update("UPDATE Users SET " + set + " WHERE login = '" + q(login) + "';");
+      this._esql.roles().invalidate(login);
+      if (rows > 0)
+         audit(actor, "updateUser", login, set.toString());
+      return rows > 0;
+   }//end updateUser
+
+   /**
+    * Changes the login of a user. Managers only.
+    *
+    * @param actor the manager making the change
+    * @param login the user to rename
+    * @param newLogin the new login
+    * @return true if the user existed
+    * @throws ServiceException when actor is not a manager or newLogin is empty
+    * @throws java.sql.SQLException when the update fails, e.g. newLogin is taken
+    */
+   public boolean renameUser(String actor, String login, String newLogin) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.UPDATE, actor);
+      requireManager(actor);
+      if (newLogin == null || newLogin.isEmpty())
+         throw new ServiceException("Login cannot be empty");
+      int rows = update(String.format("UPDATE Users SET login = '%s' WHERE login = '%s';", q(newLogin), q(login)));
+      this._esql.roles().invalidate(login);
+      this._esql.roles().invalidate(newLogin);
+      this._esql.recentOrders().remove(login);
+      if (rows > 0)
+         audit(actor, "renameUser", login, "login = " + newLogin);
+      return rows > 0;
+   }//end renameUser
+
+   /*
+    * MENU AND STORES
+    */
+
+   /**
+    * Lists menu items as (itemName, price, typeOfItem, description,
+    * ingredients) rows.
+    *
+    * @param typeOfItem only items of this type, or null
+    * @param maxPrice only items up to this price, or null
+    * @param sort the order of the listing
+    * @return the matching items
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> menu(ItemType typeOfItem, Double maxPrice, MenuSort sort) throws SQLException {
+      return read(menuQuery(new ArrayList<String>(), typeOfItem, maxPrice, sort));
+   }
+
+   private static String menuQuery(List<String> where, ItemType typeOfItem, Double maxPrice, MenuSort sort) {
+      if (typeOfItem != null)
+         where.add("typeOfItem = '" + typeOfItem.label + "'");
+      if (maxPrice != null)
+         where.add("price <= " + maxPrice.doubleValue());
+      StringBuilder sql = new StringBuilder(PizzaStore.MENU_COLUMNS);
+      for (int i = 0; i < where.size(); ++i)
+         sql.append(i == 0 ? " WHERE " : " AND ").append(where.get(i));
+      if (sort == MenuSort.PRICE_ASC)
+         sql.append(" ORDER BY price ASC");
+      else if (sort == MenuSort.PRICE_DESC)
+         sql.append(" ORDER BY price DESC");
+      return sql.append(';').toString();
+   }//end menuQuery
+
+   /**
+    * menu(typeOfItem, maxPrice, sort) charged to the rate limit of viewer.
+    *
+    * @param viewer the user asking
+    * @throws ServiceException when viewer is over its rate
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> menu(String viewer, ItemType typeOfItem, Double maxPrice, MenuSort sort)
+         throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.MENU, viewer);
+      return menu(typeOfItem, maxPrice, sort);
+   }
+
+   /**
+    * Searches the menu by ingredient and keyword, as (itemName, price,
+    * typeOfItem, description, ingredients) rows like menu(). Served from the
+    * inverted index of the menu cache (MenuIndex); with
+    * -Dpizzastore.menuIndex.enabled=false it queries the GIN indexes of
+    * create_indexes.sql instead.
+    *
+    * @param viewer the user asking
+    * @param with only items with every one of these ingredients, or null
+    * @param without only items with none of these ingredients, or null
+    * @param keywords only items whose name, description or ingredients have
+    *        every word of this, or null
+    * @param typeOfItem only items of this type, or null
+    * @param maxPrice only items up to this price, or null
+    * @param sort the order of the listing
+    * @return the matching items
+    * @throws ServiceException when viewer is over its rate
+    * @throws java.sql.SQLException when failed to load the menu
+    */
+   public List<List<String>> searchMenu(String viewer, Collection<String> with, Collection<String> without,
+                                        String keywords, ItemType typeOfItem, Double maxPrice, MenuSort sort)
+         throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.MENU, viewer);
+      if (!MENU_INDEX)
+         return read(menuQuery(MenuIndex.conditions(with, without, keywords), typeOfItem, maxPrice, sort));
+
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (List<String> item : this._esql.menu().index(menuItems()).search(with, without, keywords)) {
+         if (typeOfItem != null && ItemType.of(item.get(2)) != typeOfItem)
+            continue;
+         if (maxPrice != null && Double.parseDouble(item.get(3).trim()) > maxPrice.doubleValue())
+            continue;
+         rows.add(Arrays.asList(item.get(0), item.get(3), item.get(2), item.get(4), item.get(1)));
+      }
+      if (sort != MenuSort.NONE) {
+         Comparator<List<String>> byPrice = Comparator.comparingDouble(r -> Double.parseDouble(r.get(1).trim()));
+         rows.sort(sort == MenuSort.PRICE_DESC ? byPrice.reversed() : byPrice);
+      }
+      return rows;
+   }//end searchMenu
+
+   /**
+    * @return every item keyed by name, from the menu cache
+    * @throws java.sql.SQLException when failed to load the menu
+    */
+   public Map<String, List<String>> menuItems() throws SQLException {
+      Map<String, List<String>> items = this._esql.menu().peek();
+      if (items != null)
+         return items;
+      long generation = this._esql.menu().generation();
+      return this._esql.menu().load(read(MenuCache.QUERY), generation);
+   }
+
+   /**
+    * @return the store directory
+    * @throws java.sql.SQLException when failed to load the stores
+    */
+   public StoreDirectory.Snapshot stores() throws SQLException {
+      StoreDirectory.Snapshot s = this._esql.stores().peek();
+      if (s != null)
+         return s;
+      long generation = this._esql.stores().generation();
+      return this._esql.stores().load(read(StoreDirectory.QUERY), generation);
+   }
+
+   /**
+    * stores() charged to the rate limit of viewer.
+    *
+    * @param viewer the user asking
+    * @return the store directory
+    * @throws ServiceException when viewer is over its rate
+    * @throws java.sql.SQLException when failed to load the stores
+    */
+   public StoreDirectory.Snapshot stores(String viewer) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.STORES, viewer);
+      return stores();
+   }
+
+   /**
+    * Changes one column of a menu item. Not allowed for customers.
+    *
+    * @param actor the user making the change
+    * @param itemName the item to change
+    * @param field the column to change
+    * @param value the new value
+    * @return true if the item existed
+    * @throws ServiceException when not allowed, or the price or type is not valid
+    * @throws java.sql.SQLException when the update fails
+    */
+   public boolean updateMenuItem(String actor, String itemName, MenuField field, String value)
+         throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.UPDATE, actor);
+      requireStaff(actor, "You do not have Permission to Update the Menu");
+      String literal = "'" + q(value) + "'";
+      if (field == MenuField.PRICE)
+         literal = String.valueOf(price(value));
+      else if (field == MenuField.TYPE_OF_ITEM)
+         literal = "'" + itemType(value).label + "'";
+      int rows = update(String.format("UPDATE ITEMS SET %s = %s WHERE itemName = '%s'", field.column, literal, q(itemName)));
+      this._esql.menu().invalidate();
+      if (rows > 0)
+         audit(actor, "updateMenuItem", itemName, field.column + " = " + literal);
+      return rows > 0;
+   }//end updateMenuItem
+
+   /**
+    * Adds an item to the menu. Not allowed for customers.
+    *
+    * @param actor the user making the change
+    * @throws ServiceException when not allowed or the type is not valid
+    * @throws java.sql.SQLException when the insert fails (e.g. name taken)
+    */
+   public void addMenuItem(String actor, String itemName, String ingredients, String typeOfItem,
+                           double price, String description) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.UPDATE, actor);
+      requireStaff(actor, "You do not have Permission to Update the Menu");
+      update(String.format(
+         "INSERT INTO ITEMS (itemName, ingredients, typeOfItem, price, description) VALUES ('%s', '%s', '%s', '%f', '%s');",
+         q(itemName), q(ingredients), itemType(typeOfItem).label, price, q(description)));
+      this._esql.menu().invalidate();
+      audit(actor, "addMenuItem", itemName, String.format("typeOfItem = %s, price = %.2f", itemType(typeOfItem).label, price));
+   }//end addMenuItem
+
+   /*
+    * ORDERS
+    */
+
+   /**
+    * Places an order.
+    *
+    * @param login the customer
+    * @param storeID the store the order is placed at
+    * @param items item name -> quantity, in the order they were entered
+    * @return the new order
+    * @throws ServiceException when the store or an item does not exist, or a quantity is not positive
+    * @throws java.sql.SQLException when the insert fails
+    */
+   public PlacedOrder placeOrder(String login, int storeID, Map<String, Integer> items)
+         throws ServiceException, SQLException {
+      return placeOrder(login, storeID, items, null);
+   }
+
+   /**
+    * Places an order at most once per request key. A retry with a key that
+    * was already used by the same login returns the original order (with
+    * replayed set) and changes nothing, whatever its items are. With shards
+    * a key is unique per shard: it is looked up on the shard of storeID.
+    *
+    * @param login the customer
+    * @param storeID the store the order is placed at
+    * @param items item name -> quantity, in the order they were entered
+    * @param requestKey a client-chosen key unique per order (at most 64 characters), or null
+    * @return the new or original order, pending if it went to the order journal
+    * @throws ServiceException when the store or an item does not exist, a quantity is not
+    *         positive, or the key was used by another login
+    * @throws java.sql.SQLException when the insert fails, unless the database could not be reached and
+    *         the journal took the order
+    */
+   public PlacedOrder placeOrder(final String login, final int storeID, Map<String, Integer> items,
+                                 final String requestKey)
+         throws ServiceException, SQLException {
+      OperationEvent.store(storeID);
+      OrderJournal journal = this._esql.journal();
+      // a retry of a placed order is answered before admission, so it does not use up the rate
+      if (requestKey != null) {
+         if (requestKey.isEmpty() || requestKey.length() > RequestKeyCache.MAX_KEY_LENGTH)
+            throw new ServiceException("Request key must be 1 to " + RequestKeyCache.MAX_KEY_LENGTH + " characters");
+         RequestKeyCache.Entry seen = this._esql.requestKeys().get(requestKey);
+         if (seen != null)
+            return replay(login, requestKey, seen);
+      }//end if
+      if (stores().find(storeID) < 0)
+         throw new NotFound("Store Not Found");
+      if (requestKey != null && (journal == null || !journal.always())) {
+         List<String> existing;
+         try {
+            existing = onOrders(storeID, c -> findByRequestKey(c, requestKey));
+         } catch (SQLException e) {
+            // the insert below fails the same way and goes to the journal
+            if (journal == null || !unavailable(storeID, e))
+               throw e;
+            existing = null;
+         }
+         if (existing != null)
+            return original(login, requestKey, existing);
+      }//end if
+      this._esql.admission().admit(AdmissionControl.Operation.PLACE_ORDER, login, storeID);
+      if (items.isEmpty())
+         throw new ServiceException("No Items in Order");
+      Map<String, List<String>> menu = menuItems();
+      double total = 0;
+      for (Map.Entry<String, Integer> e : items.entrySet()) {
+         List<String> item = menu.get(e.getKey());
+         if (item == null)
+            throw new ServiceException("Invalid Item Name: " + e.getKey() + " Not Found");
+         if (e.getValue() == null || e.getValue() <= 0)
+            throw new ServiceException("Invalid Quantity for " + e.getKey());
+         total += Double.parseDouble(item.get(3).trim()) * e.getValue();
+      }//end for
+
+      final double totalPrice = total;
+      final Map<String, Integer> lines = new LinkedHashMap<String, Integer>(items);
+      if (journal != null && journal.always())
+         return journal(journal, login, storeID, totalPrice, lines, requestKey);
+      Written written;
+      try {
+         written = onOrders(storeID, c -> {
+            // the order and its items commit together, so a key never maps to a partial order
+            c.setAutoCommit(false);
+            try {
+               List<String> result = insertOrder(c, login, storeID, totalPrice, "NOW()", lines, requestKey);
+               c.commit();
+               return new Written(result, false);
+            } catch (SQLException e) {
+               c.rollback();
+               // a concurrent or earlier request already holds the key in OrderRequest
+               if (requestKey != null) {
+                  List<String> existing = findByRequestKey(c, requestKey);
+                  if (existing != null)
+                     return new Written(existing, true);
+               }
+               throw e;
+            } finally {
+               c.setAutoCommit(true);
+            }//end try
+         });
+      } catch (SQLException e) {
+         // only an outage is journaled; an order the database refuses is the caller's error
+         if (journal == null || !unavailable(storeID, e))
+            throw e;
+         return journal(journal, login, storeID, totalPrice, lines, requestKey);
+      }//end try
+
+      List<String> placed = written.row;
+      if (written.original)
+         return original(login, requestKey, placed);
+      int orderID = Integer.parseInt(placed.get(0).trim());
+      placed(login, storeID, totalPrice, orderID, placed.get(1), lines, requestKey);
+      return new PlacedOrder(orderID, storeID, totalPrice, placed.get(1));
+   }//end placeOrder
+
+   // updates the caches after an order was written
+   private void placed(String login, int storeID, double totalPrice, int orderID, String orderTimestamp,
+                       Map<String, Integer> lines, String requestKey) {
+      if (this._esql.shards() == null)
+         this._esql.partitions().placed(this._esql, orderID);
+      this._esql.prepBoard().placed(storeID, orderID, lines);
+      this._esql.recentOrders().append(login, new RecentOrdersCache.Entry(orderID, orderTimestamp, OrderStatus.INCOMPLETE));
+      if (requestKey != null)
+         this._esql.requestKeys().put(requestKey, login,
+                                      new PlacedOrder(orderID, storeID, totalPrice, orderTimestamp, true));
+   }//end placed
+
+   // inserts an order, its request key and its items, returning (orderID, orderTimestamp); no commit
+   private List<String> insertOrder(Connection c, String login, int storeID, double totalPrice, String orderTimestamp,
+                                    Map<String, Integer> lines, String requestKey) throws SQLException {
+      List<List<String>> result = this._esql.executeQueryAndReturnResult(c, String.format(
+         "INSERT INTO FOODORDER (login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+         "VALUES('%s', '%d', '%.2f', %s, 'incomplete') RETURNING orderID, orderTimestamp;",
+         q(login), storeID, totalPrice, orderTimestamp));
+      if (result.isEmpty())
+         throw new SQLException("Order placement failed, could not retrieve Order ID.");
+      int orderID = Integer.parseInt(result.get(0).get(0).trim());
+      if (requestKey != null)
+         this._esql.executeUpdate(c, String.format(
+            "INSERT INTO OrderRequest (requestKey, orderID) VALUES ('%s', %d);", q(requestKey), orderID));
+      StringBuilder insert = new StringBuilder("INSERT INTO ITEMSINORDER (orderID, itemName, quantity) VALUES ");
+      for (Map.Entry<String, Integer> e : lines.entrySet())
+         insert.append(String.format("(%d, '%s', %d),", orderID, q(e.getKey()), e.getValue()));
+      insert.setCharAt(insert.length() - 1, ';');
+      this._esql.executeUpdate(c, insert.toString());
+      return result.get(0);
+   }//end insertOrder
+
+   // true when an order write failed because the database of the store could not be reached
+   private boolean unavailable(int storeID, SQLException e) {
+      String state = e.getSQLState();
+      // 08 connection exception, 53 insufficient resources, 57 operator intervention (shutdown)
+      if (state != null && state.matches("(08|53|57).*"))
+         return true;
+      if (state != null && !state.isEmpty())
+         return false;
+      // the old driver sets no SQLState: unavailable unless the database still answers
+      try {
+         onOrders(storeID, c -> this._esql.executeQueryAndReturnResult(c, "SELECT 1;"));
+         return false;
+      } catch (SQLException down) {
+         return true;
+      }//end try
+   }//end unavailable
+
+   // takes an order into the journal; it gets a request key so its replay is written once
+   private PlacedOrder journal(OrderJournal journal, String login, int storeID, double totalPrice,
+                               Map<String, Integer> lines, String requestKey) throws SQLException {
+      String key = requestKey != null ? requestKey : "j-" + UUID.randomUUID();
+      String orderTimestamp = new java.sql.Timestamp(System.currentTimeMillis()).toString().substring(0, 19);
+      journal.append(new OrderJournal.Entry(key, login, storeID, totalPrice, orderTimestamp, lines));
+      PlacedOrder order = new PlacedOrder(-1, storeID, totalPrice, orderTimestamp, false, true);
+      if (requestKey != null)
+         this._esql.requestKeys().put(requestKey, login,
+                                      new PlacedOrder(-1, storeID, totalPrice, orderTimestamp, true, true));
+      return order;
+   }//end journal
+
+   /**
+    * Writes journaled orders in one transaction, skipping those whose request
+    * key is already in OrderRequest (replayed before a crash).
+    *
+    * @param c the connection of the database the orders belong to
+    * @param batch the orders
+    * @throws java.sql.SQLException when the batch could not be written; nothing is kept
+    */
+   void replay(Connection c, List<OrderJournal.Entry> batch) throws SQLException {
+      StringBuilder keys = new StringBuilder();
+      for (OrderJournal.Entry e : batch)
+         keys.append(keys.length() == 0 ? "'" : ", '").append(q(e.requestKey)).append('\'');
+      List<List<String>> placed = new ArrayList<List<String>>();
+      c.setAutoCommit(false);
+      try {
+         List<String> done = new ArrayList<String>();
+         for (List<String> row : this._esql.executeQueryAndReturnResult(c,
+               "SELECT requestKey FROM OrderRequest WHERE requestKey IN (" + keys + ");"))
+            done.add(row.get(0).trim());
+         for (OrderJournal.Entry e : batch)
+            placed.add(done.contains(e.requestKey) ? null : insertOrder(c, e.login, e.storeID, e.totalPrice,
+                                                                         "'" + e.orderTimestamp + "'", e.items,
+                                                                         e.requestKey));
+         c.commit();
+      } catch (SQLException e) {
+         c.rollback();
+         throw e;
+      } finally {
+         c.setAutoCommit(true);
+      }//end try
+      for (int i = 0; i < batch.size(); ++i) {
+         OrderJournal.Entry e = batch.get(i);
+         if (placed.get(i) != null)
+            placed(e.login, e.storeID, e.totalPrice, Integer.parseInt(placed.get(i).get(0).trim()),
+                   placed.get(i).get(1), e.items, e.requestKey);
+      }
+   }//end replay
+
+   /**
+    * The replayer of the order journal: a connection of its own to the
+    * primary, reopened after a failure, or the shards.
+    *
+    * @param url the JDBC connection URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @return the sink that writes replayed orders
+    */
+   OrderJournal.Sink journalSink(final String url, final String user, final String passwd) {
+      return new OrderJournal.Sink() {
+         private Connection _conn = null;
+
+         public void write(List<OrderJournal.Entry> batch) throws SQLException {
+            ShardRouter shards = PizzaStoreService.this._esql.shards();
+            if (shards != null) {
+               shards.run(shards.shardOfStore(batch.get(0).storeID), c -> {
+                  replay(c, batch);
+                  return null;
+               });
+               return;
+            }
+            try {
+               if (this._conn == null)
+                  this._conn = DriverManager.getConnection(url, user, passwd);
+               replay(this._conn, batch);
+            } catch (SQLException e) {
+               try {
+                  if (this._conn != null)
+                     this._conn.close();
+               } catch (SQLException ignored) {
+                  // the connection is dropped either way.
+               }
+               this._conn = null;
+               throw e;
+            }//end try
+         }//end write
+
+         public boolean sameDatabase(int a, int b) throws SQLException {
+            ShardRouter shards = PizzaStoreService.this._esql.shards();
+            return shards == null || shards.shardOfStore(a) == shards.shardOfStore(b);
+         }
+
+         public boolean refused(OrderJournal.Entry e, SQLException cause) {
+            String state = cause.getSQLState();
+            // 22 data exception, 23 integrity constraint violation
+            if (state != null && (state.startsWith("22") || state.startsWith("23")))
+               return true;
+            // 08 connection exception, 40 transaction rollback (deadlock, serialization), 53 resources, 57 shutdown
+            if (state != null && state.matches("(08|40|53|57).*"))
+               return false;
+            // the old driver sets no SQLState: refused only if the database still answers
+            try {
+               ShardRouter shards = PizzaStoreService.this._esql.shards();
+               if (shards != null) {
+                  shards.run(shards.shardOfStore(e.storeID),
+                             c -> PizzaStoreService.this._esql.executeQueryAndReturnResult(c, "SELECT 1;"));
+               } else {
+                  if (this._conn == null)
+                     this._conn = DriverManager.getConnection(url, user, passwd);
+                  PizzaStoreService.this._esql.executeQueryAndReturnResult(this._conn, "SELECT 1;");
+               }
+               return true;
+            } catch (SQLException unreachable) {
+               return false;
+            }//end try
+         }//end refused
+
+         public void rejected(OrderJournal.Entry e) {
+            PizzaStoreService.this._esql.requestKeys().removePending(e.requestKey);
+         }
+      };
+   }//end journalSink
+
+   // (orderID, login, storeID, totalPrice, orderTimestamp) of the order placed with requestKey, or null
+   private List<String> findByRequestKey(Connection c, String requestKey) throws SQLException {
+      List<List<String>> rows = this._esql.executeQueryAndReturnResult(c, String.format(
+         "SELECT f.orderID, f.login, f.storeID, f.totalPrice, f.orderTimestamp " +
+         "FROM OrderRequest r JOIN FoodOrder f ON f.orderID = r.orderID WHERE r.requestKey = '%s';",
+         q(requestKey)));
+      return rows.isEmpty() ? null : rows.get(0);
+   }
+
+   // caches and returns the order a findByRequestKey row names
+   private PlacedOrder original(String login, String requestKey, List<String> row) throws ServiceException {
+      RequestKeyCache.Entry original = new RequestKeyCache.Entry(row.get(1).trim(), new PlacedOrder(
+         Integer.parseInt(row.get(0).trim()), Integer.parseInt(row.get(2).trim()),
+         Double.parseDouble(row.get(3).trim()), row.get(4), true));
+      this._esql.requestKeys().put(requestKey, original.login, original.order);
+      return replay(login, requestKey, original);
+   }//end original
+
+   private static PlacedOrder replay(String login, String requestKey, RequestKeyCache.Entry seen)
+         throws ServiceException {
+      if (!seen.login.equals(login))
+         throw new ServiceException("Request key " + requestKey + " was already used");
+      return seen.order;
+   }
+
+   /**
+    * Every order of a user as (orderID, orderTimestamp, orderStatus) rows.
+    * Customers can only see their own orders.
+    *
+    * @param viewer the user asking
+    * @param login the user whose orders are listed
+    * @return the orders in the order they are stored
+    * @throws ServiceException when the viewer may not see them
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> orderHistory(String viewer, String login) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.ORDER_HISTORY, viewer);
+      requireSelfOrStaff(viewer, login);
+      if (this._esql.shards() != null)
+         return gatherOrders(String.format(
+            "SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC;",
+            q(login)), -1);
+      return read(String.format("SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s';", q(login)));
+   }
+
+   /**
+    * The most recent orders of a user, newest first, from the recent orders
+    * cache. Customers can only see their own orders.
+    *
+    * @param viewer the user asking
+    * @param login the user whose orders are listed
+    * @return up to the cache capacity of orders
+    * @throws ServiceException when the viewer may not see them
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<RecentOrdersCache.Entry> recentOrders(String viewer, String login) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.RECENT_ORDERS, viewer);
+      requireSelfOrStaff(viewer, login);
+      RecentOrdersCache cache = this._esql.recentOrders();
+      List<RecentOrdersCache.Entry> recent = cache.get(login);
+      if (recent == null) {
+         String sql = String.format(
+            "SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '%s' ORDER BY orderTimestamp DESC LIMIT %d;",
+            q(login), cache.capacity());
+         long version = cache.begin(login);
+         List<List<String>> rows;
+         try {
+            rows = this._esql.shards() != null ? gatherOrders(sql, cache.capacity()) : read(sql);
+         } catch (SQLException e) {
+            cache.abandon(login);
+            throw e;
+         }
+         cache.load(login, rows, version);
+         recent = cache.get(login);
+         // a change raced with the read, so the rows were not kept
+         if (recent == null)
+            recent = RecentOrdersCache.entries(rows, cache.capacity());
+      }
+      return recent;
+   }//end recentOrders
+
+   /**
+    * One order with its items, unit prices and store. Customers can only see
+    * their own orders.
+    *
+    * @param viewer the user asking
+    * @param orderID the order
+    * @return the order, or null if it does not exist
+    * @throws ServiceException when the viewer may not see it
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public OrderDetail orderDetail(String viewer, int orderID) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.ORDER_DETAIL, viewer);
+      Role role = requireUser(viewer);
+      OrderDetail detail = this._esql.orderDetails().get(orderID);
+      if (detail == null) {
+         if (this._esql.shards() != null)
+            detail = shardedOrderDetail(orderID);
+         else
+            detail = OrderDetail.fromRows(read(String.format(OrderDetail.QUERY, orderID)));
+         this._esql.orderDetails().put(detail);
+      }
+      if (detail != null && !role.isStaff() && !detail.login.equals(viewer))
+         throw new Forbidden("You are not authorized to view this order.");
+      return detail;
+   }//end orderDetail
+
+   /**
+    * Sets the status of an order. Managers and drivers only.
+    *
+    * @param actor the user making the change
+    * @param orderID the order
+    * @param orderStatus the new status, as typed (e.g. "complete")
+    * @return true if the order existed
+    * @throws ServiceException when not allowed or the status is not one
+    * @throws java.sql.SQLException when the update fails
+    */
+   public boolean updateOrderStatus(String actor, int orderID, String orderStatus) throws ServiceException, SQLException {
+      OrderStatus status = OrderStatus.of(orderStatus);
+      if (status == null)
+         throw new ServiceException("Invalid Order Status: " + orderStatus);
+      return updateOrderStatus(actor, orderID, status);
+   }
+
+   /**
+    * Sets the status of an order. Managers and drivers only.
+    *
+    * @param actor the user making the change
+    * @param orderID the order
+    * @param orderStatus the new status
+    * @return true if the order existed
+    * @throws ServiceException when not allowed
+    * @throws java.sql.SQLException when the update fails
+    */
+   public boolean updateOrderStatus(String actor, int orderID, OrderStatus orderStatus) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.UPDATE, actor);
+      requireStaff(actor, "You do not have permission to update order status.");
+      final String sql = String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = %d;", orderStatus.label, orderID);
+      int rows;
+      ShardRouter shards = this._esql.shards();
+      if (shards == null) {
+         rows = update(sql);
+      } else {
+         rows = shards.run(shards.shardOfOrder(orderID), c -> this._esql.executeUpdate(c, sql));
+         // orders loaded before sharding do not follow the orderID scheme
+         if (rows == 0)
+            for (int n : shards.scatter(c -> this._esql.executeUpdate(c, sql)))
+               rows += n;
+         if (rows == 0 && PRIMARY_ORDERS)
+            rows = update(sql);
+      }//end if
+      this._esql.recentOrders().updateStatus(orderID, orderStatus);
+      this._esql.orderDetails().invalidate(orderID);
+      if (rows > 0) {
+         if (orderStatus == OrderStatus.INCOMPLETE)
+            reopened(orderID);
+         else
+            this._esql.prepBoard().statusChanged(orderID, orderStatus);
+         audit(actor, "updateOrderStatus", String.valueOf(orderID), orderStatus.label);
+      }
+      return rows > 0;
+   }//end updateOrderStatus
+
+   // puts an order back on the prep board of its store, read from the primary so a replica cannot miss it
+   private void reopened(final int orderID) throws SQLException {
+      PrepBoard board = this._esql.prepBoard();
+      if (!board.inUse())
+         return;
+      OrderDetail detail;
+      if (this._esql.shards() != null)
+         detail = shardedOrderDetail(orderID);
+      else
+         detail = OrderDetail.fromRows(onPrimary(
+            c -> this._esql.executeQueryAndReturnResult(c, String.format(OrderDetail.QUERY, orderID))));
+      if (detail == null)
+         return;
+      Map<String, Integer> lines = new LinkedHashMap<String, Integer>();
+      for (OrderDetail.Line line : detail.lines)
+         lines.put(line.itemName, line.quantity);
+      board.reopened(detail.storeID, orderID, lines);
+   }//end reopened
+
+   /**
+    * What a store has to cook: the item quantities of all its incomplete
+    * orders, from the prep board. Staff only.
+    *
+    * @param viewer the user asking
+    * @param storeID the store
+    * @return itemName -> quantity, by itemName
+    * @throws ServiceException when the store does not exist or the viewer is not staff
+    * @throws java.sql.SQLException when failed to seed the board
+    */
+   public Map<String, Long> prepBoard(String viewer, final int storeID) throws ServiceException, SQLException {
+      admit(AdmissionControl.Operation.PREP_BOARD, viewer);
+      requireStaff(viewer, "You do not have permission to view the prep board.");
+      if (stores().find(storeID) < 0)
+         throw new NotFound("Store Not Found");
+      PrepBoard.Store board = this._esql.prepBoard().get(storeID);
+      if (!board.loaded()) {
+         synchronized (board) {
+            if (!board.loaded()) {
+               final String sql = String.format(PrepBoard.QUERY, storeID);
+               List<List<String>> rows = onOrders(storeID, c -> this._esql.executeQueryAndReturnResult(c, sql));
+               // from the primary itself: a lagging replica would miss orders placed meanwhile
+               if (this._esql.shards() != null && PRIMARY_ORDERS) {
+                  rows = new ArrayList<List<String>>(rows);
+                  rows.addAll(onPrimary(c -> this._esql.executeQueryAndReturnResult(c, sql)));
+               }
+               board.load(rows);
+            }
+         }
+      }//end if
+      return board.totals();
+   }//end prepBoard
+
+   /*
+    * PERMISSIONS
+    */
+
+   private Role requireUser(String login) throws ServiceException, SQLException {
+      Role role = role(login);
+      if (role == null)
+         throw new Forbidden("User not found.");
+      return role;
+   }
+
+   private void requireSelfOrStaff(String viewer, String login) throws ServiceException, SQLException {
+      if (!requireUser(viewer).isStaff() && !viewer.equals(login))
+         throw new Forbidden("You are not authorized to view orders of " + login + ".");
+   }
+
+   private void requireStaff(String actor, String message) throws ServiceException, SQLException {
+      if (!requireUser(actor).isStaff())
+         throw new Forbidden(message);
+   }
+
+   private void requireManager(String actor) throws ServiceException, SQLException {
+      if (requireUser(actor) != Role.MANAGER)
+         throw new Forbidden("You do not have permission to update users.");
+   }
+
+   private void admit(AdmissionControl.Operation op, String login) throws AdmissionControl.Rejected {
+      this._esql.admission().admit(op, login);
+   }
+
+   // queues an audit event; never waits for it to be written
+   private void audit(String actor, String action, String target, String detail) {
+      AuditTrail audit = this._esql.audit();
+      if (audit != null)
+         audit.record(actor, action, target, detail);
+   }
+
+   /*
+    * DATA ACCESS
+    */
+
+   // runs a read-only query: on a replica for a session service, pooled otherwise
+   private List<List<String>> read(final String sql) throws SQLException {
+      if (!this._pooled)
+         return this._esql.executeReadQueryAndReturnResult(sql);
+      return onPrimary(c -> this._esql.executeQueryAndReturnResult(c, sql));
+   }
+
+   private int update(final String sql) throws SQLException {
+      return onPrimary(c -> this._esql.executeUpdate(c, sql));
+   }
+
+   // runs an order write on the shard of the store, or on the primary
+   private <T> T onOrders(int storeID, AsyncPizzaStore.SqlTask<T> task) throws SQLException {
+      ShardRouter shards = this._esql.shards();
+      return shards == null ? onPrimary(task) : shards.run(shards.shardOfStore(storeID), task);
+   }
+
+   // runs a per-user query sorted by orderTimestamp (column 1) descending on every shard, and the
+   // primary for the orders placed before sharding, and merges the results
+   private List<List<String>> gatherOrders(final String sql, int limit) throws SQLException {
+      List<List<List<String>>> parts = new ArrayList<List<List<String>>>(
+         this._esql.shards().scatter(c -> this._esql.executeQueryAndReturnResult(c, sql)));
+      if (PRIMARY_ORDERS)
+         parts.add(read(sql));
+      return ShardRouter.mergeDescending(parts, 1, limit);
+   }//end gatherOrders
+
+   // reads an order from the shard its orderID names, or any shard or the primary for orders placed before sharding
+   private OrderDetail shardedOrderDetail(int orderID) throws SQLException {
+      ShardRouter shards = this._esql.shards();
+      final String sql = String.format(OrderDetail.SHARD_QUERY, orderID);
+      List<List<String>> rows = shards.run(shards.shardOfOrder(orderID), c -> this._esql.executeQueryAndReturnResult(c, sql));
+      if (rows.isEmpty())
+         for (List<List<String>> part : shards.scatter(c -> this._esql.executeQueryAndReturnResult(c, sql)))
+            if (!part.isEmpty())
+               rows = part;
+      if (rows.isEmpty() && PRIMARY_ORDERS)
+         return OrderDetail.fromRows(read(String.format(OrderDetail.QUERY, orderID)));
+      return rows.isEmpty() ? null : OrderDetail.fromShardRows(rows, stores(), menuItems());
+   }//end shardedOrderDetail
+
+   // runs a task on the primary: the session connection or a pooled one
+   private <T> T onPrimary(AsyncPizzaStore.SqlTask<T> task) throws SQLException {
+      if (!this._pooled) {
+         T result = task.run(this._esql.primary());
+         this._esql.noteWrite();
+         return result;
+      }
+      return this._esql.pool().run(task);
+   }//end onPrimary
+
+   private static ItemType itemType(String value) throws ServiceException {
+      ItemType type = ItemType.of(value);
+      if (type == null)
+         throw new ServiceException("Invalid Item Type: " + value + " (entree, sides, drinks)");
+      return type;
+   }
+
+   private static double price(String value) throws ServiceException {
+      try {
+         return Double.parseDouble(value.trim());
+      } catch (NumberFormatException e) {
+         throw new ServiceException("Invalid Price: " + value);
+      }
+   }
+
+   // escapes a value for use inside a single quoted SQL literal
+   static String q(String value) {
+      return value == null ? "" : value.replace("'", "''");
+   }
+
+}//end PizzaStoreService
@@ -0,0 +1,196 @@
+/*
+ * Prep Board
+ * ==========
+ *
+ * Running totals, per store, of the items to cook for the orders that are
+ * still incomplete.
+ *
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Each store's board is seeded once from FoodOrder and ItemsInOrder, then
+ * kept current by this process: placed() adds an order's lines to the
+ * counters, statusChanged() takes them off again when the order leaves
+ * 'incomplete' and reopened() puts them back when it returns to it. Reading
+ * a board only sums counters, so kitchen displays can poll it as often as
+ * they like.
+ *
+ * Orders placed or changed by other processes do not show up. Where several
+ * processes share the database, -Dpizzastore.prepBoard.refreshMs seeds a
+ * board again on the first read after that many milliseconds; by default a
+ * board is never seeded again.
+ */
+public class PrepBoard {
+
+   // (orderID, itemName, quantity) of every incomplete order of a store
+   public static final String QUERY =
+      "SELECT i.orderID, i.itemName, i.quantity FROM FoodOrder f JOIN ItemsInOrder i ON i.orderID = f.orderID " +
+      "WHERE f.storeID = %d AND f.orderStatus = 'incomplete';";
+
+   /**
+    * The board of one store.
+    */
+   public static class Store {
+      private final ConcurrentHashMap<String, LongAdder> _totals = new ConcurrentHashMap<String, LongAdder>();
+      // the lines of every open order on the board
+      private final ConcurrentHashMap<Integer, Map<String, Integer>> _open =
+         new ConcurrentHashMap<Integer, Map<String, Integer>>();
+      // orders closed before the seed was read, so the seed does not put them back
+      private final Set<Integer> _closed = ConcurrentHashMap.newKeySet();
+      // when the seed was applied, -1 before
+      private volatile long _loadedAt = -1;
+
+      /**
+       * @return true once the board has been seeded
+       */
+      public boolean loaded() {
+         return this._loadedAt >= 0;
+      }
+
+      /**
+       * Seeds the board with rows read with QUERY. Orders already on the board
+       * or closed meanwhile are skipped.
+       *
+       * @param rows (orderID, itemName, quantity) rows
+       */
+      public synchronized void load(List<List<String>> rows) {
+         Map<Integer, Map<String, Integer>> orders = new TreeMap<Integer, Map<String, Integer>>();
+         for (List<String> row : rows) {
+            int orderID = Integer.parseInt(row.get(0).trim());
+            Map<String, Integer> lines = orders.get(orderID);
+            if (lines == null) {
+               lines = new TreeMap<String, Integer>();
+               orders.put(orderID, lines);
+            }
+            lines.put(row.get(1).trim(), Integer.parseInt(row.get(2).trim()));
+         }//end for
+         for (Map.Entry<Integer, Map<String, Integer>> e : orders.entrySet())
+            if (!this._closed.contains(e.getKey()))
+               add(e.getKey(), e.getValue());
+         this._closed.clear();
+         this._loadedAt = System.currentTimeMillis();
+      }//end load
+
+      // synchronized with close(), which must see the counters of every order on the board
+      private synchronized void add(int orderID, Map<String, Integer> lines) {
+         if (this._open.putIfAbsent(orderID, lines) != null)
+            return;
+         for (Map.Entry<String, Integer> e : lines.entrySet())
+            this._totals.computeIfAbsent(e.getKey(), k -> new LongAdder()).add(e.getValue());
+      }
+
+      // an order back to 'incomplete'; the seed may still be read, so it must not skip the order
+      private synchronized void reopen(int orderID, Map<String, Integer> lines) {
+         this._closed.remove(orderID);
+         add(orderID, lines);
+      }
+
+      private synchronized void close(int orderID) {
+         Map<String, Integer> lines = this._open.remove(orderID);
+         if (lines == null) {
+            if (!loaded())
+               this._closed.add(orderID);
+            return;
+         }
+         for (Map.Entry<String, Integer> e : lines.entrySet())
+            this._totals.computeIfAbsent(e.getKey(), k -> new LongAdder()).add(-e.getValue());
+      }//end close
+
+      /**
+       * @return itemName -> quantity still to prepare, by itemName
+       */
+      public Map<String, Long> totals() {
+         Map<String, Long> totals = new TreeMap<String, Long>();
+         for (Map.Entry<String, LongAdder> e : this._totals.entrySet()) {
+            long n = e.getValue().sum();
+            if (n > 0)
+               totals.put(e.getKey(), n);
+         }
+         return totals;
+      }//end totals
+
+      /**
+       * @return the number of open orders on the board
+       */
+      public int orders() {
+         return this._open.size();
+      }
+   }//end Store
+
+   // -1: a board is never seeded again
+   private final long _refreshMillis = Long.getLong("pizzastore.prepBoard.refreshMs", -1L);
+   private final ConcurrentHashMap<Integer, Store> _stores = new ConcurrentHashMap<Integer, Store>();
+
+   /**
+    * Returns the board of a store, a new one if it was never read or, with
+    * refreshMs set, is due to be seeded again. The caller seeds it with load() unless loaded().
+    *
+    * @param storeID the store
+    * @return its board
+    */
+   public Store get(int storeID) {
+      Store s = this._stores.computeIfAbsent(storeID, k -> new Store());
+      long loadedAt = s._loadedAt;
+      if (this._refreshMillis >= 0 && loadedAt >= 0 && System.currentTimeMillis() - loadedAt > this._refreshMillis) {
+         Store fresh = new Store();
+         s = this._stores.replace(storeID, s, fresh) ? fresh : this._stores.get(storeID);
+      }
+      return s;
+   }//end get
+
+   /**
+    * Adds a new order to the board of its store, if that board is in use.
+    *
+    * @param storeID the store the order was placed at
+    * @param orderID the order
+    * @param lines itemName -> quantity
+    */
+   public void placed(int storeID, int orderID, Map<String, Integer> lines) {
+      Store s = this._stores.get(storeID);
+      if (s != null)
+         s.add(orderID, lines);
+   }
+
+   /**
+    * @return true once any store's board has been read
+    */
+   public boolean inUse() {
+      return !this._stores.isEmpty();
+   }
+
+   /**
+    * Puts an order set back to 'incomplete' on the board of its store, if
+    * that board is in use.
+    *
+    * @param storeID the store the order was placed at
+    * @param orderID the order
+    * @param lines itemName -> quantity
+    */
+   public void reopened(int storeID, int orderID, Map<String, Integer> lines) {
+      Store s = this._stores.get(storeID);
+      if (s != null)
+         s.reopen(orderID, lines);
+   }
+
+   /**
+    * Follows a status change of an order away from 'incomplete'. An order
+    * going back to it is put on its board with reopened().
+    *
+    * @param orderID the order
+    * @param orderStatus its new status
+    */
+   public void statusChanged(int orderID, OrderStatus orderStatus) {
+      if (orderStatus == OrderStatus.INCOMPLETE)
+         return;
+      for (Store s : this._stores.values())
+         s.close(orderID);
+   }//end statusChanged
+
+}//end PrepBoard
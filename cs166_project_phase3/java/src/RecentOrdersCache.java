@@ -0,0 +1,275 @@
+/*
+ * Recent Orders Cache
+ * ===================
+ *
+ * Keeps the last few orders of each login in memory so "View Past 5 Order
+ * IDs" does not have to go back to FoodOrder every time.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-login ring buffers of the most recent orders (orderID, timestamp and
+ * status), newest first. Logins are evicted least-recently-used once the
+ * estimated memory of all buffers goes over the configured cap.
+ *
+ * A miss is read with begin(), the query, then load(). An order placed by
+ * the login, or a status update of an order whose login is not cached,
+ * moves the version of every read in flight that it may touch, and load()
+ * keeps nothing when the version moved since begin(), so a read that
+ * raced with a change never installs a stale list.
+ *
+ *    -Dpizzastore.recentOrders.size=5
+ *    -Dpizzastore.recentOrders.maxBytes=4194304
+ */
+public class RecentOrdersCache {
+
+   // rough per-entry and per-login overheads used for the memory cap
+   private static final int ENTRY_BYTES = 96;
+   private static final int LOGIN_BYTES = 160;
+
+   private final int _capacity;
+   private final long _maxBytes;
+   private long _bytes = 0;
+
+   // access ordered so iteration starts at the least recently used login
+   private final LinkedHashMap<String, Ring> _byLogin = new LinkedHashMap<String, Ring>(64, 0.75f, true);
+
+   // orderID -> login for every cached order, used to patch statuses
+   private final Map<Integer, String> _owner = new HashMap<Integer, String>();
+
+   // login -> version and number of its misses being read from FoodOrder
+   private final Map<String, long[]> _loading = new HashMap<String, long[]>();
+   private long _version = 0;
+
+   /**
+    * A single cached order.
+    */
+   public static class Entry {
+      public final int orderID;
+      public final String orderTimestamp;
+      public final OrderStatus orderStatus;
+
+      public Entry(int orderID, String orderTimestamp, OrderStatus orderStatus) {
+         this.orderID = orderID;
+         this.orderTimestamp = orderTimestamp;
+         this.orderStatus = orderStatus;
+      }
+   }//end Entry
+
+   // fixed size ring of orders, head is the slot of the newest one
+   private static class Ring {
+      final Entry[] slots;
+      int head = -1;
+      int size = 0;
+
+      Ring(int capacity) {
+         this.slots = new Entry[capacity];
+      }
+
+      // returns the entry that fell off the end, if any
+      Entry push(Entry e) {
+         this.head = (this.head + 1) % this.slots.length;
+         Entry dropped = this.size == this.slots.length ? this.slots[this.head] : null;
+         this.slots[this.head] = e;
+         if (dropped == null)
+            ++this.size;
+         return dropped;
+      }
+
+      Entry get(int i) {
+         return this.slots[(this.head - i + this.slots.length) % this.slots.length];
+      }
+   }//end Ring
+
+   public RecentOrdersCache() {
+      this(Integer.getInteger("pizzastore.recentOrders.size", 5),
+           Long.getLong("pizzastore.recentOrders.maxBytes", 4L * 1024 * 1024));
+   }
+
+   /**
+    * @param capacity number of orders kept per login
+    * @param maxBytes estimated memory cap across all logins
+    */
+   public RecentOrdersCache(int capacity, long maxBytes) {
+      this._capacity = Math.max(1, capacity);
+      this._maxBytes = maxBytes;
+   }
+
+   /**
+    * @return the number of orders kept per login
+    */
+   public int capacity() {
+      return this._capacity;
+   }
+
+   /**
+    * Returns the cached orders of a login, newest first, or null when the
+    * login has not been loaded yet.
+    *
+    * @param login the user login
+    * @return up to capacity() orders, or null on a cache miss
+    */
+   public synchronized List<Entry> get(String login) {
+      Ring ring = this._byLogin.get(login);
+      if (ring == null)
+         return null;
+      List<Entry> result = new ArrayList<Entry>(ring.size);
+      for (int i = 0; i < ring.size; ++i)
+         result.add(ring.get(i));
+      return result;
+   }//end get
+
+   /**
+    * @param rows (orderID, orderTimestamp, orderStatus) records, newest first
+    * @param capacity the most entries to return
+    * @return the first capacity rows as entries, newest first
+    */
+   public static List<Entry> entries(List<List<String>> rows, int capacity) {
+      List<Entry> result = new ArrayList<Entry>(Math.min(rows.size(), capacity));
+      for (int i = 0; i < rows.size() && i < capacity; ++i) {
+         List<String> row = rows.get(i);
+         result.add(new Entry(Integer.parseInt(row.get(0).trim()), row.get(1), OrderStatus.of(row.get(2))));
+      }
+      return result;
+   }//end entries
+
+   /**
+    * Starts reading a login that missed. Every begin() must be followed by
+    * load() or abandon().
+    *
+    * @param login the user login
+    * @return the version to pass to load()
+    */
+   public synchronized long begin(String login) {
+      long[] loading = this._loading.get(login);
+      if (loading == null) {
+         loading = new long[] { ++this._version, 0 };
+         this._loading.put(login, loading);
+      }
+      ++loading[1];
+      return loading[0];
+   }//end begin
+
+   /**
+    * Ends a read started with begin() that failed.
+    *
+    * @param login the user login
+    */
+   public synchronized void abandon(String login) {
+      long[] loading = this._loading.get(login);
+      if (loading != null && --loading[1] == 0)
+         this._loading.remove(login);
+   }
+
+   /**
+    * Replaces the cached orders of a login with rows read from FoodOrder,
+    * unless an order of the login was placed or changed since begin().
+    *
+    * @param login the user login
+    * @param rows (orderID, orderTimestamp, orderStatus) records, newest first
+    * @param version begin() before the rows were read
+    */
+   public synchronized void load(String login, List<List<String>> rows, long version) {
+      long[] loading = this._loading.get(login);
+      abandon(login);
+      if (loading == null || loading[0] != version)
+         return;
+      remove(login);
+      Ring ring = new Ring(this._capacity);
+      for (int i = Math.min(rows.size(), this._capacity) - 1; i >= 0; --i) {
+         List<String> row = rows.get(i);
+         Entry e = new Entry(Integer.parseInt(row.get(0).trim()), row.get(1), OrderStatus.of(row.get(2)));
+         ring.push(e);
+         this._owner.put(e.orderID, login);
+      }//end for
+      this._byLogin.put(login, ring);
+      this._bytes += LOGIN_BYTES + (long) ring.size * ENTRY_BYTES;
+      evict();
+   }//end load
+
+   /**
+    * Adds a newly placed order for a login that is already cached. Logins
+    * that are not cached are left alone; they load from the table on their
+    * next access.
+    *
+    * @param login the user login
+    * @param e the new order
+    */
+   public synchronized void append(String login, Entry e) {
+      Ring ring = this._byLogin.get(login);
+      if (ring == null) {
+         stale(login);
+         return;
+      }
+      Entry dropped = ring.push(e);
+      if (dropped != null)
+         this._owner.remove(dropped.orderID);
+      else
+         this._bytes += ENTRY_BYTES;
+      this._owner.put(e.orderID, login);
+      evict();
+   }//end append
+
+   /**
+    * Patches the status of a cached order after updateOrderStatus.
+    *
+    * @param orderID the order that changed
+    * @param orderStatus the new status
+    */
+   public synchronized void updateStatus(int orderID, OrderStatus orderStatus) {
+      String login = this._owner.get(orderID);
+      if (login == null) {
+         // the order may belong to any login being read
+         for (String loading : this._loading.keySet())
+            stale(loading);
+         return;
+      }
+      Ring ring = this._byLogin.get(login);
+      for (int i = 0; ring != null && i < ring.slots.length; ++i) {
+         Entry e = ring.slots[i];
+         if (e != null && e.orderID == orderID)
+            ring.slots[i] = new Entry(orderID, e.orderTimestamp, orderStatus);
+      }//end for
+   }//end updateStatus
+
+   /**
+    * Drops a login from the cache.
+    *
+    * @param login the user login
+    */
+   public synchronized void remove(String login) {
+      Ring ring = this._byLogin.remove(login);
+      if (ring == null)
+         return;
+      for (int i = 0; i < ring.size; ++i)
+         this._owner.remove(ring.get(i).orderID);
+      this._bytes -= LOGIN_BYTES + (long) ring.size * ENTRY_BYTES;
+   }//end remove
+
+   // moves the version of a read in flight, so its load() keeps nothing
+   private void stale(String login) {
+      long[] loading = this._loading.get(login);
+      if (loading != null)
+         loading[0] = ++this._version;
+   }
+
+   private void evict() {
+      Iterator<Map.Entry<String, Ring>> it = this._byLogin.entrySet().iterator();
+      while (this._bytes > this._maxBytes && this._byLogin.size() > 1 && it.hasNext()) {
+         Map.Entry<String, Ring> eldest = it.next();
+         Ring ring = eldest.getValue();
+         for (int i = 0; i < ring.size; ++i)
+            this._owner.remove(ring.get(i).orderID);
+         this._bytes -= LOGIN_BYTES + (long) ring.size * ENTRY_BYTES;
+         it.remove();
+      }//end while
+   }//end evict
+
+}//end RecentOrdersCache
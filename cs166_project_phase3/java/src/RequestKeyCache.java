@@ -0,0 +1,79 @@
+/*
+ * Request Key Cache
+ * =================
+ *
+ * Remembers the orders placed with a client-supplied request key so a
+ * retried submission returns the original order without a round-trip.
+ *
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * requestKey -> (login, placed order) of the most recently placed keyed
+ * orders, least-recently-used eviction. The OrderRequest table (keyed by
+ * requestKey) is the source of truth; this cache only saves the lookup for
+ * retries that come soon after the original request.
+ *
+ *    -Dpizzastore.requestKeys.max=10000
+ */
+public class RequestKeyCache {
+
+   // a request key is stored in OrderRequest.requestKey varchar(64)
+   public static final int MAX_KEY_LENGTH = 64;
+
+   /**
+    * An order placed with a request key.
+    */
+   public static class Entry {
+      public final String login;
+      public final PizzaStoreService.PlacedOrder order;
+
+      public Entry(String login, PizzaStoreService.PlacedOrder order) {
+         this.login = login;
+         this.order = order;
+      }
+   }//end Entry
+
+   private final LinkedHashMap<String, Entry> _keys;
+
+   public RequestKeyCache() {
+      final int max = Integer.getInteger("pizzastore.requestKeys.max", 10000);
+      this._keys = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > max;
+         }
+      };
+   }//end RequestKeyCache
+
+   /**
+    * @param requestKey the client's key
+    * @return the order placed with it, or null if not cached
+    */
+   public synchronized Entry get(String requestKey) {
+      return this._keys.get(requestKey);
+   }
+
+   /**
+    * @param requestKey the client's key
+    * @param login the user who placed the order
+    * @param order the order placed with it
+    */
+   public synchronized void put(String requestKey, String login, PizzaStoreService.PlacedOrder order) {
+      this._keys.put(requestKey, new Entry(login, order));
+   }
+
+   /**
+    * Drops a key whose order is still pending, e.g. once the journal
+    * refused it, so a retry with the key places the order again.
+    *
+    * @param requestKey the client's key
+    */
+   public synchronized void removePending(String requestKey) {
+      Entry e = this._keys.get(requestKey);
+      if (e != null && e.order.pending)
+         this._keys.remove(requestKey);
+   }
+
+}//end RequestKeyCache
@@ -0,0 +1,254 @@
+/*
+ * Result Renderer
+ * ===============
+ *
+ * Writes query results and menu screens to the console through one buffered
+ * writer per session.
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Streams a ResultSet straight to a reusable buffered writer as an aligned
+ * table, CSV or JSON, without building intermediate String lists. Nothing
+ * reaches the console until flush(), which callers do once per screen.
+ *
+ * A table column is as wide as its label and declared size, up to 40
+ * characters. A longer value wraps onto continuation lines within its
+ * column, and the last column is always written whole, so no value is cut.
+ *
+ *    -Dpizzastore.output=table|csv|json
+ */
+public class ResultRenderer {
+
+   /**
+    * Output formats.
+    */
+   public enum Mode { TABLE, CSV, JSON }
+
+   // widest a table column gets before values wrap
+   private static final int MAX_WIDTH = 40;
+
+   private final PrintWriter _out;
+   private final Mode _mode;
+   private int[] _widths = new int[16];
+   // the values of the table row being written
+   private String[] _row = new String[16];
+
+   public ResultRenderer() {
+      this(new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16), false),
+           Mode.valueOf(System.getProperty("pizzastore.output", "table").toUpperCase()));
+   }
+
+   /**
+    * @param out the writer to render to
+    * @param mode the output format
+    */
+   public ResultRenderer(PrintWriter out, Mode mode) {
+      this._out = out;
+      this._mode = mode;
+   }
+
+   /**
+    * @return the buffered writer, for screens that lay out their own text
+    */
+   public PrintWriter out() {
+      return this._out;
+   }
+
+   /**
+    * @return the output format of this session
+    */
+   public Mode mode() {
+      return this._mode;
+   }
+
+   /**
+    * Writes every row of the result set in the session's format. The header
+    * is only written when there is at least one row.
+    *
+    * @param rs the result set, positioned before the first row
+    * @return the number of rows written
+    * @throws java.sql.SQLException when reading the result set fails
+    */
+   public int render(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      if (this._widths.length <= numCol) {
+         this._widths = new int[numCol + 1];
+         this._row = new String[numCol + 1];
+      }
+      int rowCount = 0;
+
+      while (rs.next()) {
+         if (rowCount == 0)
+            header(rsmd, numCol);
+         if (this._mode == Mode.JSON)
+            this._out.write(rowCount == 0 ? "\n  {" : ",\n  {");
+         for (int i = 1; i <= numCol; ++i) {
+            String value = rs.getString(i);
+            if (value != null && rsmd.getColumnType(i) == Types.CHAR)
+               value = stripTrailing(value);
+            switch (this._mode) {
+               case TABLE: this._row[i] = value == null ? "null" : value; break;
+               case CSV: csv(value, i == numCol); break;
+               case JSON: json(rsmd.getColumnLabel(i), value, isNumeric(rsmd.getColumnType(i)), i == 1); break;
+            }
+         }//end for
+         if (this._mode == Mode.JSON)
+            this._out.write('}');
+         else if (this._mode == Mode.TABLE)
+            tableRow(numCol);
+         else
+            this._out.write('\n');
+         ++rowCount;
+      }//end while
+
+      if (this._mode == Mode.JSON)
+         this._out.write(rowCount == 0 ? "[]\n" : "\n]\n");
+      return rowCount;
+   }//end render
+
+   /**
+    * Pushes everything written so far to the console.
+    */
+   public void flush() {
+      this._out.flush();
+   }
+
+   private void header(ResultSetMetaData rsmd, int numCol) throws SQLException {
+      if (this._mode == Mode.JSON) {
+         this._out.write('[');
+         return;
+      }
+      for (int i = 1; i <= numCol; ++i) {
+         String label = rsmd.getColumnLabel(i);
+         if (this._mode == Mode.CSV) {
+            csv(label, i == numCol);
+            continue;
+         }
+         int width = rsmd.getColumnDisplaySize(i);
+         this._widths[i] = Math.max(1, Math.max(label.length(), Math.min(MAX_WIDTH, width <= 0 ? MAX_WIDTH : width)));
+         cell(label, this._widths[i], i == numCol);
+      }//end for
+      this._out.write('\n');
+      if (this._mode == Mode.TABLE) {
+         for (int i = 1; i <= numCol; ++i) {
+            for (int w = 0; w < this._widths[i]; ++w)
+               this._out.write('-');
+            this._out.write(i == numCol ? '\n' : '+');
+         }
+      }
+   }//end header
+
+   // a value wider than its column goes on over the next lines, below itself
+   private void tableRow(int numCol) {
+      int lines = 1;
+      for (int i = 1; i < numCol; ++i)
+         lines = Math.max(lines, (this._row[i].length() + this._widths[i] - 1) / this._widths[i]);
+      for (int line = 0; line < lines; ++line) {
+         for (int i = 1; i < numCol; ++i) {
+            String value = this._row[i];
+            int from = Math.min(value.length(), line * this._widths[i]);
+            cell(value.substring(from, Math.min(value.length(), from + this._widths[i])), this._widths[i], false);
+         }
+         if (line == 0)
+            this._out.write(this._row[numCol]);
+         this._out.write('\n');
+      }//end for
+   }//end tableRow
+
+   private void cell(String value, int width, boolean last) {
+      if (value == null)
+         value = "null";
+      int len = Math.min(value.length(), width);
+      this._out.write(value, 0, len);
+      if (last)
+         return;
+      for (int w = len; w < width; ++w)
+         this._out.write(' ');
+      this._out.write('|');
+   }//end cell
+
+   private void csv(String value, boolean last) {
+      if (value != null) {
+         boolean quote = false;
+         for (int i = 0; i < value.length() && !quote; ++i) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+         }
+         if (quote) {
+            this._out.write('"');
+            for (int i = 0; i < value.length(); ++i) {
+               char c = value.charAt(i);
+               if (c == '"')
+                  this._out.write('"');
+               this._out.write(c);
+            }
+            this._out.write('"');
+         } else {
+            this._out.write(value);
+         }
+      }
+      if (!last)
+         this._out.write(',');
+   }//end csv
+
+   private void json(String name, String value, boolean numeric, boolean first) {
+      if (!first)
+         this._out.write(", ");
+      jsonString(name);
+      this._out.write(": ");
+      if (value == null)
+         this._out.write("null");
+      else if (numeric)
+         this._out.write(value.trim());
+      else
+         jsonString(value);
+   }//end json
+
+   private void jsonString(String s) {
+      this._out.write('"');
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': this._out.write("\\\""); break;
+            case '\\': this._out.write("\\\\"); break;
+            case '\n': this._out.write("\\n"); break;
+            case '\r': this._out.write("\\r"); break;
+            case '\t': this._out.write("\\t"); break;
+            default:
+               if (c < 0x20)
+                  this._out.write(String.format("\\u%04x", (int) c));
+               else
+                  this._out.write(c);
+         }
+      }//end for
+      this._out.write('"');
+   }//end jsonString
+
+   private static boolean isNumeric(int type) {
+      switch (type) {
+         case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT: case Types.DECIMAL:
+         case Types.NUMERIC: case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+            return true;
+         default:
+            return false;
+      }
+   }//end isNumeric
+
+   private static String stripTrailing(String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ')
+         --end;
+      return end == s.length() ? s : s.substring(0, end);
+   }
+
+}//end ResultRenderer
@@ -0,0 +1,51 @@
+/*
+ * Role
+ * ====
+ *
+ * The roles of Users, stored as the user_role enum type.
+ *
+ */
+
+/**
+ * A user's role. The label is the value of the user_role enum in the
+ * database.
+ */
+public enum Role {
+   CUSTOMER("customer"), DRIVER("driver"), MANAGER("manager");
+
+   public final String label;
+
+   Role(String label) {
+      this.label = label;
+   }
+
+   /**
+    * @return true for managers and drivers
+    */
+   public boolean isStaff() {
+      return this != CUSTOMER;
+   }
+
+   /**
+    * @param label a user_role value, or a role typed by a user (any case,
+    *        surrounding blanks ignored)
+    * @return the role, or null if label is not one
+    */
+   public static Role of(String label) {
+      if (label == null)
+         return null;
+      for (Role r : values())
+         if (r.label.equals(label))
+            return r;
+      String l = label.trim();
+      for (Role r : values())
+         if (r.label.equalsIgnoreCase(l))
+            return r;
+      return null;
+   }//end of
+
+   public String toString() {
+      return this.label;
+   }
+
+}//end Role
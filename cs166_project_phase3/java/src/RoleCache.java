@@ -0,0 +1,114 @@
+/*
+ * Role Cache
+ * ==========
+ *
+ * Remembers the role of each login so permission checks do not query Users.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * login -> role, filled on first lookup (or all at once by the startup
+ * warm-up). Call invalidate() whenever a user's
+ * role, login or password changes; the HTTP server drops the credentials it
+ * has checked whenever generation() moves.
+ */
+public class RoleCache {
+
+   public static final String QUERY_ALL = "SELECT login, role FROM Users;";
+
+   private final ConcurrentHashMap<String, Role> _roles = new ConcurrentHashMap<String, Role>();
+   // bumped by every invalidation, so a lookup that raced with one is not kept
+   private final AtomicLong _generation = new AtomicLong();
+
+   /**
+    * @param esql the database Users is read from on a miss
+    * @param login the user login
+    * @return the user's role, or null if the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Role get(PizzaStore esql, String login) throws SQLException {
+      Role role = this._roles.get(login);
+      if (role == null) {
+         long generation = generation();
+         List<List<String>> rows = esql.executeReadQueryAndReturnResult(
+            String.format("SELECT role FROM Users WHERE login = '%s';", PizzaStoreService.q(login)));
+         if (rows.isEmpty())
+            return null;
+         role = Role.of(rows.get(0).get(0));
+         if (role == null)
+            return null;
+         put(login, role, generation);
+      }
+      return role;
+   }//end get
+
+   /**
+    * @param login the user login
+    * @return the cached role, or null if it is not cached
+    */
+   public Role peek(String login) {
+      return this._roles.get(login);
+   }
+
+   /**
+    * Adds the (login, role) rows read with QUERY_ALL.
+    *
+    * @param rows the Users rows
+    */
+   public void load(List<List<String>> rows) {
+      load(rows, generation());
+   }
+
+   /**
+    * Adds the (login, role) rows, unless roles were invalidated since
+    * generation() was taken before reading them.
+    *
+    * @param rows the Users rows
+    * @param generation generation() before the rows were read
+    */
+   public void load(List<List<String>> rows, long generation) {
+      for (List<String> row : rows) {
+         Role role = Role.of(row.get(1));
+         if (role != null)
+            put(row.get(0), role, generation);
+      }
+   }//end load
+
+   // put first, then check, so an invalidation in between is never lost
+   private void put(String login, Role role, long generation) {
+      this._roles.put(login, role);
+      if (this._generation.get() != generation)
+         this._roles.remove(login);
+   }
+
+   /**
+    * @return the number of invalidations so far
+    */
+   public long generation() {
+      return this._generation.get();
+   }
+
+   /**
+    * @param login the user whose role or login changed
+    */
+   public void invalidate(String login) {
+      if (login != null) {
+         this._generation.incrementAndGet();
+         this._roles.remove(login);
+      }
+   }
+
+   /**
+    * Drops every cached role.
+    */
+   public void invalidateAll() {
+      this._generation.incrementAndGet();
+      this._roles.clear();
+   }
+
+}//end RoleCache
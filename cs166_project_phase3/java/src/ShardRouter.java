@@ -0,0 +1,227 @@
+/*
+ * Shard Router
+ * ============
+ *
+ * Spreads orders over several databases by storeID. Users, Items and Store
+ * stay in the main database; FoodOrder, ItemsInOrder and OrderRequest of
+ * each store live in the shard that owns it.
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shard map comes from -Dpizzastore.shards, a comma separated list of
+ * host:port/dbname. Stores are hashed to shards (storeID mod the number of
+ * shards), or, when every entry is written first-last@host:port/dbname,
+ * assigned by storeID range:
+ *
+ *    -Dpizzastore.shards=localhost:5432/orders0,localhost:5433/orders1
+ *    -Dpizzastore.shards=1-500@localhost:5432/orders0,501-1000@localhost:5433/orders1
+ *
+ * Shard i hands out orderIDs with orderID mod (number of shards) = i (see
+ * sql/src/create_shard.sql), so the owner of an order is known from its ID
+ * alone. Each shard has its own pool of -Dpizzastore.shards.poolSize
+ * (default 2) connections. Per-user queries run on every shard at once and
+ * their results are merged.
+ */
+public class ShardRouter {
+
+   private final String[] _urls;
+   // inclusive storeID ranges of range sharding, null for hash sharding
+   private final int[] _first;
+   private final int[] _last;
+   private final ConnectionPool[] _pools;
+   private final ExecutorService _scatter;
+
+   /**
+    * Reads the shard map and connects to every shard.
+    *
+    * @param spec the shard map, as in -Dpizzastore.shards
+    * @param user the user name used to login to the shards
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public ShardRouter(String spec, String user, String passwd) throws SQLException {
+      String[] entries = spec.split(",");
+      int n = entries.length;
+      this._urls = new String[n];
+      boolean ranged = spec.contains("@");
+      this._first = ranged ? new int[n] : null;
+      this._last = ranged ? new int[n] : null;
+      for (int i = 0; i < n; ++i) {
+         String entry = entries[i].trim();
+         if (ranged) {
+            int at = entry.indexOf('@');
+            int dash = entry.indexOf('-');
+            if (at < 0 || dash < 0 || dash > at)
+               throw new SQLException("Invalid shard " + entry + ", expected first-last@host:port/dbname");
+            this._first[i] = Integer.parseInt(entry.substring(0, dash).trim());
+            this._last[i] = Integer.parseInt(entry.substring(dash + 1, at).trim());
+            entry = entry.substring(at + 1);
+         }
+         this._urls[i] = "jdbc:postgresql://" + entry;
+      }//end for
+
+      this._pools = new ConnectionPool[n];
+      try {
+         for (int i = 0; i < n; ++i)
+            this._pools[i] = new ConnectionPool(this._urls[i], user, passwd,
+                                                Integer.getInteger("pizzastore.shards.poolSize", 2));
+      } catch (SQLException e) {
+         close();
+         throw e;
+      }//end try
+
+      final AtomicInteger threads = new AtomicInteger();
+      this._scatter = Executors.newFixedThreadPool(n, r -> {
+         Thread t = new Thread(r, "pizzastore-shard-" + threads.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   /**
+    * @param user the user name used to login to the shards
+    * @param passwd the user login password
+    * @return the shard router configured by -Dpizzastore.shards, or null if
+    *         orders are not sharded
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public static ShardRouter fromProperties(String user, String passwd) throws SQLException {
+      String spec = System.getProperty("pizzastore.shards");
+      return spec == null || spec.trim().isEmpty() ? null : new ShardRouter(spec, user, passwd);
+   }
+
+   /**
+    * @return the number of shards
+    */
+   public int count() {
+      return this._urls.length;
+   }
+
+   /**
+    * @param shard a shard
+    * @return the connection pool of the shard
+    */
+   public ConnectionPool pool(int shard) {
+      return this._pools[shard];
+   }
+
+   /**
+    * @param storeID a store
+    * @return the shard holding the orders of the store
+    * @throws java.sql.SQLException when no shard range covers the store
+    */
+   public int shardOfStore(int storeID) throws SQLException {
+      if (this._first == null)
+         return Math.floorMod(storeID, count());
+      for (int i = 0; i < this._first.length; ++i)
+         if (storeID >= this._first[i] && storeID <= this._last[i])
+            return i;
+      throw new SQLException("No shard holds store " + storeID);
+   }//end shardOfStore
+
+   /**
+    * @param orderID an order
+    * @return the shard that handed out the orderID
+    */
+   public int shardOfOrder(int orderID) {
+      return Math.floorMod(orderID, count());
+   }
+
+   /**
+    * Runs a task on a connection of one shard.
+    *
+    * @param shard the shard
+    * @param task the work to run
+    * @return the task's result
+    * @throws java.sql.SQLException when the task failed
+    */
+   public <T> T run(int shard, AsyncPizzaStore.SqlTask<T> task) throws SQLException {
+      return this._pools[shard].run(task);
+   }//end run
+
+   /**
+    * Runs a task on every shard at the same time.
+    *
+    * @param task the work to run
+    * @return the results, in shard order
+    * @throws java.sql.SQLException when the task failed on any shard
+    */
+   public <T> List<T> scatter(final AsyncPizzaStore.SqlTask<T> task) throws SQLException {
+      List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>(count());
+      for (int i = 0; i < count(); ++i) {
+         final int shard = i;
+         futures.add(CompletableFuture.supplyAsync(() -> {
+            try {
+               return run(shard, task);
+            } catch (SQLException e) {
+               throw new CompletionException(e);
+            }
+         }, this._scatter));
+      }//end for
+      List<T> results = new ArrayList<T>(count());
+      for (CompletableFuture<T> f : futures)
+         results.add(AsyncPizzaStore.join(f));
+      return results;
+   }//end scatter
+
+   /**
+    * Merges per-shard results that are each sorted on one column, descending.
+    * Values are compared as strings, which orders timestamps and zero padded
+    * values correctly.
+    *
+    * @param parts the sorted results of each shard
+    * @param column the sort column
+    * @param limit the most rows to return, or -1 for all
+    * @return the merged rows, descending
+    */
+   public static List<List<String>> mergeDescending(List<List<List<String>>> parts, int column, int limit) {
+      int total = 0;
+      for (List<List<String>> p : parts)
+         total += p.size();
+      if (limit < 0 || limit > total)
+         limit = total;
+      List<List<String>> merged = new ArrayList<List<String>>(limit);
+      int[] next = new int[parts.size()];
+      while (merged.size() < limit) {
+         int best = -1;
+         for (int i = 0; i < parts.size(); ++i) {
+            if (next[i] >= parts.get(i).size())
+               continue;
+            if (best < 0 || compare(parts.get(i).get(next[i]).get(column),
+                                    parts.get(best).get(next[best]).get(column)) > 0)
+               best = i;
+         }//end for
+         merged.add(parts.get(best).get(next[best]++));
+      }//end while
+      return Collections.unmodifiableList(merged);
+   }//end mergeDescending
+
+   private static int compare(String a, String b) {
+      if (a == null)
+         return b == null ? 0 : -1;
+      return b == null ? 1 : a.compareTo(b);
+   }
+
+   /**
+    * Closes the connections of every shard.
+    */
+   public void close() {
+      if (this._scatter != null)
+         this._scatter.shutdownNow();
+      for (ConnectionPool pool : this._pools)
+         if (pool != null)
+            pool.close();
+   }//end close
+
+}//end ShardRouter
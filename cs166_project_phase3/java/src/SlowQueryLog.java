@@ -0,0 +1,290 @@
+/*
+ * Slow Query Log
+ * ==============
+ *
+ * Records the SQL statements that take longer than a threshold, with a
+ * sample of their plans, to a rotating local log file.
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Every statement PizzaStore runs is timed; one that takes at least
+ * -Dpizzastore.slowQuery.ms (default 500, -1 turns the log off) is written
+ * as its template, with string and number literals replaced by $1, $2, ...,
+ * followed by the literals (strings redacted to their length), the duration
+ * and the row count:
+ *
+ *    2026-10-18 12:00:00.123 812 ms 3 rows
+ *    SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder WHERE login = $1;
+ *       $1 = <text, 8 chars>
+ *
+ * For -Dpizzastore.slowQuery.explainPercent (default 10) percent of them the
+ * plan is captured on a background thread, on a connection of its own to
+ * the same database, so the caller neither waits for it nor has its
+ * transaction touched. Only a SELECT that calls no function besides
+ * aggregates and the like is run again with EXPLAIN (ANALYZE, BUFFERS);
+ * anything else, e.g. SELECT nextval(...), gets plain EXPLAIN so its side
+ * effects do not happen twice. At most 64 captures wait; past that entries
+ * are written without a plan.
+ *
+ * The log goes to -Dpizzastore.slowQuery.file (default slow-queries.log).
+ * At -Dpizzastore.slowQuery.maxKB (default 10240) it is renamed to .1, the
+ * .1 to .2 and so on, keeping -Dpizzastore.slowQuery.files (default 5).
+ */
+public class SlowQueryLog {
+
+   private static final SimpleDateFormat TIME = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+   // a word followed by (, i.e. a function call or a keyword before a sub-expression
+   private static final Pattern CALL = Pattern.compile("([a-z_][a-z0-9_.]*)\\s*\\(");
+   // functions without side effects, and keywords that may precede a (
+   private static final Set<String> PURE = new HashSet<String>(Arrays.asList(
+      "count", "sum", "min", "max", "avg", "coalesce", "nullif", "greatest", "least",
+      "lower", "upper", "trim", "length", "round", "extract", "date_trunc", "cast",
+      "select", "from", "join", "on", "where", "and", "or", "not", "in", "any", "all",
+      "exists", "as", "by", "over", "filter", "having", "distinct", "values", "when",
+      "then", "else", "case", "with"));
+
+   private final long _thresholdNanos;
+   private final int _explainPercent;
+   private final File _file;
+   private final long _maxBytes;
+   private final int _files;
+   private Writer _out = null;
+   private long _written = 0;
+
+   private volatile String _user = null;
+   private volatile String _passwd = null;
+   private final ThreadPoolExecutor _explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(64), r -> {
+         Thread t = new Thread(r, "pizzastore-slow-query-explain");
+         t.setDaemon(true);
+         return t;
+      });
+   // touched by the explain thread only: database URL -> connection
+   private final Map<String, Connection> _conns = new HashMap<String, Connection>();
+
+   public SlowQueryLog() {
+      long ms = Long.getLong("pizzastore.slowQuery.ms", 500);
+      this._thresholdNanos = ms < 0 ? Long.MAX_VALUE : ms * 1000000;
+      this._explainPercent = Integer.getInteger("pizzastore.slowQuery.explainPercent", 10);
+      this._file = new File(System.getProperty("pizzastore.slowQuery.file", "slow-queries.log"));
+      this._maxBytes = Integer.getInteger("pizzastore.slowQuery.maxKB", 10240) * 1024L;
+      this._files = Math.max(1, Integer.getInteger("pizzastore.slowQuery.files", 5));
+   }//end SlowQueryLog
+
+   /**
+    * Sets the login the plans are captured with; until then entries are
+    * written without a plan.
+    *
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    */
+   public void credentials(String user, String passwd) {
+      this._passwd = passwd;
+      this._user = user;
+   }
+
+   /**
+    * Called after a statement succeeded. Does nothing unless it was slow.
+    *
+    * @param conn the connection the statement ran on
+    * @param sql the statement
+    * @param startNanos System.nanoTime() before the statement ran
+    * @param rows the rows returned or changed
+    */
+   public void record(Connection conn, String sql, long startNanos, int rows) {
+      long nanos = System.nanoTime() - startNanos;
+      if (nanos < this._thresholdNanos)
+         return;
+      List<String> literals = new ArrayList<String>();
+      StringBuilder entry = new StringBuilder();
+      synchronized (TIME) {
+         entry.append(TIME.format(new Date()));
+      }
+      entry.append(' ').append(nanos / 1000000).append(" ms ").append(rows).append(" rows\n");
+      entry.append(template(sql, literals)).append('\n');
+      for (int i = 0; i < literals.size(); ++i)
+         entry.append("   $").append(i + 1).append(" = ").append(literals.get(i)).append('\n');
+      if (this._explainPercent > 0 && this._user != null
+            && ThreadLocalRandom.current().nextInt(100) < this._explainPercent) {
+         try {
+            final String url = conn.getMetaData().getURL();
+            this._explainer.execute(() -> {
+               explain(url, sql, entry);
+               write(entry.append('\n').toString());
+            });
+            return;
+         } catch (SQLException | RejectedExecutionException e) {
+            entry.append("   plan not captured: ").append(e.getMessage() == null ? "too many waiting" : e.getMessage()).append('\n');
+         }//end try
+      }//end if
+      write(entry.append('\n').toString());
+   }//end record
+
+   /**
+    * Replaces the literals of a statement with $1, $2, ... and collapses
+    * whitespace, so the runs of one statement share a template.
+    *
+    * @param sql the statement
+    * @param literals receives each literal, strings redacted to their length
+    * @return the template
+    */
+   public static String template(String sql, List<String> literals) {
+      StringBuilder t = new StringBuilder(sql.length());
+      int n = sql.length();
+      for (int i = 0; i < n; ) {
+         char c = sql.charAt(i);
+         if (c == '\'') {
+            // a string literal, '' is an escaped quote
+            int chars = 0;
+            int j = i + 1;
+            while (j < n) {
+               if (sql.charAt(j) == '\'') {
+                  if (j + 1 < n && sql.charAt(j + 1) == '\'') {
+                     j += 2;
+                     ++chars;
+                     continue;
+                  }
+                  break;
+               }
+               ++j;
+               ++chars;
+            }//end while
+            literals.add("<text, " + chars + " chars>");
+            t.append('$').append(literals.size());
+            i = j + 1;
+         } else if (Character.isDigit(c) && (i == 0 || !isWord(sql.charAt(i - 1)))) {
+            int j = i;
+            while (j < n && (Character.isDigit(sql.charAt(j)) || sql.charAt(j) == '.'))
+               ++j;
+            literals.add(sql.substring(i, j));
+            t.append('$').append(literals.size());
+            i = j;
+         } else if (Character.isWhitespace(c)) {
+            if (t.length() > 0 && t.charAt(t.length() - 1) != ' ')
+               t.append(' ');
+            while (i < n && Character.isWhitespace(sql.charAt(i)))
+               ++i;
+         } else {
+            t.append(c);
+            ++i;
+         }
+      }//end for
+      return t.toString().trim();
+   }//end template
+
+   private static boolean isWord(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+   }
+
+   /**
+    * @param sql a statement
+    * @return true when it is a SELECT calling no function outside PURE, so
+    *         running it again under EXPLAIN ANALYZE changes nothing
+    */
+   public static boolean sideEffectFree(String sql) {
+      // literals are dropped first, a login like 'a(b' is no call
+      String t = template(sql, new ArrayList<String>()).toLowerCase();
+      if (!t.startsWith("select") || t.contains(" for update") || t.contains(" for share") || t.contains(" into "))
+         return false;
+      Matcher m = CALL.matcher(t);
+      while (m.find())
+         if (!PURE.contains(m.group(1)))
+            return false;
+      return true;
+   }//end sideEffectFree
+
+   // on the explain thread
+   private void explain(String url, String sql, StringBuilder entry) {
+      boolean analyze = sideEffectFree(sql);
+      try {
+         Connection c = this._conns.get(url);
+         if (c == null) {
+            c = DriverManager.getConnection(url, this._user, this._passwd);
+            this._conns.put(url, c);
+         }
+         Statement stmt = c.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql);
+            entry.append(analyze ? "   plan (analyze):\n" : "   plan:\n");
+            while (rs.next())
+               entry.append("      ").append(rs.getString(1)).append('\n');
+         } finally {
+            stmt.close();
+         }
+      } catch (SQLException e) {
+         entry.append("   plan not captured: ").append(e.getMessage()).append('\n');
+         // opened again for the next capture
+         close(this._conns.remove(url));
+      }//end try
+   }//end explain
+
+   private static void close(Connection c) {
+      try {
+         if (c != null)
+            c.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   private synchronized void write(String entry) {
+      try {
+         if (this._out == null || this._written + entry.length() > this._maxBytes) {
+            if (this._out != null) {
+               this._out.close();
+               this._out = null;
+               rotate();
+            }
+            this._written = this._file.length();
+            this._out = new FileWriter(this._file, true);
+         }
+         this._out.write(entry);
+         this._out.flush();
+         this._written += entry.length();
+      } catch (IOException e) {
+         System.err.println("Slow query log: " + e.getMessage());
+      }//end try
+   }//end write
+
+   // slow-queries.log -> .1 -> .2 ... the oldest is dropped
+   private void rotate() {
+      if (this._files == 1) {
+         this._file.delete();
+         return;
+      }
+      String base = this._file.getPath();
+      new File(base + "." + (this._files - 1)).delete();
+      for (int i = this._files - 2; i >= 1; --i)
+         new File(base + "." + i).renameTo(new File(base + "." + (i + 1)));
+      this._file.renameTo(new File(base + ".1"));
+   }//end rotate
+
+}//end SlowQueryLog
@@ -0,0 +1,138 @@
+/*
+ * Startup Warm-up
+ * ===============
+ *
+ * Gets a freshly started PizzaStore ready before the first customer request.
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Preloads the menu, store and role caches in parallel on pooled
+ * connections, runs every hot query once on each connection (session and
+ * pool) and reports the time-to-ready. The pg73 driver prepares nothing on
+ * the server, so a run only leaves the JVM's code paths compiled and the
+ * tables and indexes the queries touch in the database's cache; each later
+ * run is still parsed and planned. Turn it off with
+ * -Dpizzastore.warmup=false.
+ */
+public class StartupWarmup {
+
+   // the statements customers hit first, with arguments that match nothing
+   private static final String[] HOT_QUERIES = {
+      "SELECT role FROM Users WHERE login = '';",
+      "SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '' ORDER BY orderTimestamp DESC LIMIT 5;",
+      "SELECT orderID, orderTimestamp, orderStatus FROM FoodOrder WHERE login = '';",
+      String.format(OrderDetail.QUERY, -1),
+      PizzaStore.MENU_COLUMNS + " WHERE price <= 0 ORDER BY price ASC;"
+   };
+
+   /**
+    * @return true unless warm-up was turned off
+    */
+   public static boolean enabled() {
+      return Boolean.parseBoolean(System.getProperty("pizzastore.warmup", "true"));
+   }
+
+   /**
+    * Runs the warm-up and prints how long it took. Failures are reported
+    * and skipped; the caches then load on first use as usual.
+    *
+    * @param esql the freshly connected store
+    */
+   public static void run(final PizzaStore esql) {
+      long start = System.currentTimeMillis();
+      System.out.print("Warming up...");
+      final ConnectionPool pool = esql.pool();
+      ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, pool.size()));
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+      tasks.add(new Callable<Void>() {
+         public Void call() throws Exception {
+            Connection c = pool.borrow();
+            try {
+               esql.menu().load(esql.executeQueryAndReturnResult(c, MenuCache.QUERY));
+            } finally {
+               pool.release(c);
+            }
+            return null;
+         }
+      });
+      tasks.add(new Callable<Void>() {
+         public Void call() throws Exception {
+            Connection c = pool.borrow();
+            try {
+               esql.stores().load(esql.executeQueryAndReturnResult(c, StoreDirectory.QUERY));
+            } finally {
+               pool.release(c);
+            }
+            return null;
+         }
+      });
+      tasks.add(new Callable<Void>() {
+         public Void call() throws Exception {
+            Connection c = pool.borrow();
+            try {
+               esql.roles().load(esql.executeQueryAndReturnResult(c, RoleCache.QUERY_ALL));
+            } finally {
+               pool.release(c);
+            }
+            return null;
+         }
+      });
+      for (int i = 0; i < pool.size(); ++i) {
+         tasks.add(new Callable<Void>() {
+            public Void call() throws Exception {
+               Connection c = pool.borrow();
+               try {
+                  warm(esql, c);
+               } finally {
+                  pool.release(c);
+               }
+               return null;
+            }
+         });
+      }//end for
+
+      int failed = 0;
+      try {
+         List<Future<Void>> results = new ArrayList<Future<Void>>();
+         for (Callable<Void> task : tasks)
+            results.add(exec.submit(task));
+         warm(esql, esql.primary());
+         for (Future<Void> f : results) {
+            try {
+               f.get();
+            } catch (Exception e) {
+               ++failed;
+               System.err.println("Warm-up step failed: " + e.getMessage());
+            }//end try
+         }//end for
+      } catch (Exception e) {
+         ++failed;
+         System.err.println("Warm-up step failed: " + e.getMessage());
+      } finally {
+         exec.shutdown();
+      }//end try
+
+      System.out.println("Done");
+      System.out.printf("Ready in %d ms (warm-up %d ms, %d connections pooled%s)\n",
+                        ManagementFactory.getRuntimeMXBean().getUptime(),
+                        System.currentTimeMillis() - start, pool.size(),
+                        failed == 0 ? "" : ", " + failed + " steps failed");
+   }//end run
+
+   private static void warm(PizzaStore esql, Connection c) throws Exception {
+      for (String query : HOT_QUERIES)
+         esql.executeQueryAndReturnResult(c, query);
+   }
+
+}//end StartupWarmup
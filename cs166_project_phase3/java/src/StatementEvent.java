@@ -0,0 +1,63 @@
+/*
+ * Statement Event
+ * ===============
+ *
+ * Java Flight Recorder event for one SQL statement run by PizzaStore.
+ *
+ */
+
+import java.util.ArrayList;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Spans one statement, from sending it to reading its last row. The SQL is
+ * recorded as its template (see SlowQueryLog.template), so no user data
+ * reaches the recording, together with the operation it ran in.
+ */
+@Name("pizzastore.Statement")
+@Label("PizzaStore Statement")
+@Category("PizzaStore")
+public class StatementEvent extends Event {
+
+   @Label("Operation")
+   public String operation;
+
+   @Label("SQL")
+   public String sql;
+
+   @Label("Rows")
+   public int rows;
+
+   /**
+    * @return a started event, to finish() after the statement
+    */
+   public static StatementEvent start() {
+      StatementEvent e = new StatementEvent();
+      e.begin();
+      return e;
+   }
+
+   /**
+    * Ends the statement, counts it into the current operation and records it.
+    *
+    * @param sql the statement
+    * @param nanos how long it took
+    * @param rows the rows returned or changed
+    */
+   public void finish(String sql, long nanos, int rows) {
+      end();
+      OperationEvent op = OperationEvent.current();
+      if (op != null)
+         op.statement(nanos, rows);
+      if (shouldCommit()) {
+         this.operation = op == null ? null : op.operation;
+         this.sql = SlowQueryLog.template(sql, new ArrayList<String>());
+         this.rows = rows;
+         commit();
+      }
+   }//end finish
+
+}//end StatementEvent
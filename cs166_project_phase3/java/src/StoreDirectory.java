@@ -0,0 +1,259 @@
+/*
+ * Store Directory
+ * ===============
+ *
+ * In-memory, column oriented copy of the Store table behind "View Stores".
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the Store table once into primitive columns (int ids, float scores,
+ * dictionary coded city/state) and answers filtered, sorted and paginated
+ * views from memory. The loaded data is an immutable snapshot swapped in as a
+ * whole, so readers never lock; call invalidate() after Store changes and the
+ * next reader reloads it.
+ */
+public class StoreDirectory {
+
+   public static final String QUERY =
+      "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store ORDER BY storeID;";
+
+   /**
+    * Orders a view can be sorted in.
+    */
+   public enum Sort { STORE_ID, STATE, REVIEW_SCORE }
+
+   private volatile Snapshot _snapshot = null;
+   // bumped by invalidate(), so a load that raced with it is not kept
+   private final AtomicLong _generation = new AtomicLong();
+
+   /**
+    * One immutable load of the Store table. Rows are addressed by index;
+    * rows are stored in storeID order.
+    */
+   public static final class Snapshot {
+      private final int[] _ids;
+      private final String[] _address;
+      private final int[] _city;
+      private final int[] _state;
+      private final boolean[] _open;
+      private final float[] _score;
+      private final String[] _cityNames;
+      private final String[] _stateNames;
+      private final Map<String, Integer> _stateCodes;
+      private final int[][] _orders = new int[Sort.values().length][];
+
+      private Snapshot(List<List<String>> rows) {
+         int n = rows.size();
+         this._ids = new int[n];
+         this._address = new String[n];
+         this._city = new int[n];
+         this._state = new int[n];
+         this._open = new boolean[n];
+         this._score = new float[n];
+
+         Map<String, Integer> cities = new HashMap<String, Integer>();
+         Map<String, Integer> states = new HashMap<String, Integer>();
+         List<String> cityNames = new ArrayList<String>();
+         List<String> stateNames = new ArrayList<String>();
+         for (int i = 0; i < n; ++i) {
+            List<String> row = rows.get(i);
+            this._ids[i] = Integer.parseInt(row.get(0).trim());
+            this._address[i] = row.get(1);
+            this._city[i] = code(row.get(2).trim(), cities, cityNames);
+            this._state[i] = code(row.get(3).trim(), states, stateNames);
+            this._open[i] = "yes".equalsIgnoreCase(row.get(4).trim());
+            this._score[i] = row.get(5) == null ? Float.NaN : Float.parseFloat(row.get(5));
+         }//end for
+         this._cityNames = cityNames.toArray(new String[0]);
+         this._stateNames = stateNames.toArray(new String[0]);
+         this._stateCodes = new HashMap<String, Integer>();
+         for (Map.Entry<String, Integer> e : states.entrySet())
+            this._stateCodes.put(e.getKey().toLowerCase(), e.getValue());
+
+         this._orders[Sort.STORE_ID.ordinal()] = sorted(n, null);
+         this._orders[Sort.STATE.ordinal()] = sorted(n, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               return _stateNames[_state[a]].compareTo(_stateNames[_state[b]]);
+            }
+         });
+         this._orders[Sort.REVIEW_SCORE.ordinal()] = sorted(n, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               // highest score first, stores without a score last
+               return Float.compare(score(_score[b]), score(_score[a]));
+            }
+         });
+      }//end Snapshot
+
+      private static float score(float f) {
+         return Float.isNaN(f) ? Float.NEGATIVE_INFINITY : f;
+      }
+
+      private static int code(String value, Map<String, Integer> codes, List<String> names) {
+         Integer c = codes.get(value);
+         if (c == null) {
+            c = names.size();
+            codes.put(value, c);
+            names.add(value);
+         }
+         return c;
+      }//end code
+
+      // stable sort of row indexes, ties stay in storeID order
+      private static int[] sorted(int n, Comparator<Integer> cmp) {
+         Integer[] rows = new Integer[n];
+         for (int i = 0; i < n; ++i)
+            rows[i] = i;
+         if (cmp != null)
+            Arrays.sort(rows, cmp);
+         int[] result = new int[n];
+         for (int i = 0; i < n; ++i)
+            result[i] = rows[i];
+         return result;
+      }//end sorted
+
+      /**
+       * @return the number of stores
+       */
+      public int size() { return this._ids.length; }
+
+      public int storeID(int row) { return this._ids[row]; }
+      public String address(int row) { return this._address[row]; }
+      public String city(int row) { return this._cityNames[this._city[row]]; }
+      public String state(int row) { return this._stateNames[this._state[row]]; }
+      public boolean isOpen(int row) { return this._open[row]; }
+
+      /**
+       * @param row a row index
+       * @return the review score, NaN when the store has none
+       */
+      public float reviewScore(int row) { return this._score[row]; }
+
+      /**
+       * @param storeID the store to look up
+       * @return its row index, or -1 when there is no such store
+       */
+      public int find(int storeID) {
+         int row = Arrays.binarySearch(this._ids, storeID);
+         return row < 0 ? -1 : row;
+      }
+
+      /**
+       * Returns one page of stores matching the filters.
+       *
+       * @param state only stores in this state (case-insensitive), or null for all
+       * @param openOnly only stores that are open
+       * @param sort the order of the view
+       * @param page zero based page number
+       * @param pageSize stores per page
+       * @return the row indexes of the page, empty past the last page
+       */
+      public int[] view(String state, boolean openOnly, Sort sort, int page, int pageSize) {
+         int stateCode = -1;
+         if (state != null) {
+            Integer c = this._stateCodes.get(state.trim().toLowerCase());
+            if (c == null)
+               return new int[0];
+            stateCode = c;
+         }
+         int[] order = this._orders[sort.ordinal()];
+         int skip = page * pageSize;
+         int[] result = new int[pageSize];
+         int found = 0;
+         for (int i = 0; i < order.length && found < pageSize; ++i) {
+            int row = order[i];
+            if ((stateCode >= 0 && this._state[row] != stateCode) || (openOnly && !this._open[row]))
+               continue;
+            if (skip > 0) {
+               --skip;
+               continue;
+            }
+            result[found++] = row;
+         }//end for
+         return found == pageSize ? result : Arrays.copyOf(result, found);
+      }//end view
+   }//end Snapshot
+
+   /**
+    * Returns the loaded stores, loading them on first use or after an
+    * invalidate().
+    *
+    * @param esql the database the Store table is read from
+    * @return the current snapshot
+    * @throws java.sql.SQLException when failed to load the stores
+    */
+   public Snapshot get(PizzaStore esql) throws SQLException {
+      Snapshot s = this._snapshot;
+      if (s == null) {
+         synchronized (this) {
+            s = this._snapshot;
+            if (s == null) {
+               long generation = generation();
+               s = load(esql.executeReadQueryAndReturnResult(QUERY), generation);
+            }
+         }
+      }
+      return s;
+   }//end get
+
+   /**
+    * @return the loaded stores, or null if they are not loaded
+    */
+   public Snapshot peek() {
+      return this._snapshot;
+   }
+
+   /**
+    * Replaces the loaded stores with rows already read with QUERY.
+    *
+    * @param rows the Store rows in storeID order
+    * @return the new snapshot
+    */
+   public Snapshot load(List<List<String>> rows) {
+      return load(rows, generation());
+   }
+
+   /**
+    * Replaces the loaded stores with rows read with QUERY, unless the
+    * stores were invalidated since generation() was taken before reading
+    * them.
+    *
+    * @param rows the Store rows in storeID order
+    * @param generation generation() before the rows were read
+    * @return the new snapshot
+    */
+   public Snapshot load(List<List<String>> rows, long generation) {
+      Snapshot s = new Snapshot(rows);
+      this._snapshot = s;
+      // set first, then check, so an invalidate() in between is never lost
+      if (this._generation.get() != generation)
+         this._snapshot = null;
+      return s;
+   }//end load
+
+   /**
+    * @return the number of invalidations so far
+    */
+   public long generation() {
+      return this._generation.get();
+   }
+
+   /**
+    * Drops the loaded stores so the next reader reloads them. Call after
+    * anything changes the Store table.
+    */
+   public void invalidate() {
+      this._generation.incrementAndGet();
+      this._snapshot = null;
+   }
+
+}//end StoreDirectory
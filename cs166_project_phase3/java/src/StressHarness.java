@@ -0,0 +1,332 @@
+/*
+ * Stress Harness
+ * ==============
+ *
+ * Runs placeOrder, updateOrderStatus and updateUser from many threads at
+ * once against a local database, then checks that the order tables are
+ * still consistent.
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Unlike LoadGenerator replay, which paces raw SQL to a target rate, the
+ * harness drives the real PizzaStoreService as fast as it goes, one level
+ * of threads after the other. Each level gets a PizzaStore of its own whose
+ * pool has one connection per thread, so every thread is a database session
+ * and the threads share the caches like the HTTP server does. Admission
+ * control is turned off for the levels, since every staff call runs as one
+ * manager login and its rate limit would be measured in place of the locks.
+ *
+ * The threads contend on purpose: status updates pick among the last 64
+ * orders placed and user updates among the first 8 customers, so rows are
+ * locked by several sessions at once, and every order draws from
+ * orderID_Seq. Per level the harness reports:
+ *
+ *    ops/s and p50/p99 latency   per operation
+ *    aborts                      failed calls, split into deadlocks,
+ *                                serialization or lock timeouts, and other
+ *    rejected                    calls turned away by admission control,
+ *                                not counted as aborts
+ *    lock wait                   session-seconds spent waiting on a lock,
+ *                                sampled from pg_stat_activity every 50 ms
+ *    deadlocks                   the growth of pg_stat_database.deadlocks
+ *
+ * and then checks the invariants over the orders of the run: every total
+ * equals the sum of its line items at menu prices, every order has items,
+ * no ItemsInOrder row is orphaned, and the database holds exactly the
+ * orders that placeOrder reported.
+ *
+ * Usage:
+ *    java StressHarness <dbname> <port> <user> [--threads 16,64,128]
+ *         [--seconds 30] [--users 200] [--mix 70,25,5] [--keep true] [--seed S]
+ *
+ * --mix is the percentage of placeOrder, updateOrderStatus and updateUser
+ * calls. The users and orders of the run (logins st<run>_...) are deleted
+ * at the end unless --keep true. The database needs max_connections above
+ * the largest level plus a few.
+ */
+public class StressHarness {
+
+   private static final String[] OPS = { "placeOrder", "updateOrderStatus", "updateUser" };
+   // orders and customers the threads contend on
+   private static final int HOT_ORDERS = 64;
+   private static final int HOT_USERS = 8;
+   private static final long SAMPLE_MILLIS = 50;
+
+   /**
+    * The outcome of one level.
+    */
+   private static class Level {
+      final int threads;
+      final long[][] samples = new long[OPS.length][];
+      final int[] counts = new int[OPS.length];
+      final LongAdder conflicts = new LongAdder();
+      final LongAdder others = new LongAdder();
+      final LongAdder rejected = new LongAdder();
+      final LongAdder placed = new LongAdder();
+      long lockWaitMillis = 0;
+      long deadlocks = 0;
+
+      Level(int threads) {
+         this.threads = threads;
+         for (int i = 0; i < OPS.length; ++i)
+            this.samples[i] = new long[1024];
+      }
+
+      synchronized void record(int op, long nanos) {
+         if (this.counts[op] == this.samples[op].length)
+            this.samples[op] = Arrays.copyOf(this.samples[op], this.counts[op] * 2);
+         this.samples[op][this.counts[op]++] = nanos;
+      }
+
+      void failed(SQLException e) {
+         if (conflict(e))
+            this.conflicts.increment();
+         else
+            this.others.increment();
+      }
+   }//end Level
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java StressHarness <dbname> <port> <user> [--threads 16,64,128] " +
+                            "[--seconds 30] [--users 200] [--mix 70,25,5] [--keep true] [--seed S]");
+         return;
+      }
+      Map<String, String> opts = new HashMap<String, String>();
+      for (int i = 3; i < args.length - 1; ++i)
+         if (args[i].startsWith("--"))
+            opts.put(args[i].substring(2), args[++i]);
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      String user = args[2];
+      int seconds = Integer.parseInt(opt(opts, "seconds", "30"));
+      int users = Integer.parseInt(opt(opts, "users", "200"));
+      int seed = Integer.parseInt(opt(opts, "seed", "166"));
+      String[] mix = opt(opts, "mix", "70,25,5").split(",");
+      int[] weights = new int[OPS.length];
+      for (int i = 0; i < OPS.length; ++i)
+         weights[i] = Integer.parseInt(mix[i].trim()) + (i > 0 ? weights[i - 1] : 0);
+
+      Class.forName("org.postgresql.Driver");
+      String run = "st" + System.currentTimeMillis() % 100000000L;
+      PizzaStore setup = new PizzaStore(url, user, "");
+      try {
+         List<String> customers = createUsers(setup, run, users);
+         String manager = customers.remove(customers.size() - 1);
+         update(setup.primary(), "UPDATE Users SET role = 'manager' WHERE login = '" + manager + "';");
+         setup.roles().invalidate(manager);
+
+         List<Level> levels = new ArrayList<Level>();
+         AtomicLong placed = new AtomicLong();
+         for (String n : opt(opts, "threads", "16,64,128").split(",")) {
+            Level level = runLevel(url, user, setup.primary(), Integer.parseInt(n.trim()), seconds, customers, manager,
+                                   weights, seed);
+            placed.addAndGet(level.placed.sum());
+            levels.add(level);
+            report(levels, seconds);
+            check(setup.primary(), run, placed.get());
+         }//end for
+      } finally {
+         if (!"true".equals(opts.get("keep")))
+            // FoodOrder, ItemsInOrder and OrderRequest rows go with their users
+            update(setup.primary(), "DELETE FROM Users WHERE login LIKE '" + run + "\\_%';");
+         setup.cleanup();
+      }//end try
+   }//end main
+
+   private static String opt(Map<String, String> opts, String name, String dflt) {
+      return opts.containsKey(name) ? opts.get(name) : dflt;
+   }
+
+   // the customers of the run, the last one to become the manager
+   private static List<String> createUsers(PizzaStore esql, String run, int users) throws Exception {
+      List<String> logins = new ArrayList<String>();
+      PizzaStoreService svc = esql.service();
+      for (int i = 0; i < Math.max(2, users); ++i) {
+         String login = run + "_" + i;
+         svc.createUser(login, "pw", "000-000-0000");
+         logins.add(login);
+      }
+      return logins;
+   }//end createUsers
+
+   private static Level runLevel(String url, String user, Connection monitor, final int threads, int seconds,
+                                 final List<String> customers, final String manager,
+                                 final int[] weights, final int seed) throws Exception {
+      System.setProperty("pizzastore.pool.size", String.valueOf(threads));
+      System.setProperty("pizzastore.admission.enabled", "false");
+      final PizzaStore esql = new PizzaStore(url, user, "");
+      final Level level = new Level(threads);
+      try {
+         final PizzaStoreService svc = new PizzaStoreService(esql, true);
+         final StoreDirectory.Snapshot stores = svc.stores();
+         final String[] items = svc.menuItems().keySet().toArray(new String[0]);
+         final AtomicIntegerArray hot = new AtomicIntegerArray(HOT_ORDERS);
+         final AtomicLong next = new AtomicLong();
+         final long deadline = System.nanoTime() + seconds * 1000000000L;
+         final CountDownLatch start = new CountDownLatch(1);
+         final CountDownLatch done = new CountDownLatch(threads);
+         long deadlocks = value(monitor,
+            "SELECT deadlocks FROM pg_stat_database WHERE datname = current_database();");
+
+         for (int t = 0; t < threads; ++t) {
+            final Random rnd = new Random(seed * 31L + t);
+            new Thread(new Runnable() {
+               public void run() {
+                  try {
+                     start.await();
+                     while (System.nanoTime() < deadline) {
+                        int pick = rnd.nextInt(weights[weights.length - 1]);
+                        int op = pick < weights[0] ? 0 : pick < weights[1] ? 1 : 2;
+                        long began = System.nanoTime();
+                        try {
+                           if (op == 0) {
+                              Map<String, Integer> lines = new LinkedHashMap<String, Integer>();
+                              for (int i = 1 + rnd.nextInt(3); i > 0; --i)
+                                 lines.put(items[rnd.nextInt(items.length)], 1 + rnd.nextInt(3));
+                              PizzaStoreService.PlacedOrder o = svc.placeOrder(
+                                 customers.get(rnd.nextInt(customers.size())),
+                                 stores.storeID(rnd.nextInt(stores.size())), lines);
+                              // a journaled order has no orderID yet and is not in FoodOrder
+                              if (!o.pending) {
+                                 hot.set((int) (next.getAndIncrement() % HOT_ORDERS), o.orderID);
+                                 level.placed.increment();
+                              }
+                           } else if (op == 1) {
+                              int orderID = hot.get(rnd.nextInt(HOT_ORDERS));
+                              if (orderID == 0)
+                                 continue;
+                              svc.updateOrderStatus(manager, orderID,
+                                                    rnd.nextBoolean() ? OrderStatus.COMPLETE : OrderStatus.INCOMPLETE);
+                           } else {
+                              svc.updateUser(manager, customers.get(rnd.nextInt(Math.min(HOT_USERS, customers.size()))),
+                                             null, items[rnd.nextInt(items.length)],
+                                             String.format("%03d-%03d-%04d", rnd.nextInt(1000), rnd.nextInt(1000),
+                                                           rnd.nextInt(10000)));
+                           }//end if
+                           level.record(op, System.nanoTime() - began);
+                        } catch (SQLException e) {
+                           level.failed(e);
+                        } catch (AdmissionControl.Rejected e) {
+                           level.rejected.increment();
+                        } catch (PizzaStoreService.ServiceException e) {
+                           level.others.increment();
+                        }//end try
+                     }//end while
+                  } catch (Exception e) {
+                     System.err.println(Thread.currentThread().getName() + ": " + e.getMessage());
+                  } finally {
+                     done.countDown();
+                  }//end try
+               }
+            }, "stress-" + t).start();
+         }//end for
+
+         start.countDown();
+         // samples sessions waiting on a lock until every thread is done
+         long waiting = 0;
+         while (!done.await(SAMPLE_MILLIS, TimeUnit.MILLISECONDS))
+            waiting += value(monitor,
+               "SELECT count(*) FROM pg_stat_activity WHERE wait_event_type = 'Lock' AND datname = current_database();");
+         level.lockWaitMillis = waiting * SAMPLE_MILLIS;
+         level.deadlocks = value(monitor,
+            "SELECT deadlocks FROM pg_stat_database WHERE datname = current_database();") - deadlocks;
+      } finally {
+         esql.cleanup();
+      }
+      return level;
+   }//end runLevel
+
+   // deadlocks, serialization failures and lock timeouts, by SQLState or, for the old driver, by message
+   private static boolean conflict(SQLException e) {
+      String state = e.getSQLState();
+      if ("40P01".equals(state) || "40001".equals(state) || "55P03".equals(state))
+         return true;
+      String message = String.valueOf(e.getMessage()).toLowerCase();
+      return message.contains("deadlock") || message.contains("could not serialize")
+         || message.contains("lock timeout");
+   }//end conflict
+
+   private static void report(List<Level> levels, int seconds) {
+      System.out.printf("%n%7s %9s", "threads", "ops/s");
+      for (String op : OPS)
+         System.out.printf(" %22s", op + " p50/p99 ms");
+      System.out.printf(" %8s %9s %10s %11s %9s%n", "aborts", "conflict", "deadlocks", "lock wait s", "rejected");
+      for (Level l : levels) {
+         long ok = 0;
+         for (int n : l.counts)
+            ok += n;
+         long failed = l.conflicts.sum() + l.others.sum();
+         System.out.printf("%7d %9.1f", l.threads, (double) ok / seconds);
+         for (int op = 0; op < OPS.length; ++op) {
+            long[] s = Arrays.copyOf(l.samples[op], l.counts[op]);
+            Arrays.sort(s);
+            System.out.printf(" %22s", String.format("%.2f/%.2f", pct(s, 0.50), pct(s, 0.99)));
+         }
+         System.out.printf(" %7.2f%% %9d %10d %11.1f %9d%n", ok + failed == 0 ? 0 : 100.0 * failed / (ok + failed),
+                           l.conflicts.sum(), l.deadlocks, l.lockWaitMillis / 1000.0, l.rejected.sum());
+      }//end for
+   }//end report
+
+   private static double pct(long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0;
+      return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+   }
+
+   // the invariants of the order tables, over the orders of the run
+   private static void check(Connection c, String run, long placed) throws SQLException {
+      String mine = "f.login LIKE '" + run + "\\_%'";
+      long orders = value(c, "SELECT count(*) FROM FoodOrder f WHERE " + mine + ";");
+      long badTotals = value(c,
+         "SELECT count(*) FROM FoodOrder f WHERE " + mine + " AND abs(f.totalPrice - " +
+         "(SELECT COALESCE(SUM(i.quantity * m.price), 0) FROM ItemsInOrder i JOIN Items m ON m.itemName = i.itemName " +
+         "WHERE i.orderID = f.orderID)) > 0.005;");
+      long empty = value(c,
+         "SELECT count(*) FROM FoodOrder f WHERE " + mine +
+         " AND NOT EXISTS (SELECT 1 FROM ItemsInOrder i WHERE i.orderID = f.orderID);");
+      long orphans = value(c,
+         "SELECT count(*) FROM ItemsInOrder i WHERE NOT EXISTS (SELECT 1 FROM FoodOrder f WHERE f.orderID = i.orderID);");
+      System.out.printf("invariants: %s orders placed %d, in database %d; totals off %d; without items %d; " +
+                        "orphan items %d%n",
+                        orders == placed && badTotals == 0 && empty == 0 && orphans == 0 ? "OK" : "VIOLATED",
+                        placed, orders, badTotals, empty, orphans);
+   }//end check
+
+   private static long value(Connection c, String sql) throws SQLException {
+      Statement stmt = c.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(sql);
+         return rs.next() ? rs.getLong(1) : 0;
+      } finally {
+         stmt.close();
+      }
+   }//end value
+
+   private static void update(Connection c, String sql) throws SQLException {
+      Statement stmt = c.createStatement();
+      try {
+         stmt.executeUpdate(sql);
+      } finally {
+         stmt.close();
+      }
+   }//end update
+
+}//end StressHarness
@@ -4,4 +4,5 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
 cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
-
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/cache_bus.sql
+cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/audit_log.sql
@@ -0,0 +1,13 @@
+-- Adds the idempotency keys of placed orders to an existing database.
+-- New databases get OrderRequest from create_tables.sql, order shards from
+-- create_shard.sql.
+--
+-- A key is unique within one database. With -Dpizzastore.shards, each shard
+-- has its own OrderRequest, so a key is only checked against the orders of
+-- the shard of the store: a client that reuses a key for a store on another
+-- shard places a new order.
+CREATE TABLE IF NOT EXISTS OrderRequest ( requestKey varchar(64) NOT NULL, --client idempotency key
+                           orderID integer NOT NULL,
+                           PRIMARY KEY(requestKey),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE
+);
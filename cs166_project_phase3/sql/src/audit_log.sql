@@ -0,0 +1,17 @@
+-- Audit trail of the changes made through PizzaStore to users, the menu and
+-- order statuses, for processes running with -Dpizzastore.audit=table. The
+-- rows are written in batches by a background thread, so at is when the
+-- change was made, not when the row was inserted.
+
+DROP TABLE IF EXISTS AuditLog;
+
+CREATE TABLE AuditLog ( id bigserial NOT NULL,
+                        at timestamp NOT NULL,
+                        actor varchar(50) NOT NULL, --login that made the change
+                        action varchar(30) NOT NULL, --updateUser, updateMenuItem, addMenuItem, updateOrderStatus
+                        target text, --login, itemName or orderID
+                        detail text, --the new values
+                        PRIMARY KEY(id)
+);
+CREATE INDEX auditLogAt ON AuditLog(at);
+CREATE INDEX auditLogActor ON AuditLog(actor, at);
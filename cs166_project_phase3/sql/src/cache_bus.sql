@@ -0,0 +1,51 @@
+-- Publishes a versioned invalidation message for every change to Items,
+-- Store and Users (login, role or password), for PizzaStore processes
+-- running with -Dpizzastore.cacheBus=true. Run after load_data.sql so the
+-- bulk load does not publish anything.
+--
+-- A message names the table (entity) and, for Users, the login that
+-- changed (key); version orders the messages. Each message is followed by
+-- NOTIFY pizzastore_cache, delivered when the writing transaction commits.
+-- PizzaStore deletes messages older than an hour.
+
+DROP TRIGGER IF EXISTS items_invalidation ON Items;
+DROP TRIGGER IF EXISTS store_invalidation ON Store;
+DROP TRIGGER IF EXISTS users_invalidation ON Users;
+DROP TABLE IF EXISTS CacheInvalidation;
+
+CREATE TABLE CacheInvalidation ( version bigserial NOT NULL,
+                           entity varchar(10) NOT NULL, --items, store or users
+                           key text, --login for users, null for the whole table
+                           at timestamptz NOT NULL DEFAULT now(),
+                           PRIMARY KEY(version)
+);
+CREATE INDEX cacheInvalidationAt ON CacheInvalidation(at);
+
+CREATE OR REPLACE FUNCTION publish_invalidation() RETURNS TRIGGER AS $$
+BEGIN
+  IF TG_LEVEL = 'ROW' THEN
+    INSERT INTO CacheInvalidation (entity, key) VALUES ('users', OLD.login);
+  ELSE
+    INSERT INTO CacheInvalidation (entity) VALUES (lower(TG_TABLE_NAME));
+  END IF;
+  NOTIFY pizzastore_cache;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- the menu and store caches are reloaded whole, one message per statement
+CREATE TRIGGER items_invalidation
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Items
+FOR EACH STATEMENT
+EXECUTE PROCEDURE publish_invalidation();
+
+CREATE TRIGGER store_invalidation
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Store
+FOR EACH STATEMENT
+EXECUTE PROCEDURE publish_invalidation();
+
+-- roles and checked credentials are cached per login; a new user is not cached yet
+CREATE TRIGGER users_invalidation
+AFTER UPDATE OF login, role, password OR DELETE ON Users
+FOR EACH ROW
+EXECUTE PROCEDURE publish_invalidation();
@@ -1,5 +1,18 @@
 DROP INDEX IF EXISTS itemsOrder;
 DROP INDEX IF EXISTS foodTime; 
+DROP INDEX IF EXISTS itemsIngredients;
+DROP INDEX IF EXISTS itemsText;
 
 CREATE INDEX itemsOrder ON ItemsInOrder(orderID);
 CREATE INDEX foodTime ON FoodOrder(login, orderTimestamp DESC);
+
+-- menu search by ingredient and keyword (MenuIndex.conditions), used when
+-- PizzaStore runs with -Dpizzastore.menuIndex.enabled=false
+CREATE OR REPLACE FUNCTION item_ingredients(ingredients varchar) RETURNS text[] AS $$
+  SELECT ARRAY(SELECT lower(trim(i)) FROM unnest(string_to_array(ingredients, ',')) AS i
+               WHERE trim(i) <> '');
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE INDEX itemsIngredients ON Items USING GIN (item_ingredients(ingredients));
+CREATE INDEX itemsText ON Items
+  USING GIN (to_tsvector('simple', itemName || ' ' || ingredients || ' ' || coalesce(description, '')));
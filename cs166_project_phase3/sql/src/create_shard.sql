@@ -0,0 +1,54 @@
+-- Creates the order tables of one order shard. Users, Items and Store stay
+-- in the main database, so the shard has no foreign keys to them.
+--
+--    MAXORDER=$(psql -At -p $PGPORT -c 'SELECT COALESCE(MAX(orderID), 0) FROM FoodOrder' ${USER}_project_phase_3_DB)
+--    psql -p $PORT -v shard=0 -v shards=2 -v maxorder=$MAXORDER orders0 < create_shard.sql
+--
+-- Shard :shard of :shards hands out orderIDs with orderID mod :shards =
+-- :shard, so PizzaStore finds the shard of an order from its ID. They start
+-- above :maxorder, the highest orderID of the main database, so they never
+-- collide with the orders placed before sharding.
+
+\set ON_ERROR_STOP on
+\if :{?maxorder}
+\else
+DO $$ BEGIN RAISE EXCEPTION 'pass -v maxorder=<MAX(orderID) of the main database>'; END $$;
+\endif
+
+DROP TABLE IF EXISTS OrderRequest CASCADE;
+DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS FoodOrder CASCADE;
+DROP SEQUENCE IF EXISTS orderID_Seq;
+DROP TYPE IF EXISTS order_status;
+
+CREATE TYPE order_status AS ENUM ('incomplete', 'complete');
+
+CREATE SEQUENCE orderID_Seq INCREMENT BY :shards MINVALUE 0 START :shard;
+-- continue after the orderIDs of the main database
+SELECT setval('orderID_Seq', (:maxorder / :shards + 1) * :shards + :shard, false);
+
+CREATE TABLE FoodOrder ( orderID integer NOT NULL DEFAULT nextval('orderID_Seq'),
+                           login varchar(50) NOT NULL, --places relationship
+                           storeID integer NOT NULL, --placedAt relationship
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           orderStatus order_status,
+                           PRIMARY KEY(orderID)
+);
+
+CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           quantity integer NOT NULL,
+                           PRIMARY KEY(orderID, itemName),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE
+);
+
+-- request keys are unique per shard only; PizzaStore looks a key up on the shard of the store
+CREATE TABLE OrderRequest ( requestKey varchar(64) NOT NULL, --client idempotency key
+                           orderID integer NOT NULL,
+                           PRIMARY KEY(requestKey),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE
+);
+
+CREATE INDEX itemsOrder ON ItemsInOrder(orderID);
+CREATE INDEX foodTime ON FoodOrder(login, orderTimestamp DESC);
@@ -3,10 +3,18 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS OrderRequest CASCADE;
+DROP TYPE IF EXISTS user_role;
+DROP TYPE IF EXISTS order_status;
+DROP TYPE IF EXISTS item_type;
+
+CREATE TYPE user_role AS ENUM ('customer', 'driver', 'manager');
+CREATE TYPE order_status AS ENUM ('incomplete', 'complete');
+CREATE TYPE item_type AS ENUM ('entree', 'sides', 'drinks');
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
-                     role char(20) NOT NULL,
+                     role user_role NOT NULL,
                      favoriteItems text,
                      phoneNum varchar(20) NOT NULL,
                      PRIMARY KEY(login)
@@ -14,7 +22,7 @@ CREATE TABLE Users ( login varchar(50) NOT NULL,
 
 CREATE TABLE Items ( itemName varchar(50) NOT NULL,
                        ingredients varchar(300) NOT NULL,
-                       typeOfItem varchar(30) NOT NULL,
+                       typeOfItem item_type NOT NULL,
                        price decimal(10,2) NOT NULL,
                        description text,
                        PRIMARY KEY(itemName)
@@ -34,7 +42,7 @@ CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
-                           orderStatus char(50),
+                           orderStatus order_status,
                            PRIMARY KEY(orderID),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
@@ -53,3 +61,8 @@ CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            ON DELETE CASCADE
 );
 
+CREATE TABLE OrderRequest ( requestKey varchar(64) NOT NULL, --client idempotency key
+                           orderID integer NOT NULL,
+                           PRIMARY KEY(requestKey),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE
+);
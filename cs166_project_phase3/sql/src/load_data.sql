@@ -3,15 +3,23 @@ COPY Users
 FROM 'REPLACE PATH HERE/users.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Items
+-- typeOfItem is written ' entree' in items.csv, so Items loads through a
+-- staging table that trims it to the item_type label
+CREATE TEMP TABLE ItemsLoad ( itemName varchar(50), ingredients varchar(300), typeOfItem varchar(30),
+                              price decimal(10,2), description text );
+
+COPY ItemsLoad
 FROM 'REPLACE PATH HERE/items.csv'
 WITH DELIMITER ',' CSV HEADER;
 
+INSERT INTO Items SELECT itemName, ingredients, trim(typeOfItem)::item_type, price, description FROM ItemsLoad;
+DROP TABLE ItemsLoad;
+
 COPY Store
 FROM 'REPLACE PATH HERE/store.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY FoodOrder
+COPY FoodOrder(orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
 FROM 'REPLACE PATH HERE/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
@@ -0,0 +1,46 @@
+-- Converts Users.role, FoodOrder.orderStatus and Items.typeOfItem of an
+-- existing database from text to the enum types of create_tables.sql.
+-- Stops without changing anything if a row holds a value that is not a
+-- label of its type (fix those rows first).
+
+BEGIN;
+
+DO $$
+BEGIN
+  IF to_regtype('user_role') IS NULL THEN
+    CREATE TYPE user_role AS ENUM ('customer', 'driver', 'manager');
+  END IF;
+  IF to_regtype('order_status') IS NULL THEN
+    CREATE TYPE order_status AS ENUM ('incomplete', 'complete');
+  END IF;
+  IF to_regtype('item_type') IS NULL THEN
+    CREATE TYPE item_type AS ENUM ('entree', 'sides', 'drinks');
+  END IF;
+
+  IF EXISTS (SELECT 1 FROM Users
+             WHERE lower(trim(role::text)) NOT IN ('customer', 'driver', 'manager')) THEN
+    RAISE EXCEPTION 'Users.role holds values other than customer, driver, manager';
+  END IF;
+  IF EXISTS (SELECT 1 FROM FoodOrder
+             WHERE lower(trim(orderStatus::text)) NOT IN ('incomplete', 'complete')) THEN
+    RAISE EXCEPTION 'FoodOrder.orderStatus holds values other than incomplete, complete';
+  END IF;
+  IF EXISTS (SELECT 1 FROM Items
+             WHERE lower(trim(typeOfItem::text)) NOT IN ('entree', 'sides', 'drinks')) THEN
+    RAISE EXCEPTION 'Items.typeOfItem holds values other than entree, sides, drinks';
+  END IF;
+END;
+$$;
+
+ALTER TABLE Users ALTER COLUMN role TYPE user_role
+  USING lower(trim(role::text))::user_role;
+ALTER TABLE FoodOrder ALTER COLUMN orderStatus TYPE order_status
+  USING lower(trim(orderStatus::text))::order_status;
+ALTER TABLE Items ALTER COLUMN typeOfItem TYPE item_type
+  USING lower(trim(typeOfItem::text))::item_type;
+
+COMMIT;
+
+ANALYZE Users;
+ANALYZE FoodOrder;
+ANALYZE Items;
@@ -0,0 +1,106 @@
+-- Range partitions FoodOrder and ItemsInOrder by orderID (PostgreSQL 12 or
+-- later). Run once on a database built by create_tables.sql (or updated by
+-- add_request_keys.sql and migrate_enums.sql), after loading it. Then run
+-- PizzaStore with -Dpizzastore.orders.partitioned=true so it keeps creating
+-- partitions ahead of orderID_Seq.
+--
+-- orderIDs come from orderID_Seq and grow with time, so each partition holds
+-- the orders of one period and old partitions stop changing. ItemsInOrder
+-- uses the same bounds: the items of an order are in the partition with the
+-- same number, and a lookup by orderID reads one partition of each table.
+--
+-- Per-login history (all of a login's orders, or its newest few) is not
+-- pruned: it has no orderID or time bound, so it reads the foodTime index
+-- of every partition. Partitioning by orderTimestamp would not prune it
+-- either. It would also cost the orderID primary key and the ItemsInOrder
+-- foreign key, since ItemsInOrder has no orderTimestamp to share the
+-- partition key.
+--
+-- Change the width below (orderIDs per partition) before running.
+
+BEGIN;
+
+CREATE TABLE OrderPartitioning ( width integer NOT NULL CHECK (width > 0) );
+INSERT INTO OrderPartitioning VALUES (1000000);
+
+-- the orderID trigger cannot be a BEFORE ROW trigger of a partitioned
+-- table, so the partitioned FoodOrder takes its orderID as a default
+CREATE SEQUENCE IF NOT EXISTS orderID_Seq START 10004;
+DROP TRIGGER IF EXISTS orderID_trigger ON FoodOrder;
+
+CREATE TABLE FoodOrder_partitioned ( orderID integer NOT NULL DEFAULT nextval('orderID_Seq'),
+                           login varchar(50) NOT NULL, --places relationship
+                           storeID integer NOT NULL, --placedAt relationship
+                           totalPrice decimal(10,2) NOT NULL,
+                           orderTimestamp timestamp NOT NULL,
+                           orderStatus order_status,
+                           PRIMARY KEY(orderID),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE,
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE
+) PARTITION BY RANGE (orderID);
+
+CREATE TABLE ItemsInOrder_partitioned ( orderID integer NOT NULL,
+                           itemName varchar(50) NOT NULL,
+                           quantity integer NOT NULL,
+                           PRIMARY KEY(orderID, itemName),
+                           FOREIGN KEY(orderID) REFERENCES FoodOrder_partitioned(orderID) ON DELETE CASCADE,
+                           FOREIGN KEY(itemName) REFERENCES Items(itemName)
+                           ON DELETE CASCADE
+) PARTITION BY RANGE (orderID);
+
+-- Creates the missing partitions of both tables from orderID 0 up to
+-- `ahead` partitions past the highest orderID used or handed out, and
+-- returns the partition width.
+CREATE OR REPLACE FUNCTION ensure_order_partitions(ahead integer) RETURNS integer AS $$
+DECLARE
+  w integer;
+  last bigint;
+  lo bigint := 0;
+BEGIN
+  -- one caller at a time, concurrent callers would create the same tables
+  PERFORM pg_advisory_xact_lock(hashtext('ensure_order_partitions'));
+  SELECT width INTO w FROM OrderPartitioning;
+  SELECT GREATEST(last_value, (SELECT COALESCE(MAX(orderID), 0) FROM FoodOrder)) INTO last FROM orderID_Seq;
+  WHILE lo <= last + ahead::bigint * w LOOP
+    IF to_regclass('foodorder_p' || (lo / w)) IS NULL THEN
+      EXECUTE format('CREATE TABLE foodorder_p%s PARTITION OF FoodOrder FOR VALUES FROM (%s) TO (%s)',
+                     lo / w, lo, lo + w);
+      EXECUTE format('CREATE TABLE itemsinorder_p%s PARTITION OF ItemsInOrder FOR VALUES FROM (%s) TO (%s)',
+                     lo / w, lo, lo + w);
+    END IF;
+    lo := lo + w;
+  END LOOP;
+  RETURN w;
+END;
+$$ LANGUAGE plpgsql;
+
+-- swap the tables, then create the partitions the existing orders need
+ALTER TABLE OrderRequest DROP CONSTRAINT IF EXISTS orderrequest_orderid_fkey;
+ALTER TABLE FoodOrder RENAME TO FoodOrder_unpartitioned;
+ALTER TABLE ItemsInOrder RENAME TO ItemsInOrder_unpartitioned;
+ALTER TABLE FoodOrder_partitioned RENAME TO FoodOrder;
+ALTER TABLE ItemsInOrder_partitioned RENAME TO ItemsInOrder;
+
+SELECT setval('orderID_Seq', GREATEST((SELECT COALESCE(MAX(orderID), 0) FROM FoodOrder_unpartitioned),
+                                      (SELECT last_value FROM orderID_Seq)));
+SELECT ensure_order_partitions(2);
+
+INSERT INTO FoodOrder SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus
+  FROM FoodOrder_unpartitioned;
+INSERT INTO ItemsInOrder SELECT orderID, itemName, quantity FROM ItemsInOrder_unpartitioned;
+
+DROP TABLE ItemsInOrder_unpartitioned;
+DROP TABLE FoodOrder_unpartitioned;
+
+ALTER TABLE OrderRequest ADD FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE;
+
+-- the indexes of create_indexes.sql, now one per partition
+CREATE INDEX itemsOrder ON ItemsInOrder(orderID);
+CREATE INDEX foodTime ON FoodOrder(login, orderTimestamp DESC);
+
+COMMIT;
+
+ANALYZE FoodOrder;
+ANALYZE ItemsInOrder;